@@ -0,0 +1,187 @@
+package com.github.tncrazvan.arcano.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.tncrazvan.arcano.Arcano;
+import com.github.tncrazvan.arcano.tool.action.HttpEventAction;
+
+/**
+ * Measures the bytes the server allocates for each request of a keep-alive connection.<br />
+ * The client lives in the same JVM, so gc.alloc.rate.norm also counts its side,
+ * which writes the same prebuilt bytes and reads into the same buffer every time,
+ * compare runs with each other rather than reading the figure as the cost of the server alone.<br />
+ * Run it with:
+ * <pre>
+ * mvn -P jmh compile exec:exec
+ * </pre>
+ * @author Razvan Tanase
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpRequestAllocationBenchmark {
+    private static final byte[] REQUEST = (
+        "GET /hello?name=arcano&lang=en HTTP/1.1\r\n"
+        + "Host: localhost\r\n"
+        + "Accept-Language: en-US,en;q=0.9\r\n"
+        + "Connection: keep-alive\r\n"
+        + "\r\n"
+    ).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"nio", "blocking"})
+    public String io;
+
+    private Arcano server;
+    private File dir;
+    private Socket socket;
+    private OutputStream output;
+    private InputStream input;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        final int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        dir = Files.createTempDirectory("arcano-bench").toFile();
+        new File(dir, "www").mkdir();
+        final File config = new File(dir, "http.json");
+        Files.write(config.toPath(), (
+            "{"
+            + "\"port\":" + port + ","
+            + "\"webRoot\":\"www\","
+            + "\"io\":{\"mode\":\"" + io + "\"},"
+            + "\"http\":{\"keepAlive\":{\"enabled\":true,\"timeout\":600000,\"max\":2147483647}}"
+            + "}"
+        ).getBytes(StandardCharsets.UTF_8));
+
+        server = new Arcano();
+        server.addHttpEventListener("GET", "/hello", (HttpEventAction<Object>) e -> "hello " + e.request.getQueryString("name"));
+        final Thread listener = new Thread(() -> server.listen(new String[]{ config.getAbsolutePath() }), "BenchmarkServer");
+        listener.setDaemon(true);
+        listener.start();
+
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("127.0.0.1", port);
+            } catch (final IOException ex) {
+                if (attempt == 100)
+                    throw ex;
+                Thread.sleep(50);
+            }
+        }
+        socket.setTcpNoDelay(true);
+        output = socket.getOutputStream();
+        input = socket.getInputStream();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.config.listen = false;
+        socket.close();
+        for (final File file : new File(dir, "www").listFiles())
+            file.delete();
+        new File(dir, "www").delete();
+        new File(dir, "http.json").delete();
+        dir.delete();
+    }
+
+    /**
+     * Send one request on the open connection and read its whole response.
+     * @return the length of the body, so that the read cannot be left out.
+     */
+    @Benchmark
+    public int request() throws IOException {
+        output.write(REQUEST);
+        output.flush();
+        int length = 0;
+        int head = -1;
+        int body = -1;
+        while (head < 0 || length < head + body) {
+            final int read = input.read(buffer, length, buffer.length - length);
+            if (read < 0)
+                throw new IOException("The server closed the connection.");
+            length += read;
+            if (head < 0) {
+                head = headLength(length);
+                if (head >= 0)
+                    body = contentLength(head);
+            }
+        }
+        return body;
+    }
+
+    /**
+     * @return the length of the head including its blank line, or -1 if it has not been read in full yet.
+     */
+    private int headLength(final int length) {
+        for (int i = 3; i < length; i++)
+            if (buffer[i] == '\n' && buffer[i - 1] == '\r' && buffer[i - 2] == '\n' && buffer[i - 3] == '\r')
+                return i + 1;
+        return -1;
+    }
+
+    /**
+     * Read the Content-Length header without making strings out of the head.
+     */
+    private int contentLength(final int head) throws IOException {
+        final byte[] name = CONTENT_LENGTH;
+        for (int i = 0; i + name.length < head; i++) {
+            if (i > 0 && buffer[i - 1] != '\n')
+                continue;
+            int j = 0;
+            while (j < name.length && Character.toLowerCase(buffer[i + j]) == name[j])
+                j++;
+            if (j < name.length)
+                continue;
+            int k = i + j;
+            while (buffer[k] == ' ')
+                k++;
+            int value = 0;
+            while (buffer[k] >= '0' && buffer[k] <= '9')
+                value = value * 10 + buffer[k++] - '0';
+            return value;
+        }
+        throw new IOException("The response has no Content-Length.");
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+            .include(HttpRequestAllocationBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -2,11 +2,12 @@ package com.github.tncrazvan.arcano;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
+import java.nio.channels.ServerSocketChannel;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -14,7 +15,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Level;
@@ -25,11 +26,17 @@ import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
+import com.github.tncrazvan.arcano.Configuration.Io;
 import com.github.tncrazvan.arcano.Configuration.Threads;
+import com.github.tncrazvan.arcano.http.HttpAdmission;
+import com.github.tncrazvan.arcano.http.HttpHeadEncoder;
+import com.github.tncrazvan.arcano.http.HttpRequestIds;
 import com.github.tncrazvan.arcano.http.HttpRequestReader;
+import com.github.tncrazvan.arcano.http.HttpSelectorServer;
+import com.github.tncrazvan.arcano.http.StaticFileCache;
 import com.github.tncrazvan.arcano.smtp.SmtpServer;
-import com.github.tncrazvan.arcano.websocket.WebSocketCommit;
-import com.github.tncrazvan.arcano.websocket.WebSocketEventManager;
+import com.github.tncrazvan.arcano.tool.system.BufferPool;
+import com.github.tncrazvan.arcano.websocket.WebSocketEngine;
 
 /**
  *
@@ -68,8 +75,13 @@ public class Arcano extends SharedObject {
         try {
             config.parse(args[0], this);
             configureThreadPoolPolicy();
+            configureBufferPool();
+            configureStaticCache();
+            configureAdmission();
+            configureHeadEncoder();
+            configureRequestIds();
             configureSmtpPolicy();
-            pushWebSocketCommits();
+            configureWebSocketEngine();
 
             
             System.out.println("Caller Working Directory: " + config.callerDir);
@@ -92,18 +104,23 @@ public class Arcano extends SharedObject {
     }
 
     private void configureServer() throws IOException {
-        ServerSocket ss = new ServerSocket();
+        if (Io.MODE_NIO.equals(config.io.mode)) {
+            new HttpSelectorServer(this).listen();
+            return;
+        }
+        // sockets accepted through a channel can send files with FileChannel.transferTo
+        ServerSocket ss = ServerSocketChannel.open().socket();
         // ss.setSoTimeout(this.config.timeout);
         ss.bind(new InetSocketAddress(config.bindAddress, config.port));
-        HttpRequestReader reader;
+        Socket client;
+        if (admission != null)
+            admission.startSweeper();
         System.out.println("Server started.");
         while (config.listen) {
             try {
-                reader = new HttpRequestReader(this, ss.accept());
-                if (executor == null)
-                    service.submit(reader);
-                else
-                    executor.submit(reader);
+                client = ss.accept();
+                // the request has not been read yet, so its priority is not known
+                submit(client, null, new HttpRequestReader(this, client));
             } catch (SocketTimeoutException e) {
                 LOGGER.log(Level.SEVERE, null, e);
                 // System.out.println(String.format("Socket timed out after %s milliseconds.",
@@ -131,15 +148,16 @@ public class Arcano extends SharedObject {
         try (SSLServerSocket ss = ((SSLServerSocket) factory.createServerSocket())) {
             ss.setSoTimeout(this.config.timeout);
             ss.bind(new InetSocketAddress(config.bindAddress, config.port));
-            HttpRequestReader reader;
+            Socket client;
+            if (Io.MODE_NIO.equals(config.io.mode))
+                System.out.println("Selector loops are not available over TLS, falling back to blocking io.");
+            if (admission != null)
+                admission.startSweeper();
             System.out.println("Server started (using TLSv1.2).");
             while (config.listen) {
                 try {
-                    reader = new HttpRequestReader(this, ss.accept());
-                    if (executor == null)
-                        service.submit(reader);
-                    else
-                        executor.submit(reader);
+                    client = ss.accept();
+                    submit(client, null, new HttpRequestReader(this, client));
                 } catch (SocketTimeoutException e) {
                     LOGGER.log(Level.SEVERE, null, e);
                     // System.out.println(String.format("Socket timed out after %s milliseconds.",
@@ -149,6 +167,28 @@ public class Arcano extends SharedObject {
         }
     }
 
+    private void configureBufferPool() {
+        BufferPool.configure(config.bufferPool.maxSize, config.bufferPool.leakDetection);
+    }
+
+    private void configureStaticCache() {
+        if (config.staticCache.enabled)
+            staticFileCache = new StaticFileCache(this);
+    }
+
+    private void configureAdmission() {
+        if (config.admission.enabled)
+            admission = new HttpAdmission(this);
+    }
+
+    private void configureHeadEncoder() {
+        headEncoder = new HttpHeadEncoder(config.headers, config.charset);
+    }
+
+    private void configureRequestIds() {
+        requestIds = new HttpRequestIds(config.http.requestId.node);
+    }
+
     private void configureSmtpPolicy() throws IOException {
         if (config.smtp.enabled)
             if (!config.smtp.hostname.equals("")) {
@@ -160,6 +200,20 @@ public class Arcano extends SharedObject {
             }
     }
 
+    /**
+     * Create an executor that starts a new virtual thread for each task.<br />
+     * The executor is looked up at runtime so that the server still builds and runs on
+     * older versions of Java, where this method simply returns null.
+     * @return the executor, or null if the runtime does not support virtual threads.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            return null;
+        }
+    }
+
     private void configureThreadPoolPolicy() {
         switch (config.threads.policy) {
             case Threads.POLICY_FIX:
@@ -168,6 +222,13 @@ public class Arcano extends SharedObject {
             case Threads.POLICY_CACHE:
                 executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
                 break;
+            case Threads.POLICY_VIRTUAL:
+                service = newVirtualThreadPerTaskExecutor();
+                if (service == null) {
+                    System.out.println("Virtual threads are not available on this runtime, falling back to the \"" + Threads.POLICY_CACHE + "\" policy.");
+                    executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+                }
+                break;
             case Threads.POLICY_STEAL:
             default:
                 if (config.threads.pool == 0)
@@ -178,50 +239,8 @@ public class Arcano extends SharedObject {
         }
     }
 
-    private void pushWebSocketCommits() {
-        // push websocket commits
-        Runnable webSocketPushRunnable = () -> {
-            this.oldWebSocketEventManager.clear();
-            int available = 0;
-            Collection<WebSocketEventManager> collection;
-            while (true) {
-                collection = this.webSocketEventManager.values();
-                for (WebSocketEventManager manager : collection) {
-                    if (!manager.isConnected()) {
-                        this.oldWebSocketEventManager.add(manager);
-                        continue;
-                    }
-                    InputStream read = manager.getRead();
-                    if (read != null) {
-                        try {
-                            if ((available = read.available()) > 0 && manager.isConnected()) {
-                                manager.unmask(read.readNBytes(
-                                        available < config.webSocket.mtu ? available : config.webSocket.mtu));
-                            }
-                            if (manager.getCommits().size() > 0) {
-                                for (WebSocketCommit commit : manager.getCommits()) {
-                                    manager.push(commit);
-                                }
-                            }
-                        } catch (IOException ex) {
-                            this.oldWebSocketEventManager.add(manager);
-                            LOGGER.log(Level.SEVERE, null, ex);
-                        }
-                    }
-                }
-
-                // remove old events
-                for (WebSocketEventManager element : this.oldWebSocketEventManager) {
-                    this.webSocketEventManager.remove(element.getUuid());
-                }
-                this.oldWebSocketEventManager.clear();
-                try {
-                    Thread.sleep(0, 1);
-                } catch (InterruptedException ex) {
-                    LOGGER.log(Level.SEVERE, null, ex);
-                }
-            }
-        };
-        new Thread(webSocketPushRunnable).start();
+    private void configureWebSocketEngine() throws IOException {
+        webSocketEngine = new WebSocketEngine(this);
+        webSocketEngine.start();
     }
 }
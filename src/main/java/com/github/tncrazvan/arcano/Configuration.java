@@ -21,6 +21,7 @@ import com.github.tncrazvan.arcano.tool.action.TypedAction;
 import com.github.tncrazvan.arcano.tool.cluster.Cluster;
 import com.github.tncrazvan.arcano.tool.cluster.ClusterServer;
 import com.github.tncrazvan.arcano.tool.cluster.InvalidClusterEntryException;
+import com.github.tncrazvan.arcano.tool.compression.CompressionCodecs;
 import com.github.tncrazvan.arcano.tool.encoding.JsonTools;
 import com.github.tncrazvan.arcano.tool.http.Status;
 import com.github.tncrazvan.arcano.tool.system.ServerFile;
@@ -56,6 +57,7 @@ public class Configuration {
         public static final String POLICY_FIX = "fix";
         public static final String POLICY_CACHE = "cache";
         public static final String POLICY_STEAL = "steal";
+        public static final String POLICY_VIRTUAL = "virtual";
         public String policy = POLICY_STEAL; 
         public int pool = 3;
         public AsciiTable table = new AsciiTable();
@@ -64,6 +66,50 @@ public class Configuration {
         }
     }
     public Threads threads = new Threads();
+    public static class Io{
+        public static final String MODE_BLOCKING = "blocking";
+        public static final String MODE_NIO = "nio";
+        public String mode = MODE_BLOCKING;
+        public int selectors = 0;
+        public AsciiTable table = new AsciiTable();
+        public Io() {
+            table.add("KEY","VALUE");
+        }
+    }
+    public Io io = new Io();
+    public static class StaticCache{
+        public boolean enabled = false;
+        public long maxSize = 64 * 1024 * 1024;
+        public long maxFileSize = 1024 * 1024;
+        public boolean watch = true;
+        public AsciiTable table = new AsciiTable();
+        public StaticCache() {
+            table.add("KEY","VALUE");
+        }
+    }
+    public StaticCache staticCache = new StaticCache();
+    public static class BufferPool{
+        public long maxSize = 64 * 1024 * 1024;
+        public boolean leakDetection = false;
+        public AsciiTable table = new AsciiTable();
+        public BufferPool() {
+            table.add("KEY","VALUE");
+        }
+    }
+    public BufferPool bufferPool = new BufferPool();
+    public static class Admission{
+        public boolean enabled = false;
+        public int maxInFlight = 256;
+        public int queue = 1024;
+        public long queueTimeout = 5000;
+        public int retryAfter = 1;
+        public HashMap<String,String> priority = new HashMap<>();
+        public AsciiTable table = new AsciiTable();
+        public Admission() {
+            table.add("KEY","VALUE");
+        }
+    }
+    public Admission admission = new Admission();
     public static class WebSocket{
         public static class Groups{
             public static class Connections{
@@ -81,7 +127,35 @@ public class Configuration {
             }
         }
         public Groups groups = new Groups();
+        public static class Deflate{
+            public int minSize = 1024;
+            public int level = 6;
+            public boolean serverNoContextTakeover = false;
+            public AsciiTable table = new AsciiTable();
+            public Deflate() {
+                table.add("KEY","VALUE");
+            }
+        }
+        public Deflate deflate = new Deflate();
+        public static class Outbound{
+            public static final String POLICY_DISCONNECT = "disconnect";
+            public static final String POLICY_DROP_OLDEST = "dropOldest";
+            public static final String POLICY_DROP_NEWEST = "dropNewest";
+            public int capacity = 1024;
+            public long highWatermark = 1024 * 1024;
+            public long lowWatermark = 256 * 1024;
+            public String policy = POLICY_DISCONNECT;
+            public AsciiTable table = new AsciiTable();
+            public Outbound() {
+                table.add("KEY","VALUE");
+            }
+        }
+        public Outbound outbound = new Outbound();
         public int mtu = 65536;
+        public int loops = 0;
+        public long maxMessageSize = 16 * 1024 * 1024;
+        public int pingInterval = 30000;
+        public int pingTimeout = 10000;
         public WebObject controllerNotFound = null;
         public AsciiTable table = new AsciiTable();
         public WebSocket() {
@@ -92,7 +166,31 @@ public class Configuration {
     public WebSocket webSocket = new WebSocket();
     
     public static class Http{
+        public static class KeepAlive{
+            public boolean enabled = true;
+            public int timeout = 15000;
+            public int max = 100;
+            public AsciiTable table = new AsciiTable();
+            public KeepAlive() {
+                table.add("KEY","VALUE");
+            }
+        }
+        public KeepAlive keepAlive = new KeepAlive();
+        public static class RequestId{
+            public int node = -1;
+            public boolean propagate = true;
+            public boolean echo = false;
+            public AsciiTable table = new AsciiTable();
+            public RequestId() {
+                table.add("KEY","VALUE");
+            }
+        }
+        public RequestId requestId = new RequestId();
         public int mtu = 65536;
+        public int maxHeadSize = 16384;
+        public int maxHeaders = 100;
+        public long maxBodySize = -1;
+        public boolean streamBody = false;
         public AsciiTable table = new AsciiTable();
         public WebObject controllerNotFound = null;
         public WebObject controllerDefault = null;
@@ -102,6 +200,26 @@ public class Configuration {
     }
     public Http http = new Http();
     public String[] compression = new String[0];
+    public static class Compress{
+        public String[] encoders = new String[0];
+        public boolean precompressed = true;
+        public int minSize = 1024;
+        public int level = 6;
+        public String[] types = new String[]{
+            "text/*",
+            "application/json",
+            "application/javascript",
+            "application/xml",
+            "application/xhtml+xml",
+            "application/manifest+json",
+            "image/svg+xml"
+        };
+        public AsciiTable table = new AsciiTable();
+        public Compress() {
+            table.add("KEY","VALUE");
+        }
+    }
+    public Compress compress = new Compress();
     public HashMap<String,String> headers = new HashMap<String,String>(){
 		private static final long serialVersionUID = -8770720041851024009L;
         {
@@ -202,10 +320,38 @@ public class Configuration {
         JsonElement el;
         JsonObject obj;
         if(source.has("compress")){
-            this.compression = jsonParse(source.get("compress").getAsJsonArray(), String[].class);
+            el = source.get("compress");
+            if(el.isJsonArray()){
+                this.compression = jsonParse(el.getAsJsonArray(), String[].class);
+            }else if(el.isJsonObject()){
+                obj = el.getAsJsonObject();
+                if(obj.has("encodings"))
+                    this.compression = jsonParse(obj.get("encodings").getAsJsonArray(), String[].class);
+                if(obj.has("minSize"))
+                    this.compress.minSize = obj.get("minSize").getAsInt();
+                if(obj.has("level"))
+                    this.compress.level = obj.get("level").getAsInt();
+                if(this.compress.level < 1 || this.compress.level > 9)
+                    this.compress.level = 6;
+                if(obj.has("types"))
+                    this.compress.types = jsonParse(obj.get("types").getAsJsonArray(), String[].class);
+                if(obj.has("precompressed"))
+                    this.compress.precompressed = obj.get("precompressed").getAsBoolean();
+            }else
+                System.out.println("compress is neither an array nor an object.");
         }else{
             this.compression = new String[]{};
         }
+        this.compress.encoders = CompressionCodecs.available(this.compression);
+        this.compress.table.add("encodings", this.compression.length == 0 ? "None (Responses are never compressed)" : String.join(", ", this.compression)+" (In order of preference)");
+        if(this.compression.length > 0){
+            this.compress.table.add("minSize", this.compress.minSize + " bytes (Smaller responses are sent as they are)");
+            this.compress.table.add("level", this.compress.level + " (1 is the fastest, 9 the smallest)");
+            this.compress.table.add("types", String.join(", ", this.compress.types));
+            if(this.compress.encoders.length < this.compression.length)
+                this.compress.table.add("encoders", (this.compress.encoders.length == 0 ? "None" : String.join(", ", this.compress.encoders))+" (The other encodings have no encoder and are only served precompressed)");
+            this.compress.table.add("precompressed", this.compress.precompressed ? "true (Static files are served from their precompressed siblings, such as app.js.br)" : "false");
+        }
         
         if(source.has("key"))
             key =source.get("key").getAsString();
@@ -270,6 +416,9 @@ public class Configuration {
             case Threads.POLICY_FIX:
                 this.threads.table.add("policy", this.threads.policy+" (Uses a fixed number of threads)");
             break;
+            case Threads.POLICY_VIRTUAL:
+                this.threads.table.add("policy", this.threads.policy+" (Runs each task on its own virtual thread, requires Java 21)");
+            break;
             case Threads.POLICY_STEAL:
             default:
                 this.threads.table.add("policy", this.threads.policy+" (Uses Work-Stealing thread pool)");
@@ -282,6 +431,9 @@ public class Configuration {
             case Threads.POLICY_FIX:
                 this.threads.table.add("pool", this.threads.pool + " threads");
             break;
+            case Threads.POLICY_VIRTUAL:
+                this.threads.table.add("pool", "Virtual policy ignores this field");
+            break;
             case Threads.POLICY_STEAL:
             default:
                 if(this.threads.pool == 0)
@@ -291,6 +443,111 @@ public class Configuration {
             
         }
 
+        if (source.has("io")){
+            el = source.get("io");
+            if(el.isJsonObject()){
+                obj = el.getAsJsonObject();
+                if(obj.has("mode"))
+                    this.io.mode = obj.get("mode").getAsString();
+                if(obj.has("selectors"))
+                    this.io.selectors = obj.get("selectors").getAsInt();
+            }else if(el.isJsonPrimitive())
+                this.io.mode = el.getAsString();
+            else
+                System.out.println("io is not an object.");
+        }
+        if(this.io.selectors <= 0)
+            this.io.selectors = Runtime.getRuntime().availableProcessors();
+
+        switch(this.io.mode){
+            case Io.MODE_NIO:
+                this.io.table.add("mode", this.io.mode+" (Selector loops buffer requests before dispatching them)");
+                this.io.table.add("selectors", this.io.selectors + " selector loops");
+            break;
+            case Io.MODE_BLOCKING:
+            default:
+                this.io.table.add("mode", this.io.mode+" (Each connection is read by a pool thread)");
+        }
+
+        if (source.has("staticCache")){
+            el = source.get("staticCache");
+            if(el.isJsonObject()){
+                obj = el.getAsJsonObject();
+                this.staticCache.enabled = obj.has("enabled") ? obj.get("enabled").getAsBoolean() : true;
+                if(obj.has("maxSize"))
+                    this.staticCache.maxSize = obj.get("maxSize").getAsLong();
+                if(obj.has("maxFileSize"))
+                    this.staticCache.maxFileSize = obj.get("maxFileSize").getAsLong();
+                if(obj.has("watch"))
+                    this.staticCache.watch = obj.get("watch").getAsBoolean();
+            }else if(el.isJsonPrimitive())
+                this.staticCache.enabled = el.getAsBoolean();
+            else
+                System.out.println("staticCache is not an object.");
+        }
+        this.staticCache.table.add("enabled", this.staticCache.enabled ? "True" : "False");
+        if(this.staticCache.enabled){
+            this.staticCache.table.add("maxSize", this.staticCache.maxSize + " bytes");
+            this.staticCache.table.add("maxFileSize", this.staticCache.maxFileSize + " bytes");
+            this.staticCache.table.add("watch", this.staticCache.watch ? "True (entries are dropped as soon as webRoot changes)" : "False (entries are checked against the file system on every hit)");
+        }
+
+        if (source.has("bufferPool")){
+            el = source.get("bufferPool");
+            if(el.isJsonObject()){
+                obj = el.getAsJsonObject();
+                if(obj.has("maxSize"))
+                    this.bufferPool.maxSize = obj.get("maxSize").getAsLong();
+                if(obj.has("leakDetection"))
+                    this.bufferPool.leakDetection = obj.get("leakDetection").getAsBoolean();
+            }else
+                System.out.println("bufferPool is not an object.");
+        }
+        this.bufferPool.table.add("maxSize", this.bufferPool.maxSize + " bytes (Direct memory the pool can allocate, larger needs use heap buffers)");
+        this.bufferPool.table.add("leakDetection", this.bufferPool.leakDetection ? "True (Buffers that are never released are logged, use it while debugging)" : "False");
+
+        if (source.has("admission")){
+            el = source.get("admission");
+            if(el.isJsonObject()){
+                obj = el.getAsJsonObject();
+                this.admission.enabled = obj.has("enabled") ? obj.get("enabled").getAsBoolean() : true;
+                if(obj.has("maxInFlight"))
+                    this.admission.maxInFlight = obj.get("maxInFlight").getAsInt();
+                if(this.admission.maxInFlight <= 0)
+                    this.admission.maxInFlight = 1;
+                if(obj.has("queue"))
+                    this.admission.queue = obj.get("queue").getAsInt();
+                if(this.admission.queue < 0)
+                    this.admission.queue = 0;
+                if(obj.has("queueTimeout"))
+                    this.admission.queueTimeout = obj.get("queueTimeout").getAsLong();
+                if(obj.has("retryAfter"))
+                    this.admission.retryAfter = obj.get("retryAfter").getAsInt();
+                if(obj.has("priority")){
+                    el = obj.get("priority");
+                    if(el.isJsonObject())
+                        el.getAsJsonObject().entrySet().forEach(entry -> {
+                            this.admission.priority.put(entry.getKey(), entry.getValue().getAsString());
+                        });
+                    else
+                        System.out.println("admission.priority is not an object.");
+                }
+            }else if(el.isJsonPrimitive())
+                this.admission.enabled = el.getAsBoolean();
+            else
+                System.out.println("admission is not an object.");
+        }
+        this.admission.table.add("enabled", this.admission.enabled ? "True" : "False");
+        if(this.admission.enabled){
+            this.admission.table.add("maxInFlight", this.admission.maxInFlight + (Io.MODE_NIO.equals(this.io.mode) ? " requests" : " connections"));
+            this.admission.table.add("queue", this.admission.queue + " waiting " + (Io.MODE_NIO.equals(this.io.mode) ? "requests" : "connections"));
+            this.admission.table.add("queueTimeout", this.admission.queueTimeout + " milliseconds");
+            this.admission.table.add("retryAfter", this.admission.retryAfter + " seconds");
+            this.admission.priority.forEach((path, priority) -> {
+                this.admission.table.add("priority " + path, priority);
+            });
+        }
+
         if (source.has("timezone"))
             this.timezone = ZoneId.of(source.get("timezone").getAsString());
 
@@ -374,6 +631,44 @@ public class Configuration {
                 obj = el.getAsJsonObject();
                 if (obj.has("mtu"))
                     this.webSocket.mtu = obj.get("mtu").getAsInt();
+                if (obj.has("loops"))
+                    this.webSocket.loops = obj.get("loops").getAsInt();
+                if (obj.has("maxMessageSize"))
+                    this.webSocket.maxMessageSize = obj.get("maxMessageSize").getAsLong();
+                if (obj.has("pingInterval"))
+                    this.webSocket.pingInterval = obj.get("pingInterval").getAsInt();
+                if (obj.has("pingTimeout"))
+                    this.webSocket.pingTimeout = obj.get("pingTimeout").getAsInt();
+                if (obj.has("deflate")) {
+                    el = obj.get("deflate");
+                    if(el.isJsonObject()){
+                        final JsonObject deflate = el.getAsJsonObject();
+                        if (deflate.has("minSize"))
+                            this.webSocket.deflate.minSize = deflate.get("minSize").getAsInt();
+                        if (deflate.has("level"))
+                            this.webSocket.deflate.level = deflate.get("level").getAsInt();
+                        if (this.webSocket.deflate.level < 1 || this.webSocket.deflate.level > 9)
+                            this.webSocket.deflate.level = 6;
+                        if (deflate.has("serverNoContextTakeover"))
+                            this.webSocket.deflate.serverNoContextTakeover = deflate.get("serverNoContextTakeover").getAsBoolean();
+                    }else
+                        System.out.println("webSocket.deflate is not an object.");
+                }
+                if (obj.has("outbound")) {
+                    el = obj.get("outbound");
+                    if(el.isJsonObject()){
+                        final JsonObject outbound = el.getAsJsonObject();
+                        if (outbound.has("capacity"))
+                            this.webSocket.outbound.capacity = outbound.get("capacity").getAsInt();
+                        if (outbound.has("highWatermark"))
+                            this.webSocket.outbound.highWatermark = outbound.get("highWatermark").getAsLong();
+                        if (outbound.has("lowWatermark"))
+                            this.webSocket.outbound.lowWatermark = outbound.get("lowWatermark").getAsLong();
+                        if (outbound.has("policy"))
+                            this.webSocket.outbound.policy = outbound.get("policy").getAsString();
+                    }else
+                        System.out.println("webSocket.outbound is not an object.");
+                }
                 if (obj.has("groups")) {
                     el = obj.get("groups");
                     if(el.isJsonObject()){
@@ -400,6 +695,32 @@ public class Configuration {
         this.webSocket.groups.table.add("enabled", this.webSocket.groups.enabled ? "True" : "False");
         this.webSocket.table.add("groups", this.webSocket.groups.table.toString());
         this.webSocket.table.add("mtu", this.webSocket.mtu + " bytes");
+        if(this.webSocket.loops <= 0)
+            this.webSocket.loops = Runtime.getRuntime().availableProcessors();
+        this.webSocket.table.add("loops", this.webSocket.loops + " selector loops");
+        this.webSocket.table.add("maxMessageSize", this.webSocket.maxMessageSize + " bytes (Larger messages close the connection)");
+        this.webSocket.table.add("pingInterval", this.webSocket.pingInterval > 0 ? "Ping after " + this.webSocket.pingInterval + " idle milliseconds" : "Disabled");
+        this.webSocket.table.add("pingTimeout", "Close if no pong after " + this.webSocket.pingTimeout + " milliseconds");
+        this.webSocket.deflate.table.add("minSize", this.webSocket.deflate.minSize + " bytes (Smaller messages are sent as they are)");
+        this.webSocket.deflate.table.add("level", this.webSocket.deflate.level + " (1 is the fastest, 9 the smallest)");
+        this.webSocket.deflate.table.add("serverNoContextTakeover", this.webSocket.deflate.serverNoContextTakeover ? "true (Every message is compressed on its own, idle connections hold no deflater)" : "false");
+        this.webSocket.table.add("deflate", this.webSocket.deflate.table.toString());
+        if(this.webSocket.outbound.capacity <= 0)
+            this.webSocket.outbound.capacity = 1024;
+        if(this.webSocket.outbound.lowWatermark > this.webSocket.outbound.highWatermark)
+            this.webSocket.outbound.lowWatermark = this.webSocket.outbound.highWatermark;
+        switch(this.webSocket.outbound.policy){
+            case WebSocket.Outbound.POLICY_DROP_OLDEST:
+            case WebSocket.Outbound.POLICY_DROP_NEWEST:
+                break;
+            default:
+                this.webSocket.outbound.policy = WebSocket.Outbound.POLICY_DISCONNECT;
+        }
+        this.webSocket.outbound.table.add("capacity", this.webSocket.outbound.capacity + " messages");
+        this.webSocket.outbound.table.add("highWatermark", this.webSocket.outbound.highWatermark + " bytes (The client is too slow past this point)");
+        this.webSocket.outbound.table.add("lowWatermark", this.webSocket.outbound.lowWatermark + " bytes (The client is writable again below this point)");
+        this.webSocket.outbound.table.add("policy", this.webSocket.outbound.policy);
+        this.webSocket.table.add("outbound", this.webSocket.outbound.table.toString());
 
         if (source.has("http")) {
             el = source.get("http");
@@ -407,10 +728,58 @@ public class Configuration {
                 obj = el.getAsJsonObject();
                 if (obj.has("mtu"))
                     this.http.mtu = obj.get("mtu").getAsInt();
+                if (obj.has("maxHeadSize"))
+                    this.http.maxHeadSize = obj.get("maxHeadSize").getAsInt();
+                if (obj.has("maxHeaders"))
+                    this.http.maxHeaders = obj.get("maxHeaders").getAsInt();
+                if (obj.has("maxBodySize"))
+                    this.http.maxBodySize = obj.get("maxBodySize").getAsLong();
+                if (obj.has("streamBody"))
+                    this.http.streamBody = obj.get("streamBody").getAsBoolean();
+                if (obj.has("requestId")) {
+                    el = obj.get("requestId");
+                    if(el.isJsonObject()){
+                        final JsonObject requestIdObject = el.getAsJsonObject();
+                        if (requestIdObject.has("node"))
+                            this.http.requestId.node = requestIdObject.get("node").getAsInt();
+                        if (requestIdObject.has("propagate"))
+                            this.http.requestId.propagate = requestIdObject.get("propagate").getAsBoolean();
+                        if (requestIdObject.has("echo"))
+                            this.http.requestId.echo = requestIdObject.get("echo").getAsBoolean();
+                    }else
+                        System.out.println("http.requestId is not an object.");
+                }
+                if (obj.has("keepAlive")) {
+                    el = obj.get("keepAlive");
+                    if(el.isJsonObject()){
+                        obj = el.getAsJsonObject();
+                        if (obj.has("enabled"))
+                            this.http.keepAlive.enabled = obj.get("enabled").getAsBoolean();
+                        if (obj.has("timeout"))
+                            this.http.keepAlive.timeout = obj.get("timeout").getAsInt();
+                        if (obj.has("max"))
+                            this.http.keepAlive.max = obj.get("max").getAsInt();
+                    }else if(el.isJsonPrimitive())
+                        this.http.keepAlive.enabled = el.getAsBoolean();
+                    else
+                        System.out.println("http.keepAlive is not an object.");
+                }
             }else
                 System.out.println("http is not an object.");
         }
+        this.http.keepAlive.table.add("enabled", this.http.keepAlive.enabled ? "True" : "False");
+        this.http.keepAlive.table.add("timeout", "After " + this.http.keepAlive.timeout + " idle milliseconds");
+        this.http.keepAlive.table.add("max", this.http.keepAlive.max + " requests per connection");
         this.http.table.add("mtu", this.http.mtu + " bytes");
+        this.http.table.add("maxHeadSize", this.http.maxHeadSize + " bytes");
+        this.http.table.add("maxHeaders", this.http.maxHeaders + " header fields");
+        this.http.table.add("maxBodySize", this.http.maxBodySize < 0 ? "Unlimited (Routes can set their own limit, larger requests get 413)" : this.http.maxBodySize + " bytes (Routes can accept larger bodies, larger requests get 413)");
+        this.http.table.add("streamBody", this.http.streamBody ? "True" : "False");
+        this.http.table.add("keepAlive", this.http.keepAlive.table.toString());
+        this.http.requestId.table.add("node", this.http.requestId.node < 0 ? "Random (Set a different node on each server of a cluster)" : "" + this.http.requestId.node);
+        this.http.requestId.table.add("propagate", this.http.requestId.propagate ? "True (Incoming X-Request-Id headers are kept)" : "False");
+        this.http.requestId.table.add("echo", this.http.requestId.echo ? "True (Responses carry the X-Request-Id header, every request makes an id)" : "False (Ids are only made for the handlers that ask for them)");
+        this.http.table.add("requestId", this.http.requestId.table.toString());
 
         if (source.has("entryPoint"))
             this.entryPoint = "/"+source.get("entryPoint").getAsString();
@@ -432,6 +801,11 @@ public class Configuration {
         configurationTable.add("webSocket", this.webSocket.table.toString());
         configurationTable.add("http", "" + this.http.table.toString());
         configurationTable.add("threads", this.threads.table.toString());
+        configurationTable.add("io", this.io.table.toString());
+        configurationTable.add("compress", this.compress.table.toString());
+        configurationTable.add("staticCache", this.staticCache.table.toString());
+        configurationTable.add("bufferPool", this.bufferPool.table.toString());
+        configurationTable.add("admission", this.admission.table.toString());
         configurationTable.add("sendExceptions", this.sendExceptions ? "True" : "False");
         configurationTable.add("responseWrapper", this.responseWrapper ? "True" : "False");
 
@@ -4,8 +4,6 @@ import static com.github.tncrazvan.arcano.SharedObject.NAME_SESSION_ID;
 
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
-import java.net.URLDecoder;
-import java.util.logging.Level;
 
 import com.github.tncrazvan.arcano.http.HttpEventRequest;
 import com.github.tncrazvan.arcano.http.HttpEventResponse;
@@ -30,34 +28,8 @@ public abstract class EventManager{
         this.so = so;
         this.request = new HttpEventRequest(this,reader);
         this.response = new HttpEventResponse(this);
-        this.resolveRequestedUrl();
     }
 
-    private final void resolveRequestedUrl() throws UnsupportedEncodingException {
-        String uri = request.reader.content.headers.getResource();
-        try {
-            uri = URLDecoder.decode(uri, so.config.charset);
-        } catch (final IllegalArgumentException ex) {
-            SharedObject.LOGGER.log(Level.SEVERE, null, ex);
-        }
-
-        String[] tmp, object;
-        final String[] uriParts = uri.split("\\?|\\&", 2);
-
-        if (uriParts.length > 1) {
-            tmp = uriParts[1].split("\\&");
-            for (final String part : tmp) {
-                object = part.split("=", 2);
-                if (object.length > 1) {
-                    request.queryStrings.put(object[0].trim(), object[1]);
-                } else {
-                    request.queryStrings.put(object[0].trim(), "");
-                }
-            }
-        }
-    }
-    
-
     /**
      * Get the Socket connection to the client.
      * 
@@ -2,26 +2,34 @@ package com.github.tncrazvan.arcano;
 
 import static com.github.tncrazvan.arcano.tool.Strings.normalizePathSlashes;
 
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.URLDecoder;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Logger;
 
+import com.github.tncrazvan.arcano.http.HttpAdmission;
+import com.github.tncrazvan.arcano.http.HttpHeadEncoder;
 import com.github.tncrazvan.arcano.http.HttpHeaders;
+import com.github.tncrazvan.arcano.http.HttpRequestIds;
 import com.github.tncrazvan.arcano.http.HttpResponse;
+import com.github.tncrazvan.arcano.http.HttpRouter;
 import com.github.tncrazvan.arcano.http.HttpSessionManager;
+import com.github.tncrazvan.arcano.http.StaticFileCache;
 import com.github.tncrazvan.arcano.tool.Strings;
 import com.github.tncrazvan.arcano.tool.action.HttpEventAction;
 import com.github.tncrazvan.arcano.tool.action.WebSocketEventAction;
 import com.github.tncrazvan.arcano.tool.http.Status;
+import com.github.tncrazvan.arcano.websocket.WebSocketEngine;
 import com.github.tncrazvan.arcano.websocket.WebSocketEvent;
 import com.github.tncrazvan.arcano.websocket.WebSocketEventManager;
 
@@ -35,14 +43,56 @@ public class SharedObject implements Strings{
     //THREADS
     public ThreadPoolExecutor executor = null;
     public ExecutorService service = null;
+    
+    /**
+     * Submit a task to the thread pool defined by the "threads" configuration.
+     * @param task the task to run.
+     */
+    public final void submit(final Runnable task){
+        if (executor == null)
+            service.submit(task);
+        else
+            executor.submit(task);
+    }
+    public HttpAdmission admission = null;
+    //RESPONSE HEADS
+    public HttpHeadEncoder headEncoder = null;
+    //REQUEST IDS
+    public HttpRequestIds requestIds = null;
+
+    /**
+     * Submit the task serving a client, through admission control if it is enabled.
+     * @param client the client.
+     * @param resource the requested resource, or null if it is not known yet.
+     * @param task the task to run.
+     */
+    public final void submit(final Socket client, final String resource, final Runnable task){
+        submit(client, resource, task, null);
+    }
+
+    /**
+     * Submit the task serving a client, through admission control if it is enabled.
+     * @param client the client.
+     * @param resource the requested resource, or null if it is not known yet.
+     * @param task the task to run.
+     * @param onReject runs instead of the task if admission control sheds it. Can be null.
+     */
+    public final void submit(final Socket client, final String resource, final Runnable task, final Runnable onReject){
+        if (admission == null)
+            submit(task);
+        else
+            admission.submit(client, admission.priority(resource), task, onReject);
+    }
     //CONFIGURATION OBJECTS
     public final Configuration config = new Configuration();
+    //STATIC FILES
+    public StaticFileCache staticFileCache = null;
     public static final String NO_COMPRESSION="",DEFLATE="deflate",GZIP="gzip";
     //SYSTEM RUNTIME & PROCESS BUILDERS
     public static final Runtime RUNTIME = Runtime.getRuntime();
     
     public final ConcurrentHashMap<String,WebSocketEventManager> webSocketEventManager = new ConcurrentHashMap<>();
-    public final LinkedList<WebSocketEventManager> oldWebSocketEventManager = new LinkedList();
+    public WebSocketEngine webSocketEngine = null;
     
     public static final ProcessBuilder PROCESS_BUILDER = new ProcessBuilder();
     //ROUTING
@@ -60,6 +110,9 @@ public class SharedObject implements Strings{
         put("PATCH", new HashMap<String,WebObject>(){{}});
     }};
     
+    //HTTP ROUTES COMPILED INTO A TREE, THIS IS WHAT REQUESTS ARE MATCHED AGAINST
+    public final HttpRouter HTTP_ROUTER = new HttpRouter();
+    
     public WebObject SMTP_ROUTE = null;
     
     public final HashMap<String, WebObject> WEB_SOCKET_ROUTES = new HashMap<String,WebObject>(){{}};
@@ -98,25 +151,97 @@ public class SharedObject implements Strings{
         return this;
     }
     public final SharedObject addHttpEventListener(String type, String path,HttpEventAction<?> action){
+        return addHttpEventListener(type, path, -1, action);
+    }
+
+    /**
+     * Add an http route that accepts request bodies up to a given size.<br />
+     * Larger requests are answered with "413 Payload Too Large" before their body is read.
+     * @param type http method, or "*" for every method.
+     * @param path path of the route.
+     * @param maxBodySize maximum size of the request bodies, in bytes. A negative number uses "http.maxBodySize" from the configuration.
+     * @param action the action serving the route.
+     * @return this object.
+     */
+    public final SharedObject addHttpEventListener(String type, String path, long maxBodySize, HttpEventAction<?> action){
         if(type.equals("*")){
             WebObject wo = new WebObject(action,null);
             wo.setPath(path);
+            wo.setMaxBodySize(maxBodySize);
             for (Map.Entry<String, HashMap<String, WebObject>> mtd : HTTP_ROUTES.entrySet()) {
                 mtd.getValue().put(normalizePathSlashes(path), wo);
+                if(!path.equals("@404"))
+                    HTTP_ROUTER.add(mtd.getKey(), normalizePathSlashes(path), wo);
             }
         }else if(HTTP_ROUTES.containsKey(type)){
             WebObject wo = new WebObject(action,null);
             wo.setPath(path);
+            wo.setMaxBodySize(maxBodySize);
             HTTP_ROUTES
                 .get(type)
                     .put(normalizePathSlashes(path), wo);
+            if(!path.equals("@404"))
+                HTTP_ROUTER.add(type, normalizePathSlashes(path), wo);
         }
         return this;
     }
 
+    /**
+     * Get the maximum size of the body of a request, which depends on the route the request will be served by.<br />
+     * This only looks at the head of the request, so it can be checked before the body is read.
+     * @param headers headers of the request.
+     * @return size in bytes, Long.MAX_VALUE if neither the route nor "http.maxBodySize" sets a limit.
+     */
+    public final long getMaxBodySize(final HttpHeaders headers){
+        // a negative "http.maxBodySize" means no limit
+        final long fallback = config.http.maxBodySize < 0 ? Long.MAX_VALUE : config.http.maxBodySize;
+        // without Content-Length or Transfer-Encoding there is no body, so no route needs to be looked up
+        if(headers.get("Content-Length") == null && headers.get("Transfer-Encoding") == null)
+            return fallback;
+        final String resource = headers.getResource();
+        WebObject wo = null;
+        if(resource != null){
+            final int query = Math.min(
+                resource.indexOf('?') < 0 ? resource.length() : resource.indexOf('?'),
+                resource.indexOf('&') < 0 ? resource.length() : resource.indexOf('&')
+            );
+            try{
+                String path = URLDecoder.decode(resource.substring(0, query), config.charset);
+                path = String.join("/", (path.equals("/") ? config.entryPoint : path).split("/"));
+                // the request is counted once, when it is served
+                final HttpRouter.Match match = HTTP_ROUTER.peek(headers.getMethod(), path.equals("") ? "/" : path);
+                if(match != null){
+                    wo = match.getRoute();
+                }else{
+                    final HashMap<String, WebObject> method = HTTP_ROUTES.get(headers.getMethod());
+                    if(method != null)
+                        wo = method.get("@404");
+                }
+            }catch(final IllegalArgumentException | UnsupportedEncodingException ex){
+                wo = null;
+            }
+        }
+        if(wo != null && wo.getMaxBodySize() >= 0)
+            return wo.getMaxBodySize();
+        return fallback;
+    }
+
     public final SharedObject addWebSocketEventListener(String path, WebSocketEventAction action){
+        return addWebSocketEventListener(path, false, action);
+    }
+
+    /**
+     * Add a WebSocket route that can compress its messages.<br />
+     * Compression is negotiated with each client during the handshake, the "webSocket.deflate" configuration sets how it is done.
+     * @param path path of the route.
+     * @param perMessageDeflate true to offer the "permessage-deflate" extension to the clients.
+     * @param action the action serving the route.
+     * @return this object.
+     */
+    public final SharedObject addWebSocketEventListener(String path, boolean perMessageDeflate, WebSocketEventAction action){
         WebObject wo = new WebObject(null, action);
-        WEB_SOCKET_ROUTES.put(path, wo);
+        wo.setPerMessageDeflate(perMessageDeflate);
+        WEB_SOCKET_ROUTES.put(path.equals("@404") ? path : normalizePathSlashes(path), wo);
         return this;
     }
 }
\ No newline at end of file
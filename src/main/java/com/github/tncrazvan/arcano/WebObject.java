@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.github.tncrazvan.arcano.http.HttpRouter;
 import com.github.tncrazvan.arcano.tool.action.HttpEventAction;
 import com.github.tncrazvan.arcano.tool.action.WebSocketEventAction;
 
@@ -18,7 +19,17 @@ public class WebObject {
     private String path;
     private Pattern pattern;
     public final ArrayList<String> paramNames = new ArrayList<>();
+    /**
+     * The values of the path parameters used to be written here by every request matching the route,
+     * so concurrent requests overwrote each other's values. Nothing writes this map anymore, it is always empty.
+     * @deprecated read the path parameters of a request from HttpEventRequest.parameters, 
+     * and the names of the parameters of the route from getParamNames().
+     */
+    @Deprecated
     public final HashMap<String, String> paramMap = new HashMap<>();
+    private String[] names = new String[0];
+    private long maxBodySize = -1;
+    private boolean perMessageDeflate = false;
     
     public WebObject(final HttpEventAction<?> action, final WebSocketEventAction webSocketEventAction) {
         this.httpEventAction = action;
@@ -35,13 +46,63 @@ public class WebObject {
                 paramNames.add(paramName);
             }
         }
+        // a trailing wildcard captures the rest of the path
+        boolean wildcard = path.endsWith("/"+HttpRouter.WILDCARD);
+        if(wildcard){
+            paramNames.add(HttpRouter.WILDCARD);
+            path = path.substring(0, path.length()-HttpRouter.WILDCARD.length());
+        }
         this.pattern = Pattern.compile(
             "^"
             +path
             .replaceAll("\\s*\\{[A-z0-9]+\\}\\s*", "([^\\/]+)")
             .replaceAll("/","\\\\/")
+            +(wildcard?"(.*)":"")
             +"$"
         );
+        this.names = paramNames.toArray(new String[0]);
+    }
+
+    /**
+     * Get the names of the path parameters, in the order they appear in the path.<br />
+     * Values captured by a request are kept by the request itself (see HttpPathParameters),
+     * so a WebObject never changes after the server has started.
+     * @return the names of the parameters.
+     */
+    public final String[] getParamNames(){
+        return names;
+    }
+
+    /**
+     * Set the maximum size of the request bodies this route accepts.
+     * @param maxBodySize size in bytes, a negative number falls back to "http.maxBodySize" in the configuration.
+     */
+    public final void setMaxBodySize(final long maxBodySize){
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Get the maximum size of the request bodies this route accepts.
+     * @return size in bytes, a negative number if the route uses "http.maxBodySize" from the configuration.
+     */
+    public final long getMaxBodySize(){
+        return maxBodySize;
+    }
+
+    /**
+     * Offer the "permessage-deflate" extension to the WebSocket clients of this route.
+     * @param perMessageDeflate true to compress the messages of the clients that support it.
+     */
+    public final void setPerMessageDeflate(final boolean perMessageDeflate){
+        this.perMessageDeflate = perMessageDeflate;
+    }
+
+    /**
+     * Check if the WebSocket clients of this route are offered the "permessage-deflate" extension.
+     * @return true if messages are compressed when the client supports it.
+     */
+    public final boolean isPerMessageDeflate(){
+        return perMessageDeflate;
     }
 
     public final HttpEventAction<?> getHttpEventAction(){
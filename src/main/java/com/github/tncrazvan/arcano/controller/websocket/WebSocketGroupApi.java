@@ -24,9 +24,9 @@ public class WebSocketGroupApi implements WebSocketEventAction{
         //if "ALLOW" is true
         if(e.so.config.webSocket.groups.enabled){ //ws groups are enabled
             //if query "?join" is present in the request URL
-            if(e.request.queryStrings.containsKey("join")){
+            if(e.request.issetQueryString("join")){
                 //use that query value as the group's name
-                groupName = e.request.queryStrings.get("join");
+                groupName = e.request.getQueryString("join");
                 //if the group exists in this controller
                 if(e.GROUP_MANAGER.groupExists(groupName)){
                     //NOTE: GROUP_MANAGER is relative to the controller,
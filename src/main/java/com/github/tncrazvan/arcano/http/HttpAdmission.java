@@ -0,0 +1,399 @@
+package com.github.tncrazvan.arcano.http;
+
+import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_SERVICE_UNAVAILABLE;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.net.ssl.SSLSocket;
+
+import com.github.tncrazvan.arcano.SharedObject;
+
+/**
+ * Limits the work that is handed to the thread pool.<br />
+ * At most "maxInFlight" tasks run at the same time, up to "queue" more tasks wait for a free slot
+ * and any task that waits longer than "queueTimeout" milliseconds, or does not fit in the queue,
+ * is answered with "503 Service Unavailable" and a "Retry-After" header, without ever reaching the pool.<br />
+ * Each task belongs to a priority class:
+ * <ul>
+ * <li>"critical" tasks are never shed, they always run, even over the limit.</li>
+ * <li>"normal" tasks run if there is a free slot, otherwise they wait in the queue.</li>
+ * <li>"low" tasks run only if there is a free slot, they are never queued.</li>
+ * </ul>
+ * Priorities are assigned by path, through the "admission.priority" configuration object.
+ * A path ending with "*" matches every path starting with it, the longest match wins.<br />
+ * In "nio" io mode each request is admitted after its head has been buffered, so its priority is known.
+ * In "blocking" io mode each connection is admitted as soon as it is accepted, before anything has been read,
+ * so its first request is "normal". The thread reading a persistent connection gives its slot back with pause()
+ * while it waits for the next request, and takes one again with resume() once the head of that request has been read,
+ * so idle persistent connections never hold a slot.
+ * @author Razvan Tanase
+ */
+public class HttpAdmission {
+    public static final String PRIORITY_CRITICAL = "critical";
+    public static final String PRIORITY_NORMAL = "normal";
+    public static final String PRIORITY_LOW = "low";
+
+    private static final class Pending {
+        private final Socket client;
+        private final Runnable task;
+        private final Runnable onReject;
+        private final long deadline;
+        // the task only wakes up a thread waiting in resume(), it does not go to the thread pool
+        private final boolean inline;
+
+        private Pending(final Socket client, final Runnable task, final Runnable onReject, final long deadline, final boolean inline) {
+            this.client = client;
+            this.task = task;
+            this.onReject = onReject;
+            this.deadline = deadline;
+            this.inline = inline;
+        }
+    }
+
+    /**
+     * A thread waiting in resume() for a slot.
+     */
+    private static final class Waiter {
+        private static final int WAITING = 0, ADMITTED = 1, REJECTED = 2;
+        private int state = WAITING;
+
+        private synchronized void admit() {
+            state = ADMITTED;
+            notifyAll();
+        }
+
+        private synchronized void reject() {
+            state = REJECTED;
+            notifyAll();
+        }
+    }
+
+    // true while the task running on this thread holds a slot
+    private static final ThreadLocal<Boolean> HELD = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final SharedObject so;
+    private final int maxInFlight;
+    private final int queueSize;
+    private final long queueTimeout;
+    private final byte[] rejection;
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private final ArrayList<String[]> prefixes = new ArrayList<>();
+    private final LongAdder rejected = new LongAdder();
+    private int inFlight = 0;
+
+    public HttpAdmission(final SharedObject so) {
+        this.so = so;
+        this.maxInFlight = so.config.admission.maxInFlight;
+        this.queueSize = so.config.admission.queue;
+        this.queueTimeout = so.config.admission.queueTimeout * 1000000L;
+        this.rejection = (HttpHeaders.response(STATUS_SERVICE_UNAVAILABLE)
+                .set("Content-Length", "0")
+                .set("Retry-After", String.valueOf(so.config.admission.retryAfter))
+                .set("Connection", "close")
+                .toString() + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        for (final Map.Entry<String, String> entry : so.config.admission.priority.entrySet())
+            prefixes.add(new String[] { entry.getKey(), entry.getValue() });
+        // longest paths first, so that the first match is also the most specific one
+        prefixes.sort((a, b) -> b[0].length() - a[0].length());
+    }
+
+    /**
+     * Find the priority class of a request.
+     * @param resource the requested resource, the query string is ignored.
+     * @return the priority class, "normal" if the path has no priority assigned.
+     */
+    public final String priority(final String resource) {
+        if (resource == null || prefixes.isEmpty())
+            return PRIORITY_NORMAL;
+        final int query = resource.indexOf('?');
+        final String path = query < 0 ? resource : resource.substring(0, query);
+        for (final String[] entry : prefixes) {
+            final String key = entry[0];
+            if (key.endsWith("*")) {
+                if (path.regionMatches(true, 0, key, 0, key.length() - 1))
+                    return entry[1];
+            } else if (path.equalsIgnoreCase(key)) {
+                return entry[1];
+            }
+        }
+        return PRIORITY_NORMAL;
+    }
+
+    /**
+     * Run a task on the thread pool, queue it, or reject its client.<br />
+     * This method never blocks on the task, it is meant to be called by acceptors and selector loops.
+     * @param client the connection the task is serving, it is answered and closed if the task is shed.
+     * @param priority priority class of the task.
+     * @param task the task.
+     */
+    public final void submit(final Socket client, final String priority, final Runnable task) {
+        submit(client, priority, task, null);
+    }
+
+    /**
+     * Run a task on the thread pool, queue it, or reject its client.<br />
+     * This method never blocks on the task, it is meant to be called by acceptors and selector loops.
+     * @param client the connection the task is serving, it is answered and closed if the task is shed.
+     * @param priority priority class of the task.
+     * @param task the task.
+     * @param onReject runs instead of the task if the task is shed, to free what was held for it. Can be null.
+     */
+    public final void submit(final Socket client, final String priority, final Runnable task, final Runnable onReject) {
+        final long now = System.nanoTime();
+        final ArrayList<Pending> expired;
+        boolean run = false, reject = false;
+        synchronized (this) {
+            expired = expire(now);
+            if (PRIORITY_CRITICAL.equals(priority) || inFlight < maxInFlight) {
+                inFlight++;
+                run = true;
+            } else if (!PRIORITY_LOW.equals(priority) && queue.size() < queueSize) {
+                queue.add(new Pending(client, task, onReject, now + queueTimeout, false));
+            } else {
+                reject = true;
+            }
+        }
+        reject(expired);
+        if (run)
+            start(task);
+        else if (reject)
+            reject(client, onReject);
+    }
+
+    private void start(final Runnable task) {
+        so.submit(() -> {
+            HELD.set(Boolean.TRUE);
+            try {
+                task.run();
+            } finally {
+                // the task may have ended while paused
+                if (HELD.get())
+                    release();
+                HELD.remove();
+            }
+        });
+    }
+
+    /**
+     * Give back the slot of the task running on this thread, while it waits for something that is not work,
+     * like the next request of a persistent connection.
+     * Does nothing if the thread holds no slot.
+     */
+    public final void pause() {
+        if (!HELD.get())
+            return;
+        HELD.set(Boolean.FALSE);
+        release();
+    }
+
+    /**
+     * Take a slot again for the task running on this thread, after pause().<br />
+     * Unlike submit(), this method blocks: the thread waits in the queue like any other task,
+     * and its client is answered and closed if it is shed.
+     * Returns right away if the thread already holds a slot.
+     * @param client the connection the task is serving.
+     * @param priority priority class of the work the task is about to do.
+     * @return true if the slot has been taken, false if the client has been rejected.
+     */
+    public final boolean resume(final Socket client, final String priority) {
+        if (HELD.get())
+            return true;
+        final long now = System.nanoTime();
+        final long deadline = now + queueTimeout;
+        final Waiter waiter = new Waiter();
+        final ArrayList<Pending> expired;
+        boolean run = false, reject = false;
+        synchronized (this) {
+            expired = expire(now);
+            if (PRIORITY_CRITICAL.equals(priority) || inFlight < maxInFlight) {
+                inFlight++;
+                run = true;
+            } else if (!PRIORITY_LOW.equals(priority) && queue.size() < queueSize) {
+                queue.add(new Pending(client, waiter::admit, waiter::reject, deadline, true));
+            } else {
+                reject = true;
+            }
+        }
+        reject(expired);
+        if (reject) {
+            reject(client, null);
+            return false;
+        }
+        if (!run && !await(waiter, deadline))
+            return false;
+        HELD.set(Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Wait until a queued thread is either admitted or rejected.
+     * Past its deadline the thread expires the queue itself, instead of waiting for someone else to do it.
+     */
+    private boolean await(final Waiter waiter, final long deadline) {
+        boolean interrupted = false;
+        synchronized (waiter) {
+            while (waiter.state == Waiter.WAITING) {
+                final long left = deadline - System.nanoTime();
+                try {
+                    if (left > 0) {
+                        waiter.wait(left / 1000000 + 1);
+                    } else {
+                        // rejects this thread's client, unless another thread is already doing it
+                        sweep();
+                        if (waiter.state == Waiter.WAITING)
+                            waiter.wait(1);
+                    }
+                } catch (final InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return waiter.state == Waiter.ADMITTED;
+    }
+
+    /**
+     * Free the slot of a finished task and hand it to the oldest waiting task that is still within its deadline.
+     */
+    private void release() {
+        final ArrayList<Pending> expired;
+        final ArrayList<Pending> next = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            expired = expire(System.nanoTime());
+            while (inFlight < maxInFlight && !queue.isEmpty()) {
+                next.add(queue.poll());
+                inFlight++;
+            }
+        }
+        reject(expired);
+        for (final Pending pending : next) {
+            if (pending.inline)
+                pending.task.run();
+            else
+                start(pending.task);
+        }
+    }
+
+    /**
+     * Reject the waiting tasks whose deadline has passed.<br />
+     * Deadlines are also checked whenever a task is submitted or finishes,
+     * this method covers the case where neither happens for a while.
+     */
+    public final void sweep() {
+        final ArrayList<Pending> expired;
+        synchronized (this) {
+            expired = expire(System.nanoTime());
+        }
+        reject(expired);
+    }
+
+    /**
+     * Start a thread that calls sweep() every second while the server is listening.<br />
+     * Selector loops sweep on their own, this is for the "blocking" io mode acceptors,
+     * which spend their time waiting in accept() and would leave queued clients waiting past their deadline.
+     */
+    public final void startSweeper() {
+        final Thread sweeper = new Thread(() -> {
+            while (so.config.listen) {
+                try {
+                    Thread.sleep(Math.max(1, Math.min(1000, queueTimeout / 1000000)));
+                } catch (final InterruptedException ex) {
+                    return;
+                }
+                sweep();
+            }
+        }, "HttpAdmissionSweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * Remove the waiting tasks whose deadline has passed, must be called while holding the lock.
+     */
+    private ArrayList<Pending> expire(final long now) {
+        ArrayList<Pending> expired = null;
+        Pending pending;
+        while ((pending = queue.peek()) != null && now - pending.deadline > 0) {
+            queue.poll();
+            if (expired == null)
+                expired = new ArrayList<>();
+            expired.add(pending);
+        }
+        return expired;
+    }
+
+    private void reject(final ArrayList<Pending> expired) {
+        if (expired == null)
+            return;
+        for (final Pending pending : expired)
+            reject(pending.client, pending.onReject);
+    }
+
+    /**
+     * Answer with "503 Service Unavailable" and close the connection.<br />
+     * TLS connections are closed right away, answering them would mean running the handshake on the caller's thread.
+     */
+    private void reject(final Socket client, final Runnable onReject) {
+        rejected.increment();
+        try {
+            if (!(client instanceof SSLSocket)) {
+                final SocketChannel channel = client.getChannel();
+                if (channel != null && !channel.isBlocking()) {
+                    // a single non-blocking write, the response is far smaller than any socket buffer
+                    channel.write(ByteBuffer.wrap(rejection));
+                } else {
+                    final OutputStream output = client.getOutputStream();
+                    output.write(rejection);
+                    output.flush();
+                }
+            }
+        } catch (final IOException ex) {
+            LOGGER.log(Level.FINE, null, ex);
+        } finally {
+            try {
+                client.close();
+            } catch (final IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+            if (onReject != null)
+                onReject.run();
+        }
+    }
+
+    /**
+     * Get the number of tasks currently running.
+     * @return number of tasks.
+     */
+    public final synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Get the number of tasks waiting for a free slot.
+     * @return number of tasks.
+     */
+    public final synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of clients that have been answered with "503 Service Unavailable" so far.
+     * @return number of clients.
+     */
+    public final long getRejected() {
+        return rejected.sum();
+    }
+}
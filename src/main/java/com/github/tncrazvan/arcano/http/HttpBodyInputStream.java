@@ -0,0 +1,157 @@
+package com.github.tncrazvan.arcano.http;
+
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_BAD_REQUEST;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_CONTINUE;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_EXPECTATION_FAILED;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_NOT_IMPLEMENTED;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_PAYLOAD_TOO_LARGE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the body of a request, and nothing more, out of the connection stream.<br />
+ * Subclasses never read past the end of the body, so whatever follows it 
+ * (a pipelined request) is left untouched for the next read.
+ * @author Razvan Tanase
+ */
+public abstract class HttpBodyInputStream extends InputStream {
+    /**
+     * Interim response telling a client that sent "Expect: 100-continue" to go on with the body.
+     */
+    public static final byte[] CONTINUE = ("HTTP/1.1 " + STATUS_CONTINUE + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    protected final InputStream source;
+
+    protected HttpBodyInputStream(final InputStream source) {
+        this.source = source;
+    }
+
+    /**
+     * Check if the whole body has been read.
+     * @return true if the end of the body has been reached, false otherwise.
+     */
+    public abstract boolean isFinished();
+
+    /**
+     * Read the rest of the body into a byte array.
+     * @return the body.
+     * @throws IOException
+     */
+    public byte[] readBody() throws IOException {
+        return readAllBytes();
+    }
+
+    /**
+     * Skip whatever is left of the body, as long as it is not more than the given number of bytes.
+     * @param max maximum number of bytes to skip.
+     * @return true if the end of the body has been reached, false otherwise.
+     * @throws IOException
+     */
+    public final boolean drain(final long max) throws IOException {
+        final byte[] trash = new byte[(int) Math.min(8192, Math.max(1, max))];
+        long skipped = 0;
+        int read;
+        while (!isFinished() && skipped < max && (read = read(trash, 0, (int) Math.min(trash.length, max - skipped))) >= 0)
+            skipped += read;
+        return isFinished();
+    }
+
+    /**
+     * Get a stream over the body of a request.
+     * @param headers headers of the request.
+     * @param source the connection stream, positioned right after the head.
+     * @return the body stream, or null if the request has no body.
+     * @throws InvalidHttpRequestException if the body is announced with invalid or unsupported headers.
+     */
+    public static final HttpBodyInputStream from(final HttpHeaders headers, final InputStream source) throws InvalidHttpRequestException {
+        return from(headers, source, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get a stream over the body of a request, making sure the body is not larger than the route accepts.<br />
+     * A Content-Length over the limit is rejected before a single byte of the body is read,
+     * a chunked body fails with an HttpPayloadTooLargeException as soon as it grows over the limit.
+     * @param headers headers of the request.
+     * @param source the connection stream, positioned right after the head.
+     * @param limit maximum size of the body, in bytes.
+     * @return the body stream, or null if the request has no body.
+     * @throws InvalidHttpRequestException if the body is announced with invalid or unsupported headers, or is too large.
+     */
+    public static final HttpBodyInputStream from(final HttpHeaders headers, final InputStream source, final long limit) throws InvalidHttpRequestException {
+        if (isChunked(headers))
+            return new HttpChunkedInputStream(source, limit);
+        final long length = checkContentLength(headers, limit);
+        if (length > 0)
+            return new HttpFixedLengthInputStream(source, length);
+        return null;
+    }
+
+    /**
+     * Get the Content-Length of a request and make sure it is within a limit.
+     * @param headers headers of the request.
+     * @param limit maximum size of the body, in bytes.
+     * @return the length of the body, 0 if the header is not defined.
+     * @throws InvalidHttpRequestException if the header is not a valid length, or is over the limit.
+     */
+    public static final long checkContentLength(final HttpHeaders headers, final long limit) throws InvalidHttpRequestException {
+        final long length = contentLength(headers);
+        if (length > limit)
+            throw new InvalidHttpRequestException(STATUS_PAYLOAD_TOO_LARGE, "Request body of " + length + " bytes exceeds " + limit + " bytes.");
+        return length;
+    }
+
+    /**
+     * Check if the client is waiting for a "100 Continue" interim response before sending the body.<br />
+     * Only HTTP/1.1 clients can ask for it, and "100-continue" is the only expectation there is.
+     * @param headers headers of the request.
+     * @return true if the client sent "Expect: 100-continue".
+     * @throws InvalidHttpRequestException if the client expects something else.
+     */
+    public static final boolean expectsContinue(final HttpHeaders headers) throws InvalidHttpRequestException {
+        final String expect = headers.get("Expect");
+        if (expect == null)
+            return false;
+        if (!expect.trim().equalsIgnoreCase("100-continue"))
+            throw new InvalidHttpRequestException(STATUS_EXPECTATION_FAILED, "Unsupported expectation " + expect + ".");
+        return "HTTP/1.1".equals(headers.getVersion());
+    }
+
+    /**
+     * Check if the body of a request is sent with the chunked transfer coding.
+     * @param headers headers of the request.
+     * @return true if the body is chunked, false otherwise.
+     * @throws InvalidHttpRequestException if the request uses a transfer coding that is not supported.
+     */
+    public static final boolean isChunked(final HttpHeaders headers) throws InvalidHttpRequestException {
+        final String transferEncoding = headers.get("Transfer-Encoding");
+        if (transferEncoding == null)
+            return false;
+        final String[] codings = transferEncoding.split(",");
+        if (!codings[codings.length - 1].trim().equalsIgnoreCase("chunked"))
+            throw new InvalidHttpRequestException(STATUS_BAD_REQUEST, "Chunked must be the last transfer coding of a request.");
+        if (codings.length > 1)
+            throw new InvalidHttpRequestException(STATUS_NOT_IMPLEMENTED, "Unsupported transfer coding " + transferEncoding + ".");
+        return true;
+    }
+
+    /**
+     * Get the Content-Length of a request.
+     * @param headers headers of the request.
+     * @return the length of the body, 0 if the header is not defined.
+     * @throws InvalidHttpRequestException if the header is not a valid length.
+     */
+    public static final long contentLength(final HttpHeaders headers) throws InvalidHttpRequestException {
+        final String value = headers.get("Content-Length");
+        if (value == null)
+            return 0;
+        try {
+            final long length = Long.parseLong(value);
+            if (length < 0)
+                throw new NumberFormatException();
+            return length;
+        } catch (final NumberFormatException ex) {
+            throw new InvalidHttpRequestException(STATUS_BAD_REQUEST, "Invalid Content-Length " + value + ".");
+        }
+    }
+}
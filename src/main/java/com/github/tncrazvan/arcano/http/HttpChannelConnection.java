@@ -0,0 +1,396 @@
+package com.github.tncrazvan.arcano.http;
+
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_BAD_REQUEST;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_PAYLOAD_TOO_LARGE;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_REQUEST_HEADER_FIELDS_TOO_LARGE;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.ToLongFunction;
+
+import com.github.tncrazvan.arcano.tool.system.BufferPool;
+
+/**
+ * Buffers the bytes of a non-blocking connection until a whole http request
+ * (head and body) is available.<br />
+ * When bodies are streamed the request is considered available as soon as its head is,
+ * the body is then read by the thread pool through a blocking stream.<br />
+ * Bytes are read straight from the channel into a direct buffer leased from the BufferPool,
+ * which grows through the size classes of the pool as needed and goes back to the pool
+ * as soon as the connection has nothing buffered, so idle persistent connections hold no buffer at all.
+ * @author Razvan Tanase
+ */
+public class HttpChannelConnection {
+    private static final int MAX_CHUNK_HEADER = 4096;
+    private final SocketChannel channel;
+    private final int maxHeadSize;
+    private final int maxHeaders;
+    private final boolean streamBody;
+    private final ToLongFunction<HttpHeaders> maxBodySize;
+    private BufferPool.Lease lease = null;
+    private ByteBuffer buffer = null;
+    private byte[] head = new byte[1024];
+    private int position = 0;
+    private int length = 0;
+    private int headEnd = -1;
+    private long bodyEnd = -1;
+    private boolean chunked = false;
+    private int chunkCursor = 0;
+    private long chunkedSize = 0;
+    private long limit = Long.MAX_VALUE;
+    private HttpHeaders headers = null;
+    private long lastActivity = System.currentTimeMillis();
+    private int requests = 0;
+    private InputStream socketInput = null;
+    private HttpRequestReader reader = null;
+
+    /**
+     * Reads buffered bytes first and then the socket, which must be in blocking mode by then.
+     */
+    private final InputStream stream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (position < length)
+                return buffer.get(position++) & 0xff;
+            return socketInput().read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (position < length) {
+                final int n = Math.min(len, length - position);
+                copy(position, b, off, n);
+                position += n;
+                return n;
+            }
+            return socketInput().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return length - position;
+        }
+    };
+
+    /**
+     * @param channel the client channel.
+     * @param maxHeadSize maximum size of a request head.
+     * @param maxHeaders maximum number of header fields.
+     * @param streamBody true if bodies are read by the thread pool instead of being buffered.
+     * @param maxBodySize gives the maximum size of the body of a request, from its head.
+     */
+    public HttpChannelConnection(final SocketChannel channel, final int maxHeadSize, final int maxHeaders, final boolean streamBody, final ToLongFunction<HttpHeaders> maxBodySize) {
+        this.channel = channel;
+        this.maxHeadSize = maxHeadSize;
+        this.maxHeaders = maxHeaders;
+        this.streamBody = streamBody;
+        this.maxBodySize = maxBodySize;
+    }
+
+    public final SocketChannel getChannel() {
+        return channel;
+    }
+
+    public final long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Get the reader that serves the requests of this connection.
+     * @return the reader, or null if no request has been served yet.
+     */
+    final HttpRequestReader getReader() {
+        return reader;
+    }
+
+    final void setReader(final HttpRequestReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Get the number of requests served on this connection so far.
+     * @return number of requests.
+     */
+    public final int getRequests() {
+        return requests;
+    }
+
+    public final void countRequest() {
+        requests++;
+    }
+
+    /**
+     * Get the head of the buffered request.
+     * @return the headers, or null if the head has not been fully received yet.
+     */
+    public final HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    private InputStream socketInput() throws IOException {
+        if (socketInput == null)
+            socketInput = channel.socket().getInputStream();
+        return socketInput;
+    }
+
+    /**
+     * Read whatever is available on the channel.
+     * @return the number of bytes read, or -1 if the client closed the connection.
+     * @throws IOException if the channel cannot be read.
+     * @throws InvalidHttpRequestException if the request is malformed or too large.
+     */
+    public final int read() throws IOException, InvalidHttpRequestException {
+        int total = 0, read;
+        do {
+            if (buffer == null || length == buffer.capacity())
+                reserve(BufferPool.MIN_SIZE);
+            buffer.limit(buffer.capacity()).position(length);
+            read = channel.read(buffer);
+            if (read > 0) {
+                length += read;
+                total += read;
+            }
+        } while (read > 0 && length == buffer.capacity());
+        if (total == 0 && buffer != null && position == length)
+            release();
+        if (read < 0 && total == 0)
+            return -1;
+        if (total > 0) {
+            lastActivity = System.currentTimeMillis();
+            if (headEnd < 0)
+                findHead(total);
+            else if (chunked && bodyEnd < 0)
+                scanChunks();
+        }
+        return total;
+    }
+
+    /**
+     * Make room for at least the given number of bytes after the buffered ones,
+     * moving to a larger buffer when compacting is not enough.
+     */
+    private void reserve(final int size) {
+        if (buffer == null) {
+            lease = BufferPool.lease(size);
+            buffer = lease.buffer();
+            return;
+        }
+        if (length + size <= buffer.capacity())
+            return;
+        compact();
+        if (length + size <= buffer.capacity())
+            return;
+        final BufferPool.Lease larger = BufferPool.lease(Math.max(buffer.capacity() * 2, length + size));
+        buffer.limit(length).position(0);
+        larger.buffer().put(buffer);
+        lease.release();
+        lease = larger;
+        buffer = larger.buffer();
+    }
+
+    /**
+     * Give the buffer back to the pool.<br />
+     * Whatever is still buffered is dropped, this is meant for connections that are idle or being closed.
+     */
+    public final void release() {
+        if (lease == null)
+            return;
+        lease.release();
+        lease = null;
+        buffer = null;
+        position = 0;
+        length = 0;
+    }
+
+    /**
+     * Take the bytes that are buffered and have not been consumed yet.<br />
+     * This is how a connection that switches protocol keeps whatever the client sent right after the request,
+     * it must be done before the buffer is released.
+     * @return the buffered bytes, possibly none.
+     */
+    public final byte[] takeBuffered() {
+        if (buffer == null || position >= length)
+            return new byte[0];
+        final byte[] bytes = copy(position, length);
+        position = length;
+        return bytes;
+    }
+
+    private void copy(final int from, final byte[] destination, final int offset, final int size) {
+        buffer.limit(from + size).position(from);
+        buffer.get(destination, offset, size);
+        // absolute reads are checked against the limit
+        buffer.clear();
+    }
+
+    private byte[] copy(final int from, final int to) {
+        final byte[] bytes = new byte[to - from];
+        copy(from, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Drop the bytes that have already been consumed.
+     */
+    private void compact() {
+        if (position == 0)
+            return;
+        buffer.limit(length).position(position);
+        buffer.compact();
+        length -= position;
+        if (headEnd >= 0) {
+            headEnd -= position;
+            bodyEnd -= bodyEnd >= 0 ? position : 0;
+            chunkCursor -= position;
+        }
+        position = 0;
+    }
+
+    private void findHead(final int appended) throws IOException, InvalidHttpRequestException {
+        final int end = HttpRequestParser.findHeadEnd(buffer, Math.max(position, length - appended - 3), length);
+        if (end < 0) {
+            if (length - position > maxHeadSize)
+                throw new InvalidHttpRequestException(STATUS_REQUEST_HEADER_FIELDS_TOO_LARGE, "Request head exceeds " + maxHeadSize + " bytes.");
+            return;
+        }
+        if (end - position > maxHeadSize)
+            throw new InvalidHttpRequestException(STATUS_REQUEST_HEADER_FIELDS_TOO_LARGE, "Request head exceeds " + maxHeadSize + " bytes.");
+        if (head.length < end - position)
+            head = new byte[Math.max(head.length * 2, end - position)];
+        copy(position, head, 0, end - position);
+        headers = HttpRequestParser.parseHead(head, 0, end - position, maxHeaders);
+        headEnd = end;
+        // the body is checked against the limit of its route before it is buffered
+        limit = maxBodySize.applyAsLong(headers);
+        chunked = HttpBodyInputStream.isChunked(headers);
+        final boolean body;
+        if (chunked) {
+            body = true;
+            chunkCursor = headEnd;
+            chunkedSize = 0;
+            bodyEnd = -1;
+        } else {
+            final long contentLength = HttpBodyInputStream.checkContentLength(headers, limit);
+            if (!streamBody && contentLength > Integer.MAX_VALUE - 8 - headEnd)
+                throw new InvalidHttpRequestException(STATUS_PAYLOAD_TOO_LARGE, "Body of " + contentLength + " bytes cannot be buffered.");
+            body = contentLength > 0;
+            bodyEnd = headEnd + contentLength;
+        }
+        // a client waiting for "100 Continue" has sent nothing past the head yet
+        if (body && HttpBodyInputStream.expectsContinue(headers) && length == headEnd)
+            channel.write(ByteBuffer.wrap(HttpBodyInputStream.CONTINUE));
+        if (chunked && !streamBody)
+            scanChunks();
+    }
+
+    /**
+     * Walk the chunks buffered so far, looking for the last chunk and the end of the trailer section.
+     * Only chunk headers are inspected, chunk data is skipped.
+     */
+    private void scanChunks() throws InvalidHttpRequestException {
+        while (bodyEnd < 0) {
+            final int lineEnd = indexOfLineFeed(chunkCursor);
+            if (lineEnd < 0) {
+                if (length - chunkCursor > MAX_CHUNK_HEADER)
+                    throw new InvalidHttpRequestException(STATUS_BAD_REQUEST, "Chunk header is too long.");
+                return;
+            }
+            final String line = new String(copy(chunkCursor, lineEnd), StandardCharsets.ISO_8859_1).trim();
+            final long size = HttpChunkedInputStream.parseChunkSize(line, 0, line.length());
+            if (size < 0)
+                throw new InvalidHttpRequestException(STATUS_BAD_REQUEST, "Invalid chunk size " + line + ".");
+            chunkedSize += size;
+            if (chunkedSize > limit)
+                throw new InvalidHttpRequestException(STATUS_PAYLOAD_TOO_LARGE, "Request body exceeds " + limit + " bytes.");
+            if (size == 0) {
+                // trailer fields end with an empty line
+                int i = lineEnd + 1, end;
+                while ((end = indexOfLineFeed(i)) >= 0) {
+                    if (end == i || (end == i + 1 && buffer.get(i) == '\r')) {
+                        bodyEnd = end + 1;
+                        return;
+                    }
+                    i = end + 1;
+                }
+                return;
+            }
+            final long next = lineEnd + 1 + size + 2;
+            if (next > Integer.MAX_VALUE - 8)
+                throw new InvalidHttpRequestException(STATUS_PAYLOAD_TOO_LARGE, "Chunked body cannot be buffered.");
+            if (next > length)
+                return;
+            chunkCursor = (int) next;
+        }
+    }
+
+    private int indexOfLineFeed(final int from) {
+        for (int i = from; i < length; i++) {
+            if (buffer.get(i) == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Check if the request can be handed to the thread pool.
+     * @return true if both head and body are available (or just the head when bodies are streamed), false otherwise.
+     */
+    public final boolean isComplete() {
+        return headEnd >= 0 && (streamBody || (bodyEnd >= 0 && length >= bodyEnd));
+    }
+
+    /**
+     * Get the buffered request and keep whatever follows it (pipelined requests) for the next call.<br />
+     * When bodies are streamed the body is left in place and read through the returned content.
+     * @return the request as an HttpContent object.
+     * @throws IOException if a chunked body cannot be decoded.
+     */
+    public final HttpContent pull() throws IOException {
+        final HttpContent content;
+        if (streamBody) {
+            position = headEnd;
+            if (chunked)
+                content = new HttpContent(headers, new HttpChunkedInputStream(stream, limit));
+            else if (bodyEnd > headEnd)
+                content = new HttpContent(headers, new HttpFixedLengthInputStream(stream, bodyEnd - headEnd));
+            else
+                content = new HttpContent(headers, (HttpBodyInputStream) null);
+        } else {
+            final int end = (int) bodyEnd;
+            if (chunked)
+                content = new HttpContent(headers, new HttpChunkedInputStream(new ByteArrayInputStream(copy(headEnd, end))).readBody());
+            else
+                content = new HttpContent(headers, copy(headEnd, end));
+            position = end;
+        }
+        headEnd = -1;
+        bodyEnd = -1;
+        chunked = false;
+        headers = null;
+        lastActivity = System.currentTimeMillis();
+        return content;
+    }
+
+    /**
+     * Look for the next request among the bytes that were left over by pull().
+     * @throws IOException if the channel cannot be written.
+     * @throws InvalidHttpRequestException if the next request is malformed or too large.
+     */
+    public final void resume() throws IOException, InvalidHttpRequestException {
+        if (buffer == null)
+            return;
+        if (position == length) {
+            release();
+            return;
+        }
+        compact();
+        if (headEnd < 0 && length > 0)
+            findHead(length);
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.tncrazvan.arcano.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a body sent with "Transfer-Encoding: chunked".<br />
+ * Chunk extensions and trailer fields are read and discarded.
+ * @author Razvan Tanase
+ */
+public class HttpChunkedInputStream extends HttpBodyInputStream {
+    private long remaining = 0;
+    private boolean finished = false;
+    private boolean started = false;
+    private final StringBuilder line = new StringBuilder();
+    private final long limit;
+    private long size = 0;
+
+    public HttpChunkedInputStream(final InputStream source) {
+        this(source, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param source the connection stream, positioned right after the head.
+     * @param limit maximum size of the decoded body, a larger body fails with an HttpPayloadTooLargeException.
+     */
+    public HttpChunkedInputStream(final InputStream source, final long limit) {
+        super(source);
+        this.limit = limit;
+    }
+
+    @Override
+    public final boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public final int read() throws IOException {
+        if (!nextChunk())
+            return -1;
+        final int b = source.read();
+        if (b < 0)
+            throw new EOFException("Stream ended inside a chunk.");
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public final int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!nextChunk())
+            return -1;
+        final int read = source.read(b, off, (int) Math.min(len, remaining));
+        if (read < 0)
+            throw new EOFException("Stream ended inside a chunk.");
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public final int available() throws IOException {
+        return finished ? 0 : (int) Math.min(remaining, source.available());
+    }
+
+    /**
+     * Move to the next chunk if the current one has been read completely.
+     * @return false if the last chunk has been reached.
+     */
+    private boolean nextChunk() throws IOException {
+        if (finished)
+            return false;
+        if (remaining > 0)
+            return true;
+        // the data of every chunk is followed by CRLF
+        if (started)
+            readLine();
+        started = true;
+        final String line = readLine();
+        remaining = parseChunkSize(line, 0, line.length());
+        if (remaining < 0)
+            throw new IOException("Invalid chunk size " + line + ".");
+        size += remaining;
+        if (size > limit || size < 0)
+            throw new HttpPayloadTooLargeException(limit);
+        if (remaining == 0) {
+            // trailer fields end with an empty line
+            while (!readLine().isEmpty());
+            finished = true;
+            return false;
+        }
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        line.setLength(0);
+        int b;
+        while ((b = source.read()) != '\n') {
+            if (b < 0)
+                throw new EOFException("Stream ended inside a chunk header.");
+            if (b != '\r')
+                line.append((char) b);
+            if (line.length() > 4096)
+                throw new IOException("Chunk header is too long.");
+        }
+        return line.toString();
+    }
+
+    /**
+     * Parse the size of a chunk, ignoring chunk extensions.
+     * @param value the chunk size line.
+     * @param from index of the first character.
+     * @param to index after the last character.
+     * @return the size of the chunk, -1 if the line is not a valid chunk size.
+     */
+    public static final long parseChunkSize(final CharSequence value, final int from, final int to) {
+        long size = 0;
+        int digits = 0;
+        for (int i = from; i < to; i++) {
+            final char c = value.charAt(i);
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                if (c == ';' || c == ' ' || c == '\t')
+                    break;
+                return -1;
+            }
+            if (++digits > 15)
+                return -1;
+            size = (size << 4) | digit;
+        }
+        return digits == 0 ? -1 : size;
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.tncrazvan.arcano.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a response body using "Transfer-Encoding: chunked".<br />
+ * Small writes are collected into a buffer and sent as a single chunk once the buffer fills up
+ * or the stream is flushed, so memory usage does not depend on the size of the body.<br />
+ * The buffer keeps room for the chunk size line and the trailing CRLF around the data,
+ * which means every buffered chunk reaches the socket with a single write.<br />
+ * Closing the stream sends the last chunk, the underlying stream is left open.
+ * @author Razvan Tanase
+ */
+public class HttpChunkedOutputStream extends OutputStream {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    // up to 8 hex digits followed by CRLF
+    private static final int HEAD = 10;
+    // CRLF after the data, followed by the last chunk when the stream is closing
+    private static final int TAIL = CRLF.length + LAST_CHUNK.length;
+    private final OutputStream output;
+    private final byte[] buffer;
+    private final int size;
+    private int count = 0;
+    private boolean closed = false;
+
+    /**
+     * @param output the stream of the connection.
+     * @param size size of the buffer, which is also the size of most chunks.
+     */
+    public HttpChunkedOutputStream(final OutputStream output, final int size) {
+        this.output = output;
+        this.size = size;
+        this.buffer = new byte[HEAD + size + TAIL];
+    }
+
+    @Override
+    public final void write(final int b) throws IOException {
+        ensureOpen();
+        if (count == size)
+            writeBuffer(false);
+        buffer[HEAD + count++] = (byte) b;
+    }
+
+    @Override
+    public final void write(final byte[] b, final int off, final int len) throws IOException {
+        ensureOpen();
+        if (len == 0)
+            return;
+        if (len >= size) {
+            // large writes skip the buffer and become a chunk of their own
+            writeBuffer(false);
+            output.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+            output.write(CRLF);
+            output.write(b, off, len);
+            output.write(CRLF);
+            return;
+        }
+        if (len > size - count)
+            writeBuffer(false);
+        System.arraycopy(b, off, buffer, HEAD + count, len);
+        count += len;
+    }
+
+    /**
+     * Send whatever is buffered as a chunk.
+     */
+    @Override
+    public final void flush() throws IOException {
+        ensureOpen();
+        writeBuffer(false);
+        output.flush();
+    }
+
+    /**
+     * Send the last chunk, which tells the client the body is complete.
+     */
+    @Override
+    public final void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        if (count > 0)
+            writeBuffer(true);
+        else
+            output.write(LAST_CHUNK);
+        output.flush();
+    }
+
+    /**
+     * Check if the last chunk has been sent.
+     * @return true if the stream has been closed, false otherwise.
+     */
+    public final boolean isClosed() {
+        return closed;
+    }
+
+    private void writeBuffer(final boolean last) throws IOException {
+        if (count == 0)
+            return;
+        final String hex = Integer.toHexString(count);
+        final int start = HEAD - hex.length() - CRLF.length;
+        for (int i = 0; i < hex.length(); i++)
+            buffer[start + i] = (byte) hex.charAt(i);
+        buffer[HEAD - 2] = '\r';
+        buffer[HEAD - 1] = '\n';
+        int end = HEAD + count;
+        buffer[end++] = '\r';
+        buffer[end++] = '\n';
+        if (last) {
+            System.arraycopy(LAST_CHUNK, 0, buffer, end, LAST_CHUNK.length);
+            end += LAST_CHUNK.length;
+        }
+        output.write(buffer, start, end - start);
+        count = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Response stream has already been closed.");
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.tncrazvan.arcano.http;
+
+/**
+ * Decides if and how a response is compressed.
+ * @author Razvan Tanase
+ */
+public interface HttpCompression {
+
+    /**
+     * Pick the content coding of a response from the Accept-Encoding header of the request.<br />
+     * The coding with the highest quality value wins, codings with the same quality
+     * follow the order of preference of the server. "q=0" refuses a coding,
+     * "*" stands for any coding the header does not name.
+     * @param acceptEncoding the Accept-Encoding header, can be null.
+     * @param offered the codings the server can use, in order of preference.
+     * @return the content coding, or null if the response should not be compressed.
+     */
+    public static String negotiate(final String acceptEncoding, final String[] offered) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty() || offered.length == 0)
+            return null;
+        String best = null;
+        int bestQuality = 0;
+        for (final String encoding : offered) {
+            final int quality = quality(acceptEncoding, encoding);
+            if (quality > bestQuality) {
+                best = encoding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Find the quality a client gives to a content coding.
+     * @return the quality, from 0 to 1000, 0 if the coding is not accepted.
+     */
+    static int quality(final String header, final String encoding) {
+        int wildcard = 0;
+        final int length = header.length();
+        int start = 0;
+        while (start < length) {
+            int end = header.indexOf(',', start);
+            if (end < 0)
+                end = length;
+            int nameStart = start, nameEnd = header.indexOf(';', start);
+            if (nameEnd < 0 || nameEnd > end)
+                nameEnd = end;
+            while (nameStart < nameEnd && header.charAt(nameStart) <= ' ')
+                nameStart++;
+            while (nameEnd > nameStart && header.charAt(nameEnd - 1) <= ' ')
+                nameEnd--;
+            final int nameLength = nameEnd - nameStart;
+            if (nameLength == encoding.length() && header.regionMatches(true, nameStart, encoding, 0, nameLength))
+                return parseQuality(header, nameEnd, end);
+            if (nameLength == 1 && header.charAt(nameStart) == '*')
+                wildcard = parseQuality(header, nameEnd, end);
+            start = end + 1;
+        }
+        return wildcard;
+    }
+
+    /**
+     * Parse the "q" parameter of an item, qvalues have at most three decimals.
+     */
+    static int parseQuality(final String header, final int from, final int to) {
+        int i = header.indexOf("q=", from);
+        if (i < 0 || i >= to)
+            return 1000;
+        i += 2;
+        int quality = 0, digits = -1;
+        for (; i < to; i++) {
+            final char c = header.charAt(i);
+            if (c == '.') {
+                if (digits >= 0)
+                    break;
+                digits = 0;
+                continue;
+            }
+            if (c < '0' || c > '9')
+                break;
+            if (digits < 0) {
+                quality = quality * 10 + (c - '0');
+            } else if (digits < 3) {
+                quality = quality * 10 + (c - '0');
+                digits++;
+            }
+        }
+        if (digits < 0)
+            digits = 0;
+        for (; digits < 3; digits++)
+            quality *= 10;
+        return Math.min(quality, 1000);
+    }
+
+    /**
+     * Check if a content type is worth compressing.
+     * @param contentType the Content-Type of the response, responses without one are compressed.
+     * @param types allowed media types, an entry ending with "/*" matches every subtype.
+     * @return true if the content type is allowed, false otherwise.
+     */
+    public static boolean isCompressible(final String contentType, final String[] types) {
+        if (contentType == null)
+            return true;
+        int end = contentType.indexOf(';');
+        if (end < 0)
+            end = contentType.length();
+        while (end > 0 && contentType.charAt(end - 1) == ' ')
+            end--;
+        for (final String type : types) {
+            if (type.endsWith("/*")) {
+                if (contentType.regionMatches(true, 0, type, 0, type.length() - 1))
+                    return true;
+            } else if (type.length() == end && contentType.regionMatches(true, 0, type, 0, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
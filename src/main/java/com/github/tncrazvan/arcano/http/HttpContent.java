@@ -5,10 +5,14 @@
  */
 package com.github.tncrazvan.arcano.http;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.HashMap;
 
 /**
@@ -25,6 +29,10 @@ public class HttpContent {
      * Payload of the current request.
      */
     public final byte[] body;
+    /**
+     * Payload of the current request when it is streamed, null otherwise.
+     */
+    private final HttpBodyInputStream stream;
 
     private static final byte[] SEPARATOR = "\r\n\r\n".getBytes();
 
@@ -44,15 +52,66 @@ public class HttpContent {
             throws UnsupportedEncodingException {
         this.headers = headers;
         this.body = content.getBytes("UTF-8");
+        this.stream = null;
     }
     public HttpContent(final HttpHeaders headers, final String content, final String charset)
             throws UnsupportedEncodingException {
         this.headers = headers;
         this.body = content.getBytes(charset);
+        this.stream = null;
     }
     public HttpContent(final HttpHeaders headers, final byte[] content) {
         this.headers = headers;
         this.body = content;
+        this.stream = null;
+    }
+
+    /**
+     * Make a request whose payload is read from the connection as it is consumed,
+     * in which case the body array is empty.
+     * @param headers headers of the request.
+     * @param stream payload of the request, null if the request has no payload.
+     */
+    public HttpContent(final HttpHeaders headers, final HttpBodyInputStream stream) {
+        this.headers = headers;
+        this.body = new byte[0];
+        this.stream = stream;
+    }
+
+    /**
+     * Check if the payload of this request is streamed.
+     * @return true if the payload is streamed, false if it is all in the body array.
+     */
+    public final boolean isStreamed() {
+        return stream != null;
+    }
+
+    /**
+     * Get the payload of the request as a stream.
+     * @return the streamed payload if there is one, otherwise a stream over the body array.
+     */
+    public final InputStream getInputStream() {
+        if (stream != null)
+            return stream;
+        return new ByteArrayInputStream(body);
+    }
+
+    /**
+     * Get the payload of the request as a channel.
+     * @return a channel over getInputStream().
+     */
+    public final ReadableByteChannel getChannel() {
+        return Channels.newChannel(getInputStream());
+    }
+
+    /**
+     * Skip whatever the handler did not read of a streamed payload.
+     * @param max maximum number of bytes to skip.
+     * @return true if the payload has been read completely, false otherwise.
+     * @throws IOException
+     */
+    final boolean finish(final long max) throws IOException {
+        return stream == null || stream.drain(max);
     }
 
     /**
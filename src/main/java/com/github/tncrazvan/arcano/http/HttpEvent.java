@@ -1,17 +1,24 @@
 package com.github.tncrazvan.arcano.http;
 
+import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
 import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_INTERNAL_SERVER_ERROR;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_PARTIAL_CONTENT;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_SUCCESS;
 
+import java.io.File;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.regex.Matcher;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import com.github.tncrazvan.arcano.SharedObject;
 import com.github.tncrazvan.arcano.WebObject;
+import com.github.tncrazvan.arcano.tool.system.ServerFile;
 import com.google.gson.JsonObject;
 
 
@@ -22,13 +29,44 @@ import com.google.gson.JsonObject;
 public class HttpEvent extends HttpEventManager{
     public HttpEvent(HttpRequestReader reader, SharedObject so) throws UnsupportedEncodingException {
         super(reader,so);
-        HttpHeaders headers = HttpHeaders.response();
+        this.response.setHttpHeaders(defaultHeaders(HttpHeaders.response()));
+    }
+
+    /**
+     * Fill response headers with the default headers of the server,
+     * and the id of the request when http.requestId.echo is on, which makes an id for every request.
+     */
+    private HttpHeaders defaultHeaders(final HttpHeaders headers) {
         for (Map.Entry<String, String> entry : so.config.headers.entrySet()) {
             headers.set(entry.getKey(), entry.getValue());
         }
-        this.response.setHttpHeaders(headers);
-        this.request.resolveId();
-        this.request.findLanguages();
+        if (so.config.http.requestId.echo)
+            headers.set(HttpRequestIds.HEADER, request.getRequestId());
+        return headers;
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        this.response.headers.setStatus(STATUS_SUCCESS);
+        defaultHeaders(this.response.headers.clear());
+    }
+
+    /**
+     * Get the event of a connection, ready to serve the request that has just been read.<br />
+     * Each connection makes a single HttpEvent and resets it for every request it serves,
+     * instead of making a new one each time. Handlers must not hold on to the event
+     * once they have returned, it will be serving the next request of the connection.
+     */
+    private static HttpEvent of(final HttpRequestReader reader, final SharedObject so) throws UnsupportedEncodingException {
+        HttpEvent event = reader.event;
+        if (event == null) {
+            event = new HttpEvent(reader, so);
+            reader.event = event;
+        } else {
+            event.reset();
+        }
+        return event;
     }
 
     private void sendHttpResponse(Exception e){
@@ -46,9 +84,12 @@ public class HttpEvent extends HttpEventManager{
     private void sendHttpResponse(HttpResponse response,boolean exception){
         if (response.isRaw()) {
             final Object content = response.getContent();
+            if (content instanceof ServerFile) {
+                pushFile((ServerFile) content);
+                return;
+            }
             final byte[] raw = content == null?new byte[]{}:(byte[])content;
-            this.response.headers.set("Content-Length", raw.length+"");
-            push(raw);
+            pushFixedLength(raw);
         } else {
             final Object content = response.getContent();
             String tmp = content.toString();
@@ -59,11 +100,27 @@ public class HttpEvent extends HttpEventManager{
                 obj.addProperty(exception?"exception":"result", tmp);
                 tmp = obj.toString();
             }
-            //setResponseHeaderField("Content-Length", tmp.length()+"");
-            push(tmp);
+            try {
+                pushFixedLength(tmp.getBytes(so.config.charset));
+            } catch (final UnsupportedEncodingException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
         }
     }
 
+    /**
+     * Status, Content-Type and Content-Range of a file depend on the ranges it has been resolved with.
+     */
+    private void mergeFileHeaders(final HttpHeaders headers){
+        if (STATUS_PARTIAL_CONTENT.equals(headers.getStatus()))
+            this.response.headers.setStatus(STATUS_PARTIAL_CONTENT);
+        if (headers.isDefined("Content-Range"))
+            this.response.headers.set("Content-Range", headers.get("Content-Range"));
+        final String type = headers.get("Content-Type");
+        if (type != null && (!this.response.headers.isDefined("Content-Type") || type.startsWith("multipart/byteranges")))
+            this.response.headers.set("Content-Type", type);
+    }
+
     private final void activateWebObject(final WebObject route){
         try {
             Object result = route.getHttpEventAction().callback(this);
@@ -71,27 +128,41 @@ public class HttpEvent extends HttpEventManager{
             if (result instanceof ShellScript) {
                 final ShellScript script = (ShellScript) result;
                 script.execute(this);
-            }else if (result instanceof Void) {
+            } else if (isStreaming()) {
+                // the body has been written through getResponseStream(), the result is ignored
+            } else if (result instanceof InputStream) {
+                push((InputStream) result);
+            } else if (result instanceof Iterator) {
+                push((Iterator<?>) result);
+            } else if (result instanceof Supplier) {
+                push((Supplier<?>) result);
+            } else if (result instanceof Void) {
                 sendHttpResponse(SharedObject.HTTP_RESPONSE_EMPTY);
             } else if (result instanceof HttpResponse) {
                 final HttpResponse response = (HttpResponse) result;
                 response.resolve();
-                final HashMap<String, String> localHeaders = response.getHashMapHeaders();
-                this.response.headers.setStatus(response.getHttpHeaders().getStatus());
+                final HttpHeaders localHeaders = response.getHttpHeaders();
                 if (localHeaders != null) {
-                    localHeaders.forEach((key, header) -> {
-                        this.response.headers.set(key, header);
-                    });
+                    this.response.headers.setStatus(localHeaders.getStatus());
+                    this.response.headers.setAll(localHeaders);
                 }
                 sendHttpResponse(response);
             } else {
                 // if it's some other type of object...
                 final HttpResponse response = new HttpResponse(result == null ? "" : result);
                 response.resolve();
+                if (result instanceof File)
+                    mergeFileHeaders(response.getHttpHeaders());
                 sendHttpResponse(response);
             }
+            closeResponseStream();
         } catch (final Exception  e) {
             e.printStackTrace();
+            if (isStreaming()) {
+                // the headers are gone already, the client can only be told by dropping the connection
+                abortResponseStream();
+                return;
+            }
             this.response.headers.setStatus(STATUS_INTERNAL_SERVER_ERROR);
             if (so.config.sendExceptions) {
                 sendHttpResponse(e);
@@ -102,7 +173,7 @@ public class HttpEvent extends HttpEventManager{
     
     private static HttpEvent instantPackStatus(HttpRequestReader reader,SharedObject so,String status,String message)
             throws UnsupportedEncodingException {
-        HttpEvent event = new HttpEvent(reader,so);
+        HttpEvent event = of(reader,so);
         event.response.headers.setStatus(status);
         event.push(message);
         return event;
@@ -114,39 +185,18 @@ public class HttpEvent extends HttpEventManager{
         String type = reader.content.headers.getMethod();
         HashMap<String, WebObject> method = so.HTTP_ROUTES.get(type);
  
-        String path = String.join("/", reader.location).toLowerCase();
+        String path = String.join("/", reader.location);
         if(path.equals(""))
             path="/";
-        if(method != null){
-            WebObject wo = null;
-            for(Entry<String,WebObject> item : method.entrySet()){
-                if(wo != null) break;
-                Matcher matcher = item.getValue().getPattern().matcher(path);
-                if(wo == null && matcher.find()){
-                    int len = matcher.groupCount();
-                    if(len != item.getValue().paramNames.size()){
-                        //Number of parameters don't match!
-                        continue;
-                    }
-                    if(wo == null){
-                        wo = method.get(item.getValue().getPath());
-                        if(len >= 1)
-                            for(int j = 1; j <= len; j++){
-                                String group = matcher.group(j);
-                                wo.paramMap.put(wo.paramNames.get(j-1), group);
-                            }
-                    }
-                }
-            }
-            
-            //If resource has been found...
-            if(wo != null){
-                //..try to serve it
-                HttpEvent event = new HttpEvent(reader,so);
-                event.request.parameters = wo.paramMap;
-                event.activateWebObject(wo);
-                return;
-            }
+        final HttpRouter.Match match = so.HTTP_ROUTER.find(type, path);
+        //If resource has been found...
+        if(match != null){
+            final WebObject wo = match.getRoute();
+            //..try to serve it
+            HttpEvent event = of(reader,so);
+            event.request.parameters = match.getParameters();
+            event.activateWebObject(wo);
+            return;
         }
         
         if(method != null){
@@ -154,7 +204,7 @@ public class HttpEvent extends HttpEventManager{
             //If resource has been found...
             if(wo != null){
                 //..try to serve it
-                HttpEvent event = new HttpEvent(reader,so);
+                HttpEvent event = of(reader,so);
                 event.activateWebObject(wo);
                 return;
             }
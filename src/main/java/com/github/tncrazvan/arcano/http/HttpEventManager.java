@@ -1,28 +1,38 @@
 package com.github.tncrazvan.arcano.http;
 
-import static com.github.tncrazvan.arcano.SharedObject.DEFLATE;
-import static com.github.tncrazvan.arcano.SharedObject.GZIP;
 import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
-import static com.github.tncrazvan.arcano.tool.http.ContentType.resolveContentType;
-import static com.github.tncrazvan.arcano.tool.http.MultipartFormData.generateMultipartBoundary;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_NOT_MODIFIED;
 import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_PARTIAL_CONTENT;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_RANGE_NOT_SATISFIABLE;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_SUCCESS;
 
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 import com.github.tncrazvan.arcano.EventManager;
 import com.github.tncrazvan.arcano.SharedObject;
 import com.github.tncrazvan.arcano.tool.Strings;
-import com.github.tncrazvan.arcano.tool.compression.Deflate;
-import com.github.tncrazvan.arcano.tool.compression.Gzip;
+import com.github.tncrazvan.arcano.tool.compression.CompressionCodecs;
 import com.github.tncrazvan.arcano.tool.http.Status;
+import com.github.tncrazvan.arcano.tool.system.BufferPool;
+import com.github.tncrazvan.arcano.tool.system.ServerFile;
 import com.github.tncrazvan.arcano.tool.security.JwtMessage;
 import com.google.gson.JsonObject;
 
@@ -35,22 +45,30 @@ public abstract class HttpEventManager extends EventManager implements HttpEvent
     private boolean defaultHeaders=true;
     private boolean alive=true;
     protected boolean isDir = false;
+    private static final String[] NO_SIBLINGS = new String[0];
     private String acceptEncoding;
-    private String encodingLabel;
 
 
     public HttpEventManager(HttpRequestReader reader, SharedObject so) throws UnsupportedEncodingException {
         super(reader, so);
-        if (this.request.reader.content.headers.isDefined("Accept-Encoding")) {
-            acceptEncoding = this.request.reader.content.headers.get("Accept-Encoding");
-            encodingLabel = "Content-Encoding";
-        } else if (this.request.reader.content.headers.isDefined("Transfer-Encoding")) {
-            acceptEncoding = this.request.reader.content.headers.get("Transfer-Encoding");
-            encodingLabel = "Transfer-Encoding";
-        } else {
-            acceptEncoding = "";
-            encodingLabel = "";
-        }
+        acceptEncoding = this.request.reader.content.headers.get("Accept-Encoding");
+    }
+
+    /**
+     * Get this event ready to serve the next request of the same connection.<br />
+     * Everything that belongs to the previous request and response is forgotten,
+     * subclasses that keep state of their own must reset it too.
+     */
+    protected void reset() {
+        request.reset();
+        session = null;
+        defaultHeaders = true;
+        alive = true;
+        isDir = false;
+        firstMessage = true;
+        responseStream = null;
+        responseWriter = null;
+        acceptEncoding = this.request.reader.content.headers.get("Accept-Encoding");
     }
 
     /**
@@ -66,20 +84,64 @@ public abstract class HttpEventManager extends EventManager implements HttpEvent
     }
 
     private boolean firstMessage = true;
+    // bodies up to this size are copied next to the head and sent with it
+    private static final int SMALL_BODY = 16 * 1024;
 
     public final void sendHeaders() {
-        firstMessage = false;
         try {
-            String headers = response.headers.toString();
-            request.reader.output.write((headers + "\r\n").getBytes(so.config.charset));
-            request.reader.output.flush();
-            alive = true;
+            sendHeaders(null);
         } catch (final IOException ex) {
             ex.printStackTrace(System.out);
             alive = false;
             close();
         }
     }
+
+    /**
+     * Send the headers, followed by the whole body of the response if it is small enough.<br />
+     * Small bodies are appended to the encoded head, so that the whole response is a single write,
+     * larger bodies follow the head through a gathering write when the socket has a plain channel.
+     * 
+     * @param body the body of the response, or null if it will be sent later.
+     * @throws IOException if the client disconnects.
+     */
+    private void sendHeaders(final byte[] body) throws IOException {
+        firstMessage = false;
+        negotiateConnection();
+        final HttpHeadEncoder.Head head = so.headEncoder.encode(response.headers);
+        final SocketChannel channel = request.reader.client.getChannel();
+        if (body == null || body.length == 0) {
+            request.reader.output.write(head.getBytes(), 0, head.getLength());
+        } else if (body.length <= SMALL_BODY) {
+            head.append(body, 0, body.length);
+            request.reader.output.write(head.getBytes(), 0, head.getLength());
+        } else if (channel != null && request.reader.secureClient == null) {
+            final ByteBuffer[] buffers = { ByteBuffer.wrap(head.getBytes(), 0, head.getLength()), ByteBuffer.wrap(body) };
+            while (buffers[1].hasRemaining())
+                channel.write(buffers);
+        } else {
+            request.reader.output.write(head.getBytes(), 0, head.getLength());
+            request.reader.output.write(body);
+        }
+        request.reader.output.flush();
+        alive = true;
+    }
+    /**
+     * The connection can only stay open if the client knows where the response ends,
+     * so persistent connections require a Content-Length header or a chunked body 
+     * (or a status that never has a body).
+     */
+    private void negotiateConnection() {
+        if (request.reader.isKeepAlive() && (response.headers.isDefined("Content-Length") 
+                || "chunked".equals(response.headers.get("Transfer-Encoding"))
+                || STATUS_NOT_MODIFIED.equals(response.headers.getStatus()))) {
+            response.headers.set("Connection", "keep-alive");
+        } else {
+            request.reader.setKeepAlive(false);
+            response.headers.set("Connection", "close");
+        }
+    }
+
     private final LinkedList<HttpResponse> commits = new LinkedList<>();
     
     public LinkedList<HttpResponse> getCommits(){
@@ -135,30 +197,7 @@ public abstract class HttpEventManager extends EventManager implements HttpEvent
     public final void push(byte[] data, boolean includeHeaders) {
         if (alive) {
             try {
-                for (final String cmpr : so.config.compression) {
-                    switch (cmpr) {
-                    case DEFLATE:
-                        if (acceptEncoding.matches(".+" + cmpr + ".*")) {
-                            data = Deflate.deflate(data);
-                            this.response.headers.set(encodingLabel, cmpr);
-                            break;
-                        }
-                        break;
-                    case GZIP:
-                        if (acceptEncoding.matches(".+" + cmpr + ".*")) {
-                            data = Gzip.compress(data);
-                            this.response.headers.set(encodingLabel, cmpr);
-                            break;
-                        }
-                        break;
-                    }
-                }
-                if (includeHeaders && firstMessage && defaultHeaders)
-                    sendHeaders();
-                
-                request.reader.output.write(data);
-                request.reader.output.flush();
-                alive = true;
+                write(encode(data), includeHeaders);
             } catch (final IOException ex) {
                 ex.printStackTrace(System.out);
                 alive = false;
@@ -167,6 +206,247 @@ public abstract class HttpEventManager extends EventManager implements HttpEvent
         }
     }
 
+    /**
+     * Send data to the client along with a Content-Length header that matches 
+     * the data as it will be written (after compression).<br />
+     * This is what allows the connection to stay open after the response.
+     * 
+     * @param data data to be sent.
+     */
+    protected final void pushFixedLength(byte[] data) {
+        pushFixedLength(data, true);
+    }
+
+    /**
+     * Send data to the client along with a Content-Length header.
+     * 
+     * @param data data to be sent.
+     * @param encode if false the data is sent as is, because it has already been compressed or must not be.
+     */
+    protected final void pushFixedLength(byte[] data, final boolean encode) {
+        if (alive) {
+            try {
+                if (encode)
+                    data = encode(data);
+                if (firstMessage)
+                    response.headers.set("Content-Length", data.length + "");
+                write(data, true);
+            } catch (final IOException ex) {
+                ex.printStackTrace(System.out);
+                alive = false;
+                close();
+            }
+        }
+    }
+
+    /**
+     * Compress a payload that is about to be sent, if the client accepts it and it is worth it.<br />
+     * Once the headers are gone the payload is sent as it is, there would be no way to tell the client.
+     */
+    private byte[] encode(final byte[] data) throws IOException {
+        if (!firstMessage || !defaultHeaders)
+            return data;
+        final String encoding = negotiateEncoding(data.length);
+        if (encoding == null)
+            return data;
+        final byte[] compressed = CompressionCodecs.get(encoding).compress(data, so.config.compress.level);
+        if (compressed.length >= data.length)
+            return data;
+        response.headers.set("Content-Encoding", encoding);
+        return compressed;
+    }
+
+    /**
+     * Pick the content coding of the response.<br />
+     * Whenever the response could be compressed, "Vary: Accept-Encoding" is added,
+     * so that caches do not hand a compressed response to clients that cannot read it (or the other way around).
+     * 
+     * @param length length of the payload, -1 if it is not known (streamed responses).
+     * @return the content coding, or null if the response must be sent as it is.
+     */
+    private String negotiateEncoding(final long length) {
+        if (so.config.compress.encoders.length == 0 || response.headers.isDefined("Content-Encoding"))
+            return null;
+        if (length >= 0 && length < so.config.compress.minSize)
+            return null;
+        if (!HttpCompression.isCompressible(response.headers.get("Content-Type"), so.config.compress.types))
+            return null;
+        addVary("Accept-Encoding");
+        return HttpCompression.negotiate(acceptEncoding, so.config.compress.encoders);
+    }
+
+    /**
+     * Add a request header to the Vary header of the response, unless it is there already.
+     */
+    private void addVary(final String name) {
+        for (final String vary : response.headers.getAll("Vary")) {
+            for (final String item : vary.split(",")) {
+                if (item.trim().equalsIgnoreCase(name) || item.trim().equals("*"))
+                    return;
+            }
+        }
+        response.headers.add("Vary", name);
+    }
+
+    private void write(final byte[] data, final boolean includeHeaders) throws IOException {
+        if (includeHeaders && firstMessage && defaultHeaders) {
+            sendHeaders(data);
+            return;
+        }
+        // a body without headers sent by the server cannot be delimited
+        if (firstMessage)
+            request.reader.setKeepAlive(false);
+        
+        request.reader.output.write(data);
+        request.reader.output.flush();
+        alive = true;
+    }
+
+    private OutputStream responseStream = null;
+    private Writer responseWriter = null;
+
+    /**
+     * Get a stream to write the body of the response to, while it is being produced.<br />
+     * The first time this method is called the headers are sent, so they must be set before that.<br />
+     * HTTP/1.1 clients receive the body with "Transfer-Encoding: chunked", which keeps the connection reusable,
+     * HTTP/1.0 clients receive it as is and the connection is closed once the response ends.<br />
+     * The stream is closed by the server after the HttpEvent has been served.
+     * 
+     * @return the response stream.
+     * @throws IOException if the headers have already been sent without this method.
+     */
+    public final OutputStream getResponseStream() throws IOException {
+        if (responseStream != null)
+            return responseStream;
+        if (!firstMessage)
+            throw new IOException("The response has already been started.");
+        final boolean chunked = defaultHeaders && "HTTP/1.1".equals(request.reader.content.headers.getVersion());
+        final String encoding = defaultHeaders ? negotiateEncoding(-1) : null;
+        if (defaultHeaders) {
+            response.headers.remove("Content-Length");
+            if (!response.headers.isDefined("Content-Type"))
+                response.headers.set("Content-Type", "application/octet-stream");
+            if (chunked)
+                response.headers.set("Transfer-Encoding", "chunked");
+            if (encoding != null)
+                response.headers.set("Content-Encoding", encoding);
+            sendHeaders();
+        }
+        firstMessage = false;
+        OutputStream stream = request.reader.output;
+        if (chunked)
+            stream = new HttpChunkedOutputStream(stream, so.config.http.mtu);
+        else
+            request.reader.setKeepAlive(false);
+        if (encoding != null)
+            stream = CompressionCodecs.get(encoding).newOutputStream(stream, so.config.compress.level, so.config.http.mtu);
+        responseStream = stream;
+        return responseStream;
+    }
+
+    /**
+     * Get a writer for the body of the response, using the configured charset.<br />
+     * Works exactly like getResponseStream().
+     * 
+     * @return the response writer.
+     * @throws IOException if the headers have already been sent without this method.
+     */
+    public final Writer getResponseWriter() throws IOException {
+        if (responseWriter == null)
+            responseWriter = new OutputStreamWriter(getResponseStream(), so.config.charset);
+        return responseWriter;
+    }
+
+    /**
+     * Check if the body of the response is being written through getResponseStream().
+     * 
+     * @return true if the response stream has been requested, false otherwise.
+     */
+    public final boolean isStreaming() {
+        return responseStream != null;
+    }
+
+    /**
+     * End the response stream, if there is one, sending whatever is left of the body.
+     */
+    protected final void closeResponseStream() {
+        if (responseStream == null)
+            return;
+        try {
+            if (responseWriter != null)
+                responseWriter.flush();
+            responseStream.close();
+        } catch (final IOException ex) {
+            abortResponseStream();
+        }
+    }
+
+    /**
+     * Drop the connection in the middle of a streamed response.<br />
+     * This is the only way to tell the client the body is incomplete once the headers have been sent.
+     */
+    protected final void abortResponseStream() {
+        alive = false;
+        request.reader.setKeepAlive(false);
+        close();
+    }
+
+    /**
+     * Send the contents of a stream to the client as they are read, the stream is closed afterwards.
+     * 
+     * @param data data to be sent.
+     */
+    public final void push(final InputStream data) {
+        try (InputStream input = data) {
+            input.transferTo(getResponseStream());
+        } catch (final IOException ex) {
+            abortResponseStream();
+        }
+    }
+
+    /**
+     * Send every element of an iterator to the client as soon as it is produced.<br />
+     * Elements can be byte arrays or any other object, which will be sent as a String.
+     * 
+     * @param data data to be sent.
+     */
+    public final void push(final Iterator<?> data) {
+        try {
+            final OutputStream output = getResponseStream();
+            while (data.hasNext())
+                writeElement(output, data.next());
+        } catch (final IOException ex) {
+            abortResponseStream();
+        }
+    }
+
+    /**
+     * Send the elements of a generator to the client as soon as they are produced, 
+     * until the generator returns null.<br />
+     * Elements can be byte arrays or any other object, which will be sent as a String.
+     * 
+     * @param data data to be sent.
+     */
+    public final void push(final Supplier<?> data) {
+        try {
+            final OutputStream output = getResponseStream();
+            Object element;
+            while ((element = data.get()) != null)
+                writeElement(output, element);
+        } catch (final IOException ex) {
+            abortResponseStream();
+        }
+    }
+
+    private void writeElement(final OutputStream output, final Object element) throws IOException {
+        if (element == null)
+            return;
+        if (element instanceof byte[])
+            output.write((byte[]) element);
+        else
+            output.write(String.valueOf(element).getBytes(so.config.charset));
+    }
+
     public final void flushHeaders() {
         flush();
     }
@@ -278,6 +558,255 @@ public abstract class HttpEventManager extends EventManager implements HttpEvent
         defaultHeaders = true;
     }
 
+    /**
+     * Send a portion of a file to the client.<br />
+     * Plain connections hand the file to the socket through FileChannel.transferTo, 
+     * which lets the operating system copy the bytes without moving them through the heap.
+     * Secure connections cannot do that, so the file is copied through a temporary direct buffer instead.
+     * 
+     * @param file the file to read from.
+     * @param position offset of the first byte to send.
+     * @param count number of bytes to send.
+     * @throws IOException if the file cannot be read or the client disconnects.
+     */
+    protected final void transfer(final FileChannel file, long position, long count) throws IOException {
+        final SocketChannel channel = request.reader.client.getChannel();
+        final WritableByteChannel target = channel != null && request.reader.secureClient == null
+                ? channel
+                : Channels.newChannel(request.reader.output);
+        while (count > 0) {
+            final long sent = file.transferTo(position, count, target);
+            if (sent <= 0) {
+                // the file has been truncated since it was measured
+                if (position >= file.size())
+                    throw new EOFException("File ended before " + count + " more bytes could be sent.");
+                // transferTo makes no progress on a stalled socket, a blocking copy waits for it instead of spinning
+                copy(file, position, count);
+                return;
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+
+    /**
+     * Send a portion of a file to the client through a pooled buffer and the output stream of the connection.
+     * 
+     * @param file the file to read from.
+     * @param position offset of the first byte to send.
+     * @param count number of bytes to send.
+     * @throws IOException if the file cannot be read, ends too early, or the client disconnects.
+     */
+    private void copy(final FileChannel file, long position, long count) throws IOException {
+        final WritableByteChannel target = Channels.newChannel(request.reader.output);
+        final BufferPool.Lease lease = BufferPool.lease((int) Math.min(count, so.config.http.mtu));
+        try {
+            final ByteBuffer buffer = lease.buffer();
+            while (count > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count));
+                final int read = file.read(buffer, position);
+                if (read < 0)
+                    throw new EOFException("File ended before " + count + " more bytes could be sent.");
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    target.write(buffer);
+                position += read;
+                count -= read;
+            }
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Send a file to the client along with a Content-Length header, which keeps the connection reusable.<br />
+     * Whole files are validated with ETag and Last-Modified and served from the StaticFileCache when it is enabled.<br />
+     * The ranges to send are the ones of the file, if the controller has set any, otherwise the ones
+     * asked for by the "Range" header of a GET request (as long as "If-Range" still matches the file).
+     * A single range is sent as it is, multiple ranges as a "multipart/byteranges" body, both straight
+     * from the file system. Ranges that all fall outside of the file are answered with "416 Range Not Satisfiable".
+     * 
+     * @param file file to be sent.
+     */
+    protected final void pushFile(final ServerFile file) {
+        if (!alive)
+            return;
+        final HttpRanges ranges = resolveRanges(file);
+        if (ranges == null) {
+            try {
+                if (pushStatic(file))
+                    return;
+            } catch (final IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+            pushChannel(file, 0, -1);
+            return;
+        }
+        if (!ranges.isSatisfiable()) {
+            response.headers.setStatus(STATUS_RANGE_NOT_SATISFIABLE);
+            response.headers.set("Content-Range", HttpRanges.getUnsatisfiedRange(ranges.getFileLength()));
+            pushFixedLength(new byte[0], false);
+            return;
+        }
+        response.headers.setStatus(STATUS_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            response.headers.set("Content-Range", ranges.getContentRange(0));
+            pushChannel(file, ranges.getStart(0), ranges.getLength(0));
+        } else {
+            pushMultipart(file, ranges);
+        }
+    }
+
+    /**
+     * Find the ranges of a file to send.
+     * 
+     * @param file the file.
+     * @return the ranges, or null if the whole file must be sent.
+     */
+    private HttpRanges resolveRanges(final ServerFile file) {
+        if (!file.getRanges().isEmpty())
+            return HttpRanges.of(file.getRanges(), file.length());
+        final HttpHeaders headers = request.reader.content.headers;
+        final String range = headers.get("Range");
+        if (range == null || !"GET".equals(headers.getMethod()))
+            return null;
+        // error pages and redirects are never partial
+        final String status = response.headers.getStatus();
+        if (status != null && !STATUS_SUCCESS.equals(status))
+            return null;
+        if (!file.isFile())
+            return null;
+        final long length = file.length(), lastModified = file.lastModified();
+        if (!StaticFileCache.isRangeValid(headers.get("If-Range"), StaticFileCache.etag(length, lastModified), lastModified))
+            return null;
+        return HttpRanges.parse(range, length);
+    }
+
+    /**
+     * Send a file, or a range of it, to the client along with a Content-Length header.
+     * 
+     * @param file file to be sent.
+     * @param start first byte to send.
+     * @param length number of bytes to send, -1 to send the rest of the file.
+     */
+    private void pushChannel(final File file, final long start, long length) {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (length < 0)
+                length = fc.size() - start;
+            if (firstMessage && defaultHeaders) {
+                response.headers.set("Content-Length", "" + length);
+                sendHeaders();
+            }
+            // a body without headers sent by the server cannot be delimited
+            if (firstMessage)
+                request.reader.setKeepAlive(false);
+            transfer(fc, start, length);
+            request.reader.output.flush();
+        } catch (final IOException ex) {
+            alive = false;
+            request.reader.setKeepAlive(false);
+            close();
+        }
+    }
+
+    /**
+     * Send multiple ranges of a file as a "multipart/byteranges" body.<br />
+     * The length of the body is known in advance, so the connection stays reusable,
+     * and each part is sent straight from the file system.
+     * 
+     * @param file file to be sent.
+     * @param ranges ranges to send.
+     */
+    private void pushMultipart(final ServerFile file, final HttpRanges ranges) {
+        final String boundary = file.getMultipartBoundary();
+        String type = response.headers.get("Content-Type");
+        if (type == null || type.startsWith("multipart/byteranges"))
+            type = file.getContentType();
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (firstMessage && defaultHeaders) {
+                response.headers.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+                response.headers.set("Content-Length", "" + ranges.getMultipartLength(boundary, type));
+                sendHeaders();
+            }
+            // a body without headers sent by the server cannot be delimited
+            if (firstMessage)
+                request.reader.setKeepAlive(false);
+            for (int i = 0; i < ranges.size(); i++) {
+                request.reader.output.write(ranges.getPartHead(i, boundary, type));
+                // the part head must reach the socket before the file is transferred past the stream
+                request.reader.output.flush();
+                transfer(fc, ranges.getStart(i), ranges.getLength(i));
+            }
+            request.reader.output.write(HttpRanges.getMultipartTail(boundary));
+            request.reader.output.flush();
+        } catch (final IOException ex) {
+            alive = false;
+            request.reader.setKeepAlive(false);
+            close();
+        }
+    }
+
+    /**
+     * Answer a request for a whole file from the StaticFileCache, or with 304 Not Modified 
+     * if the client already has the file. Only "200 OK" responses carry validators and can become 304.
+     * 
+     * @param file the file to send.
+     * @return true if the response has been sent, false if the file must be sent from the file system.
+     * @throws IOException if the file cannot be read.
+     */
+    private boolean pushStatic(final ServerFile file) throws IOException {
+        final StaticFileCache.Entry entry = so.staticFileCache == null ? null : so.staticFileCache.get(file);
+        final long lastModified;
+        final String etag;
+        final boolean variants;
+        String encoding = null;
+        if (entry != null) {
+            lastModified = entry.getLastModified();
+            encoding = entry.negotiate(acceptEncoding);
+            etag = StaticFileCache.etag(entry.getEtag(), encoding);
+            variants = entry.hasVariants();
+        } else if (file.isFile()) {
+            lastModified = file.lastModified();
+            final String[] siblings = so.config.compress.precompressed && so.config.compression.length > 0
+                    ? StaticFileCache.siblings(file, so.config.compression)
+                    : NO_SIBLINGS;
+            encoding = HttpCompression.negotiate(acceptEncoding, siblings);
+            etag = StaticFileCache.etag(StaticFileCache.etag(file.length(), lastModified), encoding);
+            variants = siblings.length > 0;
+        } else {
+            response.headers.setStatus(Status.STATUS_NOT_FOUND);
+            pushFixedLength(new byte[0], false);
+            return true;
+        }
+        // error pages are served from files too, they are never validated nor partial
+        final String status = response.headers.getStatus();
+        final boolean success = status == null || STATUS_SUCCESS.equals(status);
+        if (firstMessage && defaultHeaders) {
+            if (success) {
+                response.headers.set("ETag", etag);
+                response.headers.set("Last-Modified", StaticFileCache.httpDate(lastModified));
+                response.headers.set("Accept-Ranges", "bytes");
+            }
+            if (variants)
+                addVary("Accept-Encoding");
+            if (success && StaticFileCache.isNotModified(request.reader.content.headers, etag, lastModified)) {
+                response.headers.setStatus(STATUS_NOT_MODIFIED);
+                sendHeaders();
+                return true;
+            }
+        }
+        if (encoding != null)
+            response.headers.set("Content-Encoding", encoding);
+        if (entry != null)
+            pushFixedLength(entry.get(encoding), false);
+        else if (encoding != null)
+            pushChannel(StaticFileCache.sibling(file, encoding), 0, -1);
+        else
+            return false;
+        return true;
+    }
+
     /**
      * Send data to the client.The first time this method is called within an
      * HttpEvent, it will also call the sendHeaders() method, to make sure the
@@ -291,120 +820,17 @@ public abstract class HttpEventManager extends EventManager implements HttpEvent
      * @param data data to be sent.
      */
     public final void push(final File data) {
-        try {
-            if (!data.exists() || data.isDirectory()) {
-                response.headers.setStatus(Status.STATUS_NOT_FOUND);
-                HttpEventManager.this.push("");
-                return;
-            }
-            byte[] buffer;
-            try (RandomAccessFile raf = new RandomAccessFile(data, "r");
-                    DataOutputStream dos = new DataOutputStream(request.reader.client.getOutputStream())) {
-
-                final int fileLength = (int) raf.length();
-
-                if (this.request.reader.content.headers.isDefined("Range")) {
-                    response.headers.setStatus(STATUS_PARTIAL_CONTENT);
-                    final String[] ranges = this.request.reader.content.headers.get("Range").split("=")[1].split(",");
-                    final int[] rangeStart = new int[ranges.length];
-                    final int[] rangeEnd = new int[ranges.length];
-                    int lastIndex;
-                    for (int i = 0; i < ranges.length; i++) {
-                        lastIndex = ranges[i].length() - 1;
-                        final String[] tmp = ranges[i].split("-");
-                        if (!ranges[i].substring(0, 1).equals("-")) {
-                            rangeStart[i] = Integer.parseInt(tmp[0]);
-                        } else {
-                            rangeStart[i] = 0;
-                        }
-                        if (!ranges[i].substring(lastIndex, lastIndex + 1).equals("-")) {
-                            rangeEnd[i] = Integer.parseInt(tmp[1]);
-                        } else {
-                            rangeEnd[i] = fileLength - 1;
-                        }
-                    }
-                    final String ctype = resolveContentType(data.getName());
-                    int start, end;
-                    if (rangeStart.length > 1) {
-                        final String boundary = generateMultipartBoundary();
-                        if (firstMessage && defaultHeaders) {
-                            firstMessage = false;
-                            // header.set("Content-Length", ""+clength);
-                            response.headers.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
-                            dos.writeUTF(response.headers.toString());
-                        }
-
-                        for (int i = 0; i < rangeStart.length; i++) {
-                            start = rangeStart[i];
-                            end = rangeEnd[i];
-                            dos.writeUTF("--" + boundary + "\r\n");
-                            dos.writeUTF("Content-Type: " + ctype + "\r\n");
-                            dos.writeUTF("Content-Range: bytes " + start + "-" + end + "/" + fileLength + "\r\n\r\n");
-                            if (end - start + 1 > so.config.http.mtu) {
-                                int remainingBytes = end - start + 1;
-                                buffer = new byte[so.config.http.mtu];
-                                raf.seek(start);
-                                while (remainingBytes > 0) {
-                                    raf.read(buffer);
-                                    dos.write(buffer);
-                                    remainingBytes -= so.config.http.mtu;
-                                    if (remainingBytes < 0) {
-                                        buffer = new byte[remainingBytes + so.config.http.mtu];
-                                        dos.write(buffer);
-                                        remainingBytes = 0;
-                                    } else {
-                                        buffer = new byte[so.config.http.mtu];
-                                    }
-                                }
-
-                            } else {
-                                buffer = new byte[end - start + 1];
-                                raf.seek(start);
-                                raf.read(buffer);
-                                dos.write(buffer);
-                            }
-                            if (i < rangeStart.length - 1) {
-                                dos.writeUTF("\r\n");
-                            }
-                        }
-                        if (rangeStart.length > 1) {
-                            dos.writeUTF("\r\n--" + boundary + "--");
-                        }
-                    } else {
-                        start = rangeStart[0];
-                        end = rangeEnd[0];
-                        final int len = end - start + 1;
-                        if (firstMessage && defaultHeaders) {
-                            firstMessage = false;
-                            response.headers.set("Content-Range", "bytes " + start + "-" + end + "/" + fileLength);
-                            response.headers.set("Content-Length", "" + len);
-                            dos.write((response.headers.toString() + "\r\n").getBytes());
-                        }
-                        buffer = new byte[end - start + 1];
-                        raf.seek(start);
-                        raf.read(buffer);
-                        dos.write(buffer);
-                    }
-                } else {
-                    if (firstMessage && defaultHeaders) {
-                        firstMessage = false;
-                        response.headers.set("Content-Length", "" + fileLength);
-                        dos.write((response.headers.toString() + "\r\n").getBytes());
-                    }
-                    buffer = new byte[fileLength];
-                    raf.seek(0);
-                    raf.read(buffer);
-                    dos.write(buffer);
-                }
-            }
-        } catch (final FileNotFoundException ex) {
-            LOGGER.log(Level.INFO, null, ex);
-        } catch (final IOException ex) {
-            //ex.printStackTrace();
-            System.out.println("Client "+request.reader.client.getInetAddress().toString()+" disconnected before receiving the whole file ("+data.getName()+")");
+        if (!data.exists() || data.isDirectory()) {
+            response.headers.setStatus(Status.STATUS_NOT_FOUND);
+            HttpEventManager.this.push("");
+            return;
         }
-        
-        close();
+        final ServerFile file = data instanceof ServerFile ? (ServerFile) data : new ServerFile(data);
+        if (firstMessage && !response.headers.isDefined("Content-Type"))
+            response.headers.set("Content-Type", file.getContentType());
+        pushFile(file);
+        if (!request.reader.isKeepAlive())
+            close();
     }
     
 }
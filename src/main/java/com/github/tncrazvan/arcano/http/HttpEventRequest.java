@@ -1,58 +1,214 @@
 package com.github.tncrazvan.arcano.http;
 
-import static com.github.tncrazvan.arcano.tool.encoding.Hashing.getSha1String;
+import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.AbstractMap;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 
 import com.github.tncrazvan.arcano.EventManager;
 
+/**
+ * The request side of an event.<br />
+ * The request id, the languages and the query strings of the request are only computed
+ * the first time they are asked for, most handlers never need them.
+ * @author Razvan Tanase
+ */
 public class HttpEventRequest {
     private EventManager e;
-    private String requestId;
+    private String requestId = null;
     public HttpRequestReader reader = null;
-    public Map<String,String> userLanguages = new HashMap<>();
-    
-    public HashMap<String,String> queryStrings = new HashMap<>();
-    public HashMap<String, String> parameters = new HashMap<>();
+    private Map<String,String> languageMap = null;
+    private HashMap<String,String> queryMap = null;
+    /**
+     * The languages of the client, see getUserLanguages().
+     * @deprecated use getUserLanguages(), this field is a view of it that is only filled once it is read.
+     */
+    @Deprecated
+    public final Map<String,String> userLanguages = new LazyMap(this::getUserLanguages);
+    /**
+     * The query strings of the request, see getQueryStrings().<br />
+     * This field used to be a HashMap, code that needs one must call getQueryStrings() instead.
+     * @deprecated use getQueryStrings() or getQueryString(), this field is a view of them that is only filled once it is read.
+     */
+    @Deprecated
+    public final Map<String,String> queryStrings = new LazyMap(this::getQueryStrings);
+    /**
+     * The values captured by the path of the route, keyed by parameter name.<br />
+     * This field used to be a HashMap, it is now a read only Map that holds the values of this request alone.
+     */
+    public Map<String, String> parameters = HttpPathParameters.EMPTY;
+
+    /**
+     * A map that is only computed the first time it is used,
+     * made once for each connection, since its source is reset with the request.
+     */
+    private static final class LazyMap extends AbstractMap<String, String> {
+        private final Supplier<? extends Map<String, String>> source;
+
+        private LazyMap(final Supplier<? extends Map<String, String>> source) {
+            this.source = source;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return source.get().entrySet();
+        }
+
+        @Override
+        public String get(final Object key) {
+            return source.get().get(key);
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return source.get().containsKey(key);
+        }
+
+        @Override
+        public String put(final String key, final String value) {
+            return source.get().put(key, value);
+        }
+
+        @Override
+        public String remove(final Object key) {
+            return source.get().remove(key);
+        }
+
+        @Override
+        public int size() {
+            return source.get().size();
+        }
+    }
 
     public HttpEventRequest(final EventManager eventManager, final HttpRequestReader reader){
         this.e = eventManager;
         this.reader = reader;
     }
 
+    /**
+     * Forget whatever has been computed for the previous request,
+     * so that this object can serve the next request of the same connection.
+     */
+    public final void reset(){
+        requestId = null;
+        languageMap = null;
+        queryMap = null;
+        parameters = HttpPathParameters.EMPTY;
+    }
+
+    /**
+     * Finds the id of the request.<br />
+     * The id sent by the client in the X-Request-Id header is kept, unless propagation is disabled or the id is not valid,
+     * otherwise a new id is made.
+     * There is no need to call this method, the id is found the first time it is asked for.
+     */
     public final void resolveId(){
-        requestId = getSha1String(System.identityHashCode(reader.client) + "::" + System.currentTimeMillis(),e.so.config.charset);
+        if(e.so.config.http.requestId.propagate){
+            final String incoming = reader.content.headers.get(HttpRequestIds.HEADER);
+            if(HttpRequestIds.isValid(incoming)){
+                requestId = incoming;
+                return;
+            }
+        }
+        requestId = e.so.requestIds.next();
     }
 
     public final String getRequestId(){
+        if(requestId == null)
+            resolveId();
         return requestId;
     }
 
     /**
-     * Finds the languages of the client application. The value is stored in
-     * EventManager#userLanguages.
+     * Finds the languages of the client application.<br />
+     * There is no need to call this method, the languages are found the first time they are asked for.
      */
     public final void findLanguages() {
-        if (reader.content.headers.get("Accept-Language") == null) {
+        final Map<String,String> userLanguages = new HashMap<>();
+        final String header = reader.content.headers.get("Accept-Language");
+        if (header == null) {
             userLanguages.put("unknown", "unknown");
         } else {
-            String[] tmp = new String[2];
-            final String[] languages = reader.content.headers.get("Accept-Language").split(",");
+            String[] tmp;
+            final String[] languages = header.split(",");
             userLanguages.put("DEFAULT-LANGUAGE", languages[0]);
             for (int i = 1; i < languages.length; i++) {
                 tmp = languages[i].split(";");
-                userLanguages.put(tmp[0], tmp[1]);
+                userLanguages.put(tmp[0], tmp.length > 1 ? tmp[1] : "");
             }
         }
+        languageMap = userLanguages;
     }
 
     public final String getDefaultLanguage() {
-        return userLanguages.get("DEFAULT-LANGUAGE");
+        return getUserLanguages().get("DEFAULT-LANGUAGE");
     }
 
     public final Map<String, String> getUserLanguages() {
-        return userLanguages;
+        if (languageMap == null)
+            findLanguages();
+        return languageMap;
+    }
+
+    /**
+     * Get the query strings of the request.
+     * 
+     * @return the query strings, keyed by name.
+     */
+    public final HashMap<String, String> getQueryStrings() {
+        if (queryMap == null)
+            queryMap = parseQueryStrings();
+        return queryMap;
+    }
+
+    /**
+     * Get a query string of the request.
+     * 
+     * @param name name of the query string.
+     * @return the value of the query string, or null if the request does not have it.
+     */
+    public final String getQueryString(final String name) {
+        return getQueryStrings().get(name);
+    }
+
+    /**
+     * Check if a query string is set.
+     * 
+     * @param name name of the query string.
+     * @return true if the query string is set, false otherwise.
+     */
+    public final boolean issetQueryString(final String name) {
+        return getQueryStrings().containsKey(name);
+    }
+
+    private HashMap<String, String> parseQueryStrings() {
+        final HashMap<String, String> result = new HashMap<>();
+        String uri = reader.content.headers.getResource();
+        if (uri == null || (uri.indexOf('?') < 0 && uri.indexOf('&') < 0))
+            return result;
+        try {
+            uri = URLDecoder.decode(uri, e.so.config.charset);
+        } catch (final IllegalArgumentException | UnsupportedEncodingException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        }
+        final String[] uriParts = uri.split("\\?|\\&", 2);
+        if (uriParts.length > 1) {
+            for (final String part : uriParts[1].split("\\&")) {
+                final String[] object = part.split("=", 2);
+                if (object.length > 1) {
+                    result.put(object[0].trim(), object[1]);
+                } else {
+                    result.put(object[0].trim(), "");
+                }
+            }
+        }
+        return result;
     }
 
     /**
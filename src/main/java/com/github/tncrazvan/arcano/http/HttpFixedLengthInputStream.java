@@ -0,0 +1,68 @@
+package com.github.tncrazvan.arcano.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a body delimited by a Content-Length header.
+ * @author Razvan Tanase
+ */
+public class HttpFixedLengthInputStream extends HttpBodyInputStream {
+    private long remaining;
+
+    public HttpFixedLengthInputStream(final InputStream source, final long length) {
+        super(source);
+        this.remaining = length;
+    }
+
+    @Override
+    public final boolean isFinished() {
+        return remaining == 0;
+    }
+
+    @Override
+    public final int read() throws IOException {
+        if (remaining == 0)
+            return -1;
+        final int b = source.read();
+        if (b < 0)
+            throw new EOFException("Stream ended before the end of the body.");
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public final int read(final byte[] b, final int off, final int len) throws IOException {
+        if (remaining == 0)
+            return -1;
+        if (len == 0)
+            return 0;
+        final int read = source.read(b, off, (int) Math.min(len, remaining));
+        if (read < 0)
+            throw new EOFException("Stream ended before the end of the body.");
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public final int available() throws IOException {
+        return (int) Math.min(remaining, source.available());
+    }
+
+    /**
+     * The length is known, so the body is read straight into an array of the right size.
+     */
+    @Override
+    public final byte[] readBody() throws IOException {
+        if (remaining > Integer.MAX_VALUE - 8)
+            throw new IOException("Body of " + remaining + " bytes does not fit in an array.");
+        final byte[] body = new byte[(int) remaining];
+        int offset = 0, read;
+        while (offset < body.length) {
+            read = read(body, offset, body.length - offset);
+            offset += read;
+        }
+        return body;
+    }
+}
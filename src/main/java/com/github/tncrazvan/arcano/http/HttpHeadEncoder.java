@@ -0,0 +1,244 @@
+package com.github.tncrazvan.arcano.http;
+
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_SUCCESS;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes the head of a response (status line, header fields and cookies) straight into a byte buffer.<br />
+ * Status lines, common header names and the default headers of the server ("headers" in the configuration)
+ * are encoded once and copied as bytes, the Date header is formatted at most once per second.<br />
+ * Each thread reuses its own buffer, so encoding a head does not allocate anything
+ * unless the head is larger than any head encoded before on the same thread.
+ * @author Razvan Tanase
+ */
+public class HttpHeadEncoder {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] SEPARATOR = {':', ' '};
+    private static final byte[] DATE = "Date: ".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_CACHED_STATUS_LINES = 128;
+    private static final int MAX_KEPT_BUFFER = 64 * 1024;
+    private static final HashMap<String, byte[]> NAMES = new HashMap<>();
+    private static final ConcurrentHashMap<String, byte[]> STATUS_LINES = new ConcurrentHashMap<>();
+    static {
+        for (final String name : new String[] {
+            "Accept-Ranges", "Cache-Control", "Connection", "Content-Disposition", "Content-Encoding",
+            "Content-Language", "Content-Length", "Content-Range", "Content-Type", "Date", "ETag", "Expires",
+            "Last-Modified", "Location", "Retry-After", "Server", "Set-Cookie", "Transfer-Encoding",
+            "Vary", "WWW-Authenticate", "X-Request-Id", "Upgrade", "Sec-WebSocket-Accept"
+        }) {
+            NAMES.put(name, (name + ": ").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static final class CachedDate {
+        private final long second;
+        private final String value;
+        private final byte[] line;
+
+        private CachedDate(final long second) {
+            this.second = second;
+            this.value = StaticFileCache.HTTP_DATE.format(Instant.ofEpochSecond(second));
+            final byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+            this.line = new byte[DATE.length + bytes.length + CRLF.length];
+            System.arraycopy(DATE, 0, line, 0, DATE.length);
+            System.arraycopy(bytes, 0, line, DATE.length, bytes.length);
+            line[line.length - 2] = '\r';
+            line[line.length - 1] = '\n';
+        }
+    }
+
+    private static volatile CachedDate now = new CachedDate(System.currentTimeMillis() / 1000);
+    private static volatile CachedDate expires = now;
+
+    /**
+     * An encoded head, valid until the next head is encoded on the same thread.
+     */
+    public static final class Head {
+        private byte[] bytes = new byte[1024];
+        private int length = 0;
+
+        public final byte[] getBytes() {
+            return bytes;
+        }
+
+        public final int getLength() {
+            return length;
+        }
+
+        /**
+         * Append bytes after the head, this is how small bodies end up in the same write as their head.
+         * @param data bytes to append.
+         * @param offset offset of the first byte.
+         * @param count number of bytes.
+         */
+        public final void append(final byte[] data, final int offset, final int count) {
+            ensure(count);
+            System.arraycopy(data, offset, bytes, length, count);
+            length += count;
+        }
+
+        private void append(final byte[] data) {
+            append(data, 0, data.length);
+        }
+
+        private void append(final String value, final Charset charset) {
+            final int size = value.length();
+            ensure(size);
+            for (int i = 0; i < size; i++) {
+                final char c = value.charAt(i);
+                if (c >= 0x80) {
+                    // rare, encode the rest of the value with the configured charset
+                    final byte[] rest = value.substring(i).getBytes(charset);
+                    append(rest);
+                    return;
+                }
+                bytes[length++] = (byte) c;
+            }
+        }
+
+        private void ensure(final int count) {
+            if (length + count > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+        }
+    }
+
+    private static final ThreadLocal<Head> HEADS = ThreadLocal.withInitial(Head::new);
+
+    private final Charset charset;
+    private final HashMap<String, String> defaultValues = new HashMap<>();
+    private final HashMap<String, byte[]> defaultLines = new HashMap<>();
+
+    /**
+     * @param defaults the default headers of every response, pseudo headers such as "@Status" are ignored.
+     * @param charset charset used for values that are not plain ASCII.
+     */
+    public HttpHeadEncoder(final Map<String, String> defaults, final String charset) {
+        this.charset = Charset.forName(charset);
+        for (final Map.Entry<String, String> entry : defaults.entrySet()) {
+            if (entry.getKey().startsWith("@") || entry.getValue() == null)
+                continue;
+            defaultValues.put(entry.getKey(), entry.getValue());
+            defaultLines.put(entry.getKey(), (entry.getKey() + ": " + entry.getValue() + "\r\n").getBytes(this.charset));
+        }
+    }
+
+    /**
+     * Encode the head of a response, including the empty line that ends it.<br />
+     * A Date header is added if the response does not define one.
+     * @param headers the headers of the response.
+     * @return the encoded head, which belongs to the calling thread.
+     */
+    public final Head encode(final HttpHeaders headers) {
+        Head head = HEADS.get();
+        if (head.bytes.length > MAX_KEPT_BUFFER) {
+            // do not keep around the buffer of an unusually large head
+            head = new Head();
+            HEADS.set(head);
+        }
+        head.length = 0;
+        head.append(statusLine(headers.getStatus()));
+
+        boolean date = false;
+        for (int i = 0; i < headers.size(); i++) {
+            final String name = headers.getName(i), value = headers.getValue(i);
+            if (!date && name.equalsIgnoreCase("Date"))
+                date = true;
+            final String defaultValue = defaultValues.get(name);
+            if (defaultValue != null && defaultValue.equals(value)) {
+                head.append(defaultLines.get(name));
+                continue;
+            }
+            final byte[] encodedName = NAMES.get(name);
+            if (encodedName != null) {
+                head.append(encodedName);
+            } else {
+                head.append(name, charset);
+                head.append(SEPARATOR);
+            }
+            head.append(value, charset);
+            head.append(CRLF);
+        }
+        if (!date)
+            head.append(date().line);
+
+        for (final Map.Entry<String, String[]> entry : headers.getCookies().entrySet()) {
+            final String[] c = entry.getValue();
+            // cookies of a request are still in their Cookie field
+            if ("Cookie".equals(c[4]))
+                continue;
+            final byte[] encodedName = NAMES.get(c[4]);
+            if (encodedName != null) {
+                head.append(encodedName);
+            } else {
+                head.append(c[4], charset);
+                head.append(SEPARATOR);
+            }
+            head.append(entry.getKey(), charset);
+            head.append("=", charset);
+            head.append(c[0], charset);
+            if (c[1] != null) {
+                head.append("; path=", charset);
+                head.append(c[1], charset);
+            }
+            if (c[2] != null) {
+                head.append("; domain=", charset);
+                head.append(c[2], charset);
+            }
+            if (c[3] != null) {
+                head.append("; expires=", charset);
+                head.append(httpDate(Long.parseLong(c[3])), charset);
+            }
+            head.append(CRLF);
+        }
+        head.append(CRLF);
+        return head;
+    }
+
+    private static byte[] statusLine(String status) {
+        if (status == null)
+            status = STATUS_SUCCESS;
+        byte[] line = STATUS_LINES.get(status);
+        if (line == null) {
+            line = ("HTTP/1.1 " + status + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            if (STATUS_LINES.size() < MAX_CACHED_STATUS_LINES)
+                STATUS_LINES.put(status, line);
+        }
+        return line;
+    }
+
+    private static CachedDate date() {
+        final long second = System.currentTimeMillis() / 1000;
+        CachedDate date = now;
+        if (date.second != second) {
+            date = new CachedDate(second);
+            now = date;
+        }
+        return date;
+    }
+
+    /**
+     * Format a date for an http header (IMF-fixdate, for example "Thu, 01 Jan 1970 00:00:00 GMT").<br />
+     * The current second and the last formatted date are cached,
+     * so formatting the same value over and over is cheap.
+     * @param second unix timestamp, in seconds.
+     * @return the formatted date.
+     */
+    public static final String httpDate(final long second) {
+        CachedDate date = now;
+        if (date.second == second)
+            return date.value;
+        date = expires;
+        if (date.second == second)
+            return date.value;
+        date = new CachedDate(second);
+        expires = date;
+        return date.value;
+    }
+}
@@ -6,44 +6,51 @@
 package com.github.tncrazvan.arcano.http;
 
 import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
-import static com.github.tncrazvan.arcano.tool.system.Time.toLocalDateTime;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.github.tncrazvan.arcano.SharedObject;
 import com.github.tncrazvan.arcano.tool.http.Status;
 
 /**
- *
+ * Header fields are kept in parallel arrays, in the order they were added, and looked up ignoring case.<br />
+ * The same field can appear more than once (Set-Cookie, Vary...), get() returns the first value and getAll() every value.<br />
+ * Fields of a parsed request keep pointing at a copy of the request head until they are read,
+ * names and values become Strings only when they are needed.
+ * Cookies of a request are parsed the first time they are read.
  * @author Administrator
  */
 public class HttpHeaders {
-    private final HashMap<String, String> headers = new HashMap<>();
-    private Map<String, String[]> cookies = new HashMap<>();
+    private static final int INITIAL_CAPACITY = 16;
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] values = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    // bytes of a parsed head, with nameStart, nameEnd, valueStart, valueEnd of each field
+    private byte[] raw = null;
+    private int[] bounds = null;
+    private int size = 0;
+    private Map<String, String[]> cookies = null;
     public static final int TYPE_REQUEST=0,TYPE_RESPONSE=1;
     private final int type;
     private String method,resource,version,status;
     
     private HttpHeaders(int type) {
-        this(type,new HashMap<String,String>());
+        this.type = type;
     }
 
-    private HttpHeaders(int type,final HashMap<String, String> map) {
+    private HttpHeaders(int type,final Map<String, String> map) {
         this.type = type;
         map.forEach((key, value) -> {
-            headers.put(key, value);
+            set(key, value);
         });
     }
     
@@ -77,49 +84,73 @@ public class HttpHeaders {
     }
     
     public final String fieldToString(final String key) {
-        return fieldToString(key, headers.get(key));
+        return fieldToString(key, get(key));
     }
     public final String fieldToString(final String key, final String value) {
         return key + ": " + value + "\r\n";
     }
 
-    private static final ZoneId londonTimezone = ZoneId.of("Europe/London");
-    private static final DateTimeFormatter formatHttpDefaultDate = DateTimeFormatter
-            .ofPattern("EEE, d MMM y HH:mm:ss z", Locale.US).withZone(londonTimezone);
-
     public final String cookieToString(final String key) {
-        return cookieToString(key, cookies.get(key));
+        return cookieToString(key, cookies().get(key));
     }
     public final String cookieToString(final String key, String[] value) {
         final String[] c = value;
-        final LocalDateTime time = (c[3] == null ? null
-                : toLocalDateTime(SharedObject.londonTimezone, Integer.parseInt(c[3])));
         // Thu, 01 Jan 1970 00:00:00 GMT
         return c[4] + ": " + key + "=" + c[0] + (c[1] == null ? "" : "; path=" + c[1])
                 + (c[2] == null ? "" : "; domain=" + c[2])
-                + (c[3] == null ? "" : "; expires=" + formatHttpDefaultDate.format(time)) + "\r\n";
+                + (c[3] == null ? "" : "; expires=" + HttpHeadEncoder.httpDate(Long.parseLong(c[3]))) + "\r\n";
     }
 
-    
-    
+    /**
+     * Get the cookies, keyed by name.<br />
+     * Each cookie is an array of value, path, domain, expire time and header name.
+     * @return the cookies.
+     */
+    final Map<String, String[]> getCookies() {
+        return cookies();
+    }
+
+    /**
+     * Get the cookies, parsing the Cookie fields the first time.
+     */
+    private Map<String, String[]> cookies() {
+        if (cookies == null) {
+            cookies = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                if (nameEquals(i, "Cookie", COOKIE_HASH))
+                    parseCookies(getValue(i));
+            }
+        }
+        return cookies;
+    }
+
+    /**
+     * Get the headers as text.<br />
+     * Responses are not sent this way, they go through an HttpHeadEncoder.
+     * @return the status or request line followed by each header field, one per line.
+     */
     @Override
     public final String toString() {
-        String str = "";
+        final StringBuilder str = new StringBuilder(256);
         if(type == TYPE_REQUEST){
-            str = method+" "+resource+" HTTP/1.1\r\n";
+            str.append(method).append(" ").append(resource).append(" HTTP/1.1\r\n");
         }else if(type == TYPE_RESPONSE){
-            str = "HTTP/1.1 "+status+" \r\n";
+            str.append("HTTP/1.1 ").append(status).append("\r\n");
         }
         
-        for (Map.Entry<String,String> entry : headers.entrySet()) {
-            str += fieldToString(entry.getKey(), entry.getValue());
+        for (int i = 0; i < size; i++) {
+            str.append(fieldToString(getName(i), getValue(i)));
         }
         
-        for (Map.Entry<String,String[]> entry : cookies.entrySet()) {
-            str += cookieToString(entry.getKey(), entry.getValue());
+        if (cookies != null) {
+            for (Map.Entry<String,String[]> entry : cookies.entrySet()) {
+                // cookies of a request are still in their Cookie field
+                if (!"Cookie".equals(entry.getValue()[4]))
+                    str.append(cookieToString(entry.getKey(), entry.getValue()));
+            }
         }
 
-        return str;
+        return str.toString();
     }
 
     /**
@@ -129,7 +160,7 @@ public class HttpHeaders {
      * @return true if the header exists, false otherwise.
      */
     public final boolean isDefined(final String key) {
-        return headers.get(key) != null;
+        return indexOf(key, hash(key)) >= 0;
     }
     
     public final HttpHeaders setStatus(String value){
@@ -159,6 +190,10 @@ public class HttpHeaders {
         return method;
     }
     
+    public final String getVersion(){
+        return version;
+    }
+    
     /**
      * Set the value of a specific header.
      * 
@@ -178,7 +213,64 @@ public class HttpHeaders {
                 method = value;
                 return this;
         }
-        headers.put(name, value);
+        if (value == null)
+            return remove(name);
+        final int hash = hash(name);
+        final int index = indexOf(name, hash);
+        if (index < 0)
+            return add(name, hash, value.trim());
+        names[index] = name;
+        values[index] = value.trim();
+        // any other occurrence of the field is replaced too
+        removeFrom(index + 1, name, hash);
+        return this;
+    }
+
+    /**
+     * Add a value to a header, keeping the values it already has.<br />
+     * This is how fields that can appear more than once (Set-Cookie, Vary...) are sent.
+     * 
+     * @param name  name of the header.
+     * @param value value of the header.
+     * @return the current HttpHeaders object.
+     */
+    public final HttpHeaders add(final String name, final String value) {
+        if (name.equals("Cookie"))
+            cookies = null;
+        return add(name, hash(name), value.trim());
+    }
+
+    private HttpHeaders add(final String name, final int hash, final String value) {
+        ensureCapacity();
+        names[size] = name;
+        values[size] = value;
+        hashes[size] = hash;
+        size++;
+        return this;
+    }
+
+    private void ensureCapacity() {
+        if (size < names.length)
+            return;
+        final int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        values = Arrays.copyOf(values, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        if (bounds != null)
+            bounds = Arrays.copyOf(bounds, capacity * 4);
+    }
+
+    /**
+     * Copy every field of another HttpHeaders object, replacing the fields with the same name.
+     * 
+     * @param other the headers to copy.
+     * @return the current HttpHeaders object.
+     */
+    public final HttpHeaders setAll(final HttpHeaders other) {
+        for (int i = 0; i < other.size; i++)
+            remove(other.getName(i));
+        for (int i = 0; i < other.size; i++)
+            add(other.getName(i), other.hashes[i], other.getValue(i));
         return this;
     }
 
@@ -192,6 +284,165 @@ public class HttpHeaders {
     public final HttpHeaders set(final String name, Object value) {
         return set(name,value.toString());
     }
+
+    /**
+     * Remove a specific header.
+     * 
+     * @param name name of the header.
+     * @return the current HttpHeaders object.
+     */
+    public final HttpHeaders remove(final String name) {
+        removeFrom(0, name, hash(name));
+        return this;
+    }
+
+    private void removeFrom(final int from, final String name, final int hash) {
+        int kept = from;
+        for (int i = from; i < size; i++) {
+            if (nameEquals(i, name, hash))
+                continue;
+            if (kept != i) {
+                names[kept] = names[i];
+                values[kept] = values[i];
+                hashes[kept] = hashes[i];
+                if (bounds != null)
+                    System.arraycopy(bounds, i * 4, bounds, kept * 4, 4);
+            }
+            kept++;
+        }
+        for (int i = kept; i < size; i++) {
+            names[i] = null;
+            values[i] = null;
+        }
+        size = kept;
+    }
+
+    /**
+     * Remove every header field and cookie, so that the object can be filled again.<br />
+     * The status line is left as it is.
+     * 
+     * @return the current HttpHeaders object.
+     */
+    public final HttpHeaders clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        raw = null;
+        bounds = null;
+        cookies = null;
+        return this;
+    }
+
+    /**
+     * Get the number of header fields, repeated fields are counted once for each occurrence.
+     * 
+     * @return number of fields.
+     */
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * Get the name of a header field.
+     * 
+     * @param index index of the field, fields keep the order they were added in.
+     * @return the name of the field, as it was sent or set.
+     */
+    public final String getName(final int index) {
+        String name = names[index];
+        if (name == null) {
+            name = new String(raw, bounds[index * 4], bounds[index * 4 + 1] - bounds[index * 4], StandardCharsets.ISO_8859_1);
+            names[index] = name;
+        }
+        return name;
+    }
+
+    /**
+     * Get the value of a header field.
+     * 
+     * @param index index of the field, fields keep the order they were added in.
+     * @return the value of the field.
+     */
+    public final String getValue(final int index) {
+        String value = values[index];
+        if (value == null) {
+            value = new String(raw, bounds[index * 4 + 2], bounds[index * 4 + 3] - bounds[index * 4 + 2], StandardCharsets.ISO_8859_1);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Get every value of a header, in the order they were added in.
+     * 
+     * @param name name of the header.
+     * @return the values, empty if the header is not defined.
+     */
+    public final String[] getAll(final String name) {
+        final int hash = hash(name);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (nameEquals(i, name, hash))
+                count++;
+        }
+        final String[] all = new String[count];
+        count = 0;
+        for (int i = 0; i < size; i++) {
+            if (nameEquals(i, name, hash))
+                all[count++] = getValue(i);
+        }
+        return all;
+    }
+
+    private int indexOf(final String name, final int hash) {
+        for (int i = 0; i < size; i++) {
+            if (nameEquals(i, name, hash))
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(final int index, final String name, final int hash) {
+        if (hashes[index] != hash)
+            return false;
+        final String known = names[index];
+        if (known != null)
+            return known.equalsIgnoreCase(name);
+        final int start = bounds[index * 4], length = bounds[index * 4 + 1] - start;
+        if (length != name.length())
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (lower(raw[start + i] & 0xff) != lower(name.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static int lower(final int c) {
+        return c >= 'A' && c <= 'Z' ? c + 32 : c;
+    }
+
+    private static final int COOKIE_HASH = hash("Cookie");
+
+    /**
+     * Hash a header name ignoring the case of ASCII letters.
+     */
+    static final int hash(final String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++)
+            hash = 31 * hash + lower(name.charAt(i));
+        return hash;
+    }
+
+    /**
+     * Hash a header name ignoring the case of ASCII letters, the result is the same as hash(String).
+     */
+    static final int hash(final byte[] bytes, final int offset, final int end) {
+        int hash = 0;
+        for (int i = offset; i < end; i++)
+            hash = 31 * hash + lower(bytes[i] & 0xff);
+        return hash;
+    }
     
     
     
@@ -210,10 +461,8 @@ public class HttpHeaders {
             case "@Method":
                 return method;
         }
-        if (!headers.containsKey(name)) {
-            return null;
-        }
-        return headers.get(name).trim();
+        final int index = indexOf(name, hash(name));
+        return index < 0 ? null : getValue(index);
     }
 
     /**
@@ -223,12 +472,7 @@ public class HttpHeaders {
      * @return true if the cookie is set, false otherwise.
      */
     public final boolean issetCookie(final String name) {
-        for(Entry<String,String[]> pair : cookies.entrySet()){
-            if (pair.getKey().trim().equals(name.trim())) {
-                return true;
-            }
-        }
-        return false;
+        return cookies().containsKey(name.trim());
     }
 
     /**
@@ -242,7 +486,7 @@ public class HttpHeaders {
     }
 
     public final String getCookie(final String key, final String charset) {
-        final String[] cookie = cookies.get(key);
+        final String[] cookie = cookies().get(key);
         if (cookie == null)
             return null;
         try {
@@ -279,7 +523,7 @@ public class HttpHeaders {
         b[2] = domain;
         b[3] = "" + expire;
         b[4] = "Set-Cookie";
-        cookies.put(name.trim(), b);
+        cookies().put(name.trim(), b);
     }
 
     /**
@@ -320,12 +564,17 @@ public class HttpHeaders {
     }
 
     /**
-     * Get the headers as a HashMap.
+     * Get the headers as a HashMap.<br />
+     * The map is a copy, changing it does not change the headers.
+     * Repeated fields are joined into a single comma separated value.
      * 
      * @return headers as HashMap.
      */
     public final HashMap<String, String> getHashMap() {
-        return headers;
+        final LinkedHashMap<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++)
+            map.merge(getName(i), getValue(i), (first, next) -> first + ", " + next);
+        return map;
     }
 
     private static final Pattern PATTERN_FIRST_LINE_REQUEST = Pattern.compile("^(\\w+)(\\s+)(.+)(\\s+)(HTTP\\/[0-9]\\.[0-9])");
@@ -344,19 +593,7 @@ public class HttpHeaders {
         final String[] item = i == 0?new String[0]:line.split(":\\s*", 2);
         if (i > 0 && item.length > 1) {
             if (item[0].equals("Cookie")) {
-                final String[] c = item[1].split(";");
-                for (final String c1 : c) {
-                    final String[] cookieInfo = c1.split("=(?!\\s|\\s|$)");
-                    if (cookieInfo.length > 1) {
-                        final String[] b = new String[5];
-                        b[0] = cookieInfo[1];
-                        b[1] = cookieInfo.length > 2 ? cookieInfo[2] : null;
-                        b[2] = cookieInfo.length > 3 ? cookieInfo[3] : null;
-                        b[3] = cookieInfo.length > 3 ? cookieInfo[3] : null;
-                        b[4] = "Cookie";
-                        this.cookies.put(cookieInfo[0].replaceFirst("((?<=^)\\s)?", ""), b);
-                    }
-                }
+                this.add(item[0], item[1]);
             } else {
                 this.set(item[0], item[1]);
             }
@@ -380,6 +617,60 @@ public class HttpHeaders {
         return true;
     }
     
+    private void parseCookies(final String value) {
+        final String[] c = value.split(";");
+        for (final String c1 : c) {
+            final String[] cookieInfo = c1.split("=(?!\\s|\\s|$)");
+            if (cookieInfo.length > 1) {
+                final String[] b = new String[5];
+                b[0] = cookieInfo[1];
+                b[1] = cookieInfo.length > 2 ? cookieInfo[2] : null;
+                b[2] = cookieInfo.length > 3 ? cookieInfo[3] : null;
+                b[3] = cookieInfo.length > 3 ? cookieInfo[3] : null;
+                b[4] = "Cookie";
+                this.cookies.put(cookieInfo[0].replaceFirst("((?<=^)\\s)?", ""), b);
+            }
+        }
+    }
+
+    /**
+     * Add a header field that is still in the bytes of the request head.
+     * This is what the HttpRequestParser uses, names and values are decoded only when they are read.
+     * @param raw copy of the request head, must be the same array for every field.
+     * @param nameStart index of the first byte of the name.
+     * @param nameEnd index right after the name.
+     * @param valueStart index of the first byte of the value.
+     * @param valueEnd index right after the value.
+     */
+    final void add(final byte[] raw, final int nameStart, final int nameEnd, final int valueStart, final int valueEnd) {
+        if (bounds == null)
+            bounds = new int[names.length * 4];
+        this.raw = raw;
+        ensureCapacity();
+        final int i = size * 4;
+        bounds[i] = nameStart;
+        bounds[i + 1] = nameEnd;
+        bounds[i + 2] = valueStart;
+        bounds[i + 3] = valueEnd;
+        hashes[size] = hash(raw, nameStart, nameEnd);
+        size++;
+    }
+
+    /**
+     * Make request headers from an already parsed request line.
+     * @param method method of the request.
+     * @param resource requested resource.
+     * @param version http version of the request.
+     * @return an HttpHeaders object.
+     */
+    static final HttpHeaders request(final String method, final String resource, final String version) {
+        final HttpHeaders headers = new HttpHeaders(TYPE_REQUEST);
+        headers.method = method;
+        headers.resource = resource;
+        headers.version = version;
+        return headers;
+    }
+
     /**
      * Get an HttpHeaders object from a string.
      * This will parse http headers and map each one of them by their keys and will also map the cookies with their keys.
@@ -0,0 +1,105 @@
+package com.github.tncrazvan.arcano.http;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Path parameters of a single request.<br />
+ * Names belong to the route and are shared by every request, values belong to the request, 
+ * both are kept in flat arrays in the order the parameters appear in the route's path.<br />
+ * Routes only have a handful of parameters, so a lookup by name is a short linear scan.<br />
+ * The map is read only.
+ * @author Razvan Tanase
+ */
+public class HttpPathParameters extends AbstractMap<String, String> {
+    private static final String[] NONE = new String[0];
+    public static final HttpPathParameters EMPTY = new HttpPathParameters(NONE, NONE, 0);
+
+    private final String[] names;
+    private final String[] values;
+    private final int size;
+    private Set<Map.Entry<String, String>> entries = null;
+
+    /**
+     * @param names names of the parameters, as defined by the route.
+     * @param values captured values, in the same order as the names.
+     * @param size number of captured values.
+     */
+    public HttpPathParameters(final String[] names, final String[] values, final int size) {
+        this.names = names;
+        this.values = values;
+        this.size = Math.min(size, names.length);
+    }
+
+    @Override
+    public final int size() {
+        return size;
+    }
+
+    @Override
+    public final String get(final Object name) {
+        final int index = indexOf(name);
+        return index < 0 ? null : values[index];
+    }
+
+    @Override
+    public final boolean containsKey(final Object name) {
+        return indexOf(name) >= 0;
+    }
+
+    /**
+     * Get a parameter by its position in the route's path.
+     * @param index position of the parameter.
+     * @return the value of the parameter.
+     */
+    public final String get(final int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Route has no parameter " + index + ".");
+        return values[index];
+    }
+
+    private int indexOf(final Object name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public final Set<Map.Entry<String, String>> entrySet() {
+        if (entries == null) {
+            entries = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int index = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < size;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (index >= size)
+                                throw new NoSuchElementException();
+                            final int i = index++;
+                            return new SimpleImmutableEntry<>(names[i], values[i]);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.tncrazvan.arcano.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a body stream when the body turns out to be larger than the route accepts,
+ * which can only be found out while reading bodies that are sent without a Content-Length.
+ * @author Razvan Tanase
+ */
+public class HttpPayloadTooLargeException extends IOException {
+    private static final long serialVersionUID = 3510962186718447213L;
+
+    /**
+     * @param limit maximum size of the body, in bytes.
+     */
+    public HttpPayloadTooLargeException(final long limit) {
+        super("Request body exceeds " + limit + " bytes.");
+    }
+}
@@ -0,0 +1,248 @@
+package com.github.tncrazvan.arcano.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The byte ranges of a file requested through a "Range" header.<br />
+ * Ranges are parsed once into absolute, inclusive, long offsets, validated against the length of the file,
+ * sorted and coalesced, so overlapping or adjacent ranges are sent as a single part.<br />
+ * A header that cannot be parsed, uses a unit other than "bytes" or asks for more than MAX_RANGES ranges
+ * is ignored and the whole file is sent, a header whose ranges all fall outside of the file
+ * is answered with "416 Range Not Satisfiable".
+ * @author Razvan Tanase
+ */
+public class HttpRanges {
+    /**
+     * Headers with more ranges than this are ignored, a request for thousands of tiny ranges
+     * costs the server far more than sending the whole file.
+     */
+    public static final int MAX_RANGES = 100;
+    private static final String UNIT = "bytes";
+
+    private final long length;
+    private final long[] starts;
+    private final long[] ends;
+
+    private HttpRanges(final long length, final long[] starts, final long[] ends, final int count) {
+        this.length = length;
+        // sort by start, then merge every range that overlaps or touches the previous one
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(starts[a], starts[b]));
+        final long[] mergedStarts = new long[count], mergedEnds = new long[count];
+        int merged = 0;
+        for (final int i : order) {
+            if (merged > 0 && starts[i] <= mergedEnds[merged - 1] + 1) {
+                mergedEnds[merged - 1] = Math.max(mergedEnds[merged - 1], ends[i]);
+            } else {
+                mergedStarts[merged] = starts[i];
+                mergedEnds[merged] = ends[i];
+                merged++;
+            }
+        }
+        this.starts = Arrays.copyOf(mergedStarts, merged);
+        this.ends = Arrays.copyOf(mergedEnds, merged);
+    }
+
+    /**
+     * Parse a "Range" header.
+     * @param header the header, can be null.
+     * @param length length of the file.
+     * @return the ranges, or null if the header must be ignored and the whole file sent.
+     */
+    public static HttpRanges parse(final String header, final long length) {
+        if (header == null)
+            return null;
+        final int equals = header.indexOf('=');
+        if (equals < 0 || !header.substring(0, equals).trim().equalsIgnoreCase(UNIT))
+            return null;
+        final long[] starts = new long[MAX_RANGES], ends = new long[MAX_RANGES];
+        int count = 0, specs = 0;
+        int start = equals + 1;
+        final int size = header.length();
+        while (start <= size) {
+            int end = header.indexOf(',', start);
+            if (end < 0)
+                end = size;
+            int from = start, to = end;
+            start = end + 1;
+            while (from < to && header.charAt(from) <= ' ')
+                from++;
+            while (to > from && header.charAt(to - 1) <= ' ')
+                to--;
+            // empty list elements are allowed
+            if (from == to)
+                continue;
+            if (++specs > MAX_RANGES)
+                return null;
+            final int dash = header.indexOf('-', from);
+            if (dash < 0 || dash >= to)
+                return null;
+            if (dash == from) {
+                // suffix range, the last n bytes
+                final long suffix = number(header, dash + 1, to);
+                if (suffix < 0)
+                    return null;
+                if (suffix == 0 || length == 0)
+                    continue;
+                starts[count] = Math.max(0, length - suffix);
+                ends[count] = length - 1;
+                count++;
+                continue;
+            }
+            final long first = number(header, from, dash);
+            if (first < 0)
+                return null;
+            long last = length - 1;
+            if (dash + 1 < to) {
+                last = number(header, dash + 1, to);
+                if (last < 0 || last < first)
+                    return null;
+            }
+            if (first >= length)
+                continue;
+            starts[count] = first;
+            ends[count] = Math.min(last, length - 1);
+            count++;
+        }
+        if (specs == 0)
+            return null;
+        return new HttpRanges(length, starts, ends, count);
+    }
+
+    /**
+     * Make ranges out of absolute offsets, as ServerFile keeps them.<br />
+     * Ranges that fall outside of the file are dropped, the others are clamped to the file.
+     * @param ranges first and last byte of each range, a negative last byte stands for the end of the file.
+     * @param length length of the file.
+     * @return the ranges.
+     */
+    public static HttpRanges of(final List<long[]> ranges, final long length) {
+        final int count = ranges.size();
+        final long[] starts = new long[count], ends = new long[count];
+        int valid = 0;
+        for (final long[] range : ranges) {
+            final long last = range[1] < 0 ? length - 1 : Math.min(range[1], length - 1);
+            if (range[0] < 0 || range[0] >= length || last < range[0])
+                continue;
+            starts[valid] = range[0];
+            ends[valid] = last;
+            valid++;
+        }
+        return new HttpRanges(length, starts, ends, valid);
+    }
+
+    /**
+     * Parse a non negative decimal number, numbers too large for a long saturate to Long.MAX_VALUE.
+     * @return the number, or -1 if the text is not a number.
+     */
+    private static long number(final String text, final int from, final int to) {
+        if (from >= to)
+            return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            if (value > (Long.MAX_VALUE - (c - '0')) / 10)
+                value = Long.MAX_VALUE;
+            else
+                value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Check if at least one range overlaps the file.
+     * @return true if the ranges can be sent, false if the request must be answered with 416.
+     */
+    public final boolean isSatisfiable() {
+        return starts.length > 0;
+    }
+
+    /**
+     * Get the number of ranges, after coalescing.
+     * @return number of ranges.
+     */
+    public final int size() {
+        return starts.length;
+    }
+
+    public final long getStart(final int i) {
+        return starts[i];
+    }
+
+    public final long getEnd(final int i) {
+        return ends[i];
+    }
+
+    public final long getLength(final int i) {
+        return ends[i] - starts[i] + 1;
+    }
+
+    /**
+     * Get the length of the file the ranges belong to.
+     * @return length of the file.
+     */
+    public final long getFileLength() {
+        return length;
+    }
+
+    /**
+     * Get the value of the "Content-Range" header of a range.
+     * @param i index of the range.
+     * @return the header value, for example "bytes 0-499/1234".
+     */
+    public final String getContentRange(final int i) {
+        return UNIT + " " + starts[i] + "-" + ends[i] + "/" + length;
+    }
+
+    /**
+     * Get the value of the "Content-Range" header of a "416 Range Not Satisfiable" response.
+     * @param length length of the file.
+     * @return the header value, which names no range, only the length of the file.
+     */
+    public static final String getUnsatisfiedRange(final long length) {
+        return UNIT + " */" + length;
+    }
+
+    /**
+     * Get the bytes that precede a part of a "multipart/byteranges" body,
+     * the line break that ends the previous part included.
+     * @param i index of the part.
+     * @param boundary multipart boundary.
+     * @param contentType content type of the file.
+     * @return the bytes that precede the part.
+     */
+    public final byte[] getPartHead(final int i, final String boundary, final String contentType) {
+        return ((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Range: " + getContentRange(i) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Get the bytes that end a "multipart/byteranges" body.
+     * @param boundary multipart boundary.
+     * @return the bytes that end the body.
+     */
+    public static final byte[] getMultipartTail(final String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Get the exact length of the "multipart/byteranges" body of these ranges,
+     * which lets the response carry a Content-Length header and keep the connection open.
+     * @param boundary multipart boundary.
+     * @param contentType content type of the file.
+     * @return length of the body.
+     */
+    public final long getMultipartLength(final String boundary, final String contentType) {
+        long total = getMultipartTail(boundary).length;
+        for (int i = 0; i < starts.length; i++)
+            total += getPartHead(i, boundary, contentType).length + getLength(i);
+        return total;
+    }
+}
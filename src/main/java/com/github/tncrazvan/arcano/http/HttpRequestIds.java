@@ -0,0 +1,87 @@
+package com.github.tncrazvan.arcano.http;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes the ids of the requests.<br />
+ * An id is a 128 bit number, written as 26 Crockford base32 characters like a ULID:
+ * 48 bits of milliseconds since the epoch, 16 bits identifying this node,
+ * 24 bits identifying the thread that made the id and a 40 bit counter owned by that thread.<br />
+ * Threads never share a counter, so making an id takes no lock and no atomic operation,
+ * ids are unique across the threads of a node and the nodes of a cluster (as long as their node numbers differ),
+ * and the ids made by a thread always grow. Sorting ids as strings sorts them by time.
+ * @author Razvan Tanase
+ */
+public class HttpRequestIds {
+    /**
+     * Header carrying the id of a request, from the client or the proxy in front of the server,
+     * and back to it on the response.
+     */
+    public static final String HEADER = "X-Request-Id";
+    /**
+     * Incoming ids longer than this are ignored and a new id is made.
+     */
+    public static final int MAX_LENGTH = 128;
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+    private static final int LENGTH = 26;
+    private static final long COUNTER_MASK = (1L << 40) - 1;
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private static final class Sequence {
+        private final long thread = THREADS.getAndIncrement() & 0xFFFFFF;
+        private long counter = 0;
+    }
+
+    private final long node;
+    private final ThreadLocal<Sequence> sequences = ThreadLocal.withInitial(Sequence::new);
+
+    /**
+     * @param node number of this node, from 0 to 65535. A negative number picks one at random.
+     */
+    public HttpRequestIds(final int node) {
+        this.node = (node < 0 ? new SecureRandom().nextInt() : node) & 0xFFFF;
+    }
+
+    /**
+     * Get the number of this node.
+     * @return the number of this node.
+     */
+    public final int getNode() {
+        return (int) node;
+    }
+
+    /**
+     * Make a new id.
+     * @return the id.
+     */
+    public final String next() {
+        final Sequence sequence = sequences.get();
+        long high = (System.currentTimeMillis() << 16) | node;
+        long low = (sequence.thread << 40) | (sequence.counter++ & COUNTER_MASK);
+        final char[] id = new char[LENGTH];
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            id[i] = ALPHABET[(int) (low & 31)];
+            low = (low >>> 5) | (high << 59);
+            high >>>= 5;
+        }
+        return new String(id);
+    }
+
+    /**
+     * Check if an incoming id can be used as it is.<br />
+     * The id is echoed in the response headers, so only short runs of visible ASCII characters are accepted.
+     * @param id the id, can be null.
+     * @return true if the id can be used.
+     */
+    public static boolean isValid(final String id) {
+        if (id == null || id.isEmpty() || id.length() > MAX_LENGTH)
+            return false;
+        for (int i = 0; i < id.length(); i++) {
+            final char c = id.charAt(i);
+            if (c <= ' ' || c > '~')
+                return false;
+        }
+        return true;
+    }
+}
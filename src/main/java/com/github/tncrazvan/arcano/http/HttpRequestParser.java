@@ -0,0 +1,287 @@
+package com.github.tncrazvan.arcano.http;
+
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_BAD_REQUEST;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_REQUEST_HEADER_FIELDS_TOO_LARGE;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads request heads out of a reusable byte buffer.<br />
+ * The head is located with a single scan for CRLFCRLF and then split into request line
+ * and header fields by walking the bytes once, no regular expressions and no intermediate Strings are involved.<br />
+ * Bytes read past the head are kept in the buffer and served by getInputStream() before
+ * anything else is read from the socket, so bodies and pipelined requests are never lost.
+ * @author Razvan Tanase
+ */
+public class HttpRequestParser {
+    private static final byte SP = ' ', HT = '\t', CR = '\r', LF = '\n', COLON = ':';
+    private final InputStream source;
+    private final int maxHeadSize;
+    private final int maxHeaders;
+    private byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+
+    private final InputStream stream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (position < limit)
+                return buffer[position++] & 0xff;
+            return source.read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (position < limit) {
+                final int n = Math.min(len, limit - position);
+                System.arraycopy(buffer, position, b, off, n);
+                position += n;
+                return n;
+            }
+            return source.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return limit - position + source.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    };
+
+    /**
+     * @param source the stream to read requests from.
+     * @param maxHeadSize maximum number of bytes a request head (request line and header fields) can take.
+     * @param maxHeaders maximum number of header fields a request can have.
+     */
+    public HttpRequestParser(final InputStream source, final int maxHeadSize, final int maxHeaders) {
+        this.source = source;
+        this.maxHeadSize = maxHeadSize;
+        this.maxHeaders = maxHeaders;
+        this.buffer = new byte[Math.min(4096, maxHeadSize)];
+    }
+
+    /**
+     * Get a stream over whatever follows the last head that has been read.
+     * @return the stream, it reads buffered bytes first and then the socket.
+     */
+    public final InputStream getInputStream() {
+        return stream;
+    }
+
+    /**
+     * Check if some bytes of the next request are already buffered.
+     * @return true if there are buffered bytes, false otherwise.
+     */
+    public final boolean isPending() {
+        return position < limit;
+    }
+
+    /**
+     * Take the bytes buffered past the last head that have not been read yet.
+     * @return the buffered bytes, possibly none.
+     */
+    public final byte[] takeBuffered() {
+        final byte[] bytes = Arrays.copyOfRange(buffer, position, limit);
+        position = limit;
+        return bytes;
+    }
+
+    /**
+     * Read the next request head.
+     * @return the headers of the request, or null if the stream ended before the request started.
+     * @throws IOException if the stream ends in the middle of the head or cannot be read.
+     * @throws InvalidHttpRequestException if the head is malformed or exceeds the limits.
+     */
+    public final HttpHeaders readHead() throws IOException, InvalidHttpRequestException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        int from = 0, end;
+        while ((end = findHeadEnd(buffer, from, limit)) < 0) {
+            if (limit >= maxHeadSize)
+                throw new InvalidHttpRequestException(STATUS_REQUEST_HEADER_FIELDS_TOO_LARGE, "Request head exceeds " + maxHeadSize + " bytes.");
+            if (limit == buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, maxHeadSize));
+            from = Math.max(0, limit - 3);
+            final int read = source.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                if (limit == 0)
+                    return null;
+                throw new EOFException("Stream ended inside the request head.");
+            }
+            limit += read;
+        }
+        if (end > maxHeadSize)
+            throw new InvalidHttpRequestException(STATUS_REQUEST_HEADER_FIELDS_TOO_LARGE, "Request head exceeds " + maxHeadSize + " bytes.");
+        position = end;
+        return parseHead(buffer, 0, end, maxHeaders);
+    }
+
+    /**
+     * Find the end of a request head.<br />
+     * Bytes that are neither CR nor LF cannot be part of the CRLFCRLF sequence,
+     * so the scan skips 4 bytes at a time over regular characters.
+     * @param bytes the buffer to scan.
+     * @param from index to start scanning from.
+     * @param to index to stop scanning at (exclusive).
+     * @return the index right after CRLFCRLF, or -1 if the sequence is not there yet.
+     */
+    public static final int findHeadEnd(final byte[] bytes, final int from, final int to) {
+        int i = from + 3;
+        while (i < to) {
+            final byte b = bytes[i];
+            if (b == LF) {
+                if (bytes[i - 1] == CR && bytes[i - 2] == LF && bytes[i - 3] == CR)
+                    return i + 1;
+                i += 2;
+            } else if (b == CR) {
+                i += 1;
+            } else {
+                i += 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the end of a request head in a ByteBuffer, the same way findHeadEnd(byte[], int, int) does.
+     * @param bytes the buffer to scan, read with absolute indexes so its position and limit are ignored.
+     * @param from index to start scanning from.
+     * @param to index to stop scanning at (exclusive).
+     * @return the index right after CRLFCRLF, or -1 if the sequence is not there yet.
+     */
+    public static final int findHeadEnd(final ByteBuffer bytes, final int from, final int to) {
+        int i = from + 3;
+        while (i < to) {
+            final byte b = bytes.get(i);
+            if (b == LF) {
+                if (bytes.get(i - 1) == CR && bytes.get(i - 2) == LF && bytes.get(i - 3) == CR)
+                    return i + 1;
+                i += 2;
+            } else if (b == CR) {
+                i += 1;
+            } else {
+                i += 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a request head.
+     * @param bytes the buffer containing the head.
+     * @param offset index of the first byte of the head.
+     * @param end index right after the CRLFCRLF sequence.
+     * @param maxHeaders maximum number of header fields.
+     * @return the headers of the request.
+     * @throws InvalidHttpRequestException if the head is malformed or has too many header fields.
+     */
+    public static final HttpHeaders parseHead(final byte[] bytes, final int offset, final int end, final int maxHeaders) throws InvalidHttpRequestException {
+        int i = offset;
+        // clients are allowed to send empty lines before the request line
+        while (i < end && (bytes[i] == CR || bytes[i] == LF))
+            i++;
+
+        int start = i;
+        while (i < end && bytes[i] != SP && bytes[i] != CR)
+            i++;
+        if (i == start || i >= end || bytes[i] != SP)
+            throw new InvalidHttpRequestException(STATUS_BAD_REQUEST, "Invalid request line.");
+        final String method = method(bytes, start, i - start);
+
+        start = ++i;
+        while (i < end && bytes[i] != SP && bytes[i] != CR)
+            i++;
+        if (i == start || i >= end || bytes[i] != SP)
+            throw new InvalidHttpRequestException(STATUS_BAD_REQUEST, "Invalid request line.");
+        final String resource = ascii(bytes, start, i - start);
+
+        start = ++i;
+        while (i < end && bytes[i] != CR)
+            i++;
+        final String version = version(bytes, start, i - start);
+        if (version == null)
+            throw new InvalidHttpRequestException(STATUS_BAD_REQUEST, "Invalid http version.");
+        i += 2;
+
+        final HttpHeaders headers = HttpHeaders.request(method, resource, version);
+        // the fields are copied once, names and values are decoded only when they are read
+        final int base = i;
+        final byte[] raw = Arrays.copyOfRange(bytes, base, end);
+        int count = 0;
+        while (i < end && bytes[i] != CR) {
+            if (++count > maxHeaders)
+                throw new InvalidHttpRequestException(STATUS_REQUEST_HEADER_FIELDS_TOO_LARGE, "Request has more than " + maxHeaders + " header fields.");
+            start = i;
+            while (i < end && bytes[i] != COLON && bytes[i] != CR)
+                i++;
+            if (i == start || i >= end || bytes[i] != COLON)
+                throw new InvalidHttpRequestException(STATUS_BAD_REQUEST, "Invalid header field.");
+            final int nameStart = start, nameEnd = i;
+            i++;
+            while (i < end && (bytes[i] == SP || bytes[i] == HT))
+                i++;
+            start = i;
+            while (i < end && bytes[i] != CR)
+                i++;
+            int valueEnd = i;
+            while (valueEnd > start && (bytes[valueEnd - 1] == SP || bytes[valueEnd - 1] == HT))
+                valueEnd--;
+            headers.add(raw, nameStart - base, nameEnd - base, start - base, valueEnd - base);
+            i += 2;
+        }
+        return headers;
+    }
+
+    private static String ascii(final byte[] bytes, final int offset, final int length) {
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean matches(final byte[] bytes, final int offset, final int length, final String value) {
+        if (length != value.length())
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != value.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static final String[] METHODS = { "GET", "POST", "PUT", "HEAD", "DELETE", "PATCH", "OPTIONS", "CONNECT", "TRACE" };
+
+    /**
+     * Known methods are returned as constants instead of new Strings.
+     */
+    private static String method(final byte[] bytes, final int offset, final int length) {
+        for (final String method : METHODS) {
+            if (matches(bytes, offset, length, method))
+                return method;
+        }
+        return ascii(bytes, offset, length);
+    }
+
+    private static final String HTTP_1_1 = "HTTP/1.1", HTTP_1_0 = "HTTP/1.0";
+
+    private static String version(final byte[] bytes, final int offset, final int length) {
+        if (matches(bytes, offset, length, HTTP_1_1))
+            return HTTP_1_1;
+        if (matches(bytes, offset, length, HTTP_1_0))
+            return HTTP_1_0;
+        if (length < 8 || !matches(bytes, offset, 5, "HTTP/"))
+            return null;
+        return ascii(bytes, offset, length);
+    }
+}
@@ -2,23 +2,21 @@ package com.github.tncrazvan.arcano.http;
 
 import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
 import static com.github.tncrazvan.arcano.SharedObject.londonTimezone;
+import static com.github.tncrazvan.arcano.tool.http.Status.STATUS_PAYLOAD_TOO_LARGE;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.security.NoSuchAlgorithmException;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
@@ -36,16 +34,23 @@ import com.github.tncrazvan.arcano.websocket.WebSocketEvent;
 public class HttpRequestReader implements Runnable {
     public Socket client;
     public SSLSocket secureClient = null;
-    public final BufferedReader bufferedReader;
-    public final BufferedWriter bufferedWriter;
+    private BufferedReader bufferedReader = null;
+    private BufferedWriter bufferedWriter = null;
     public final DataOutputStream output;
     public final DataInputStream input;
-    public final StringBuilder outputString = new StringBuilder();
     public HttpContent content = null;
     public String[] location = new String[0];
     public String[] args = new String[0];
     private Matcher matcher;
     private SharedObject so;
+    private final HttpRequestParser parser;
+    private final HttpChannelConnection connection;
+    private final HttpSelectorLoop loop;
+    private boolean keepAlive = false;
+    private boolean upgraded = false;
+    private int requests = 0;
+    // the event serving the requests of this connection, reset for each request
+    HttpEvent event = null;
 
     public static final DateTimeFormatter formatHttpDefaultDate = DateTimeFormatter
             .ofPattern("EEE, d MMM y HH:mm:ss z", Locale.US).withZone(londonTimezone);
@@ -53,155 +58,287 @@ public class HttpRequestReader implements Runnable {
             WEB_SOCKET_PATTERN = Pattern.compile("websocket"), HTTP2_PATTERN = Pattern.compile("h2c");
 
     public HttpRequestReader(final SharedObject so, final Socket client) throws NoSuchAlgorithmException, IOException {
+        this(so, client, null, null);
+    }
+
+    /**
+     * Make a reader for the requests of a connection that are buffered by a selector loop.<br />
+     * The reader is kept by the connection and runs once for each request.
+     * Once the response has been sent the connection is either closed or, 
+     * if it is persistent, handed back to the loop.
+     * @param so the shared object.
+     * @param connection the buffered connection, its channel must be in blocking mode.
+     * @param loop the selector loop that buffered the request.
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public HttpRequestReader(final SharedObject so, final HttpChannelConnection connection, final HttpSelectorLoop loop) throws NoSuchAlgorithmException, IOException {
+        this(so, connection.getChannel().socket(), connection, loop);
+    }
+
+    private HttpRequestReader(final SharedObject so, final Socket client, final HttpChannelConnection connection, final HttpSelectorLoop loop) throws NoSuchAlgorithmException, IOException {
         this.so = so;
         this.client = client;
-        bufferedReader = new BufferedReader(new InputStreamReader(client.getInputStream()));
-        bufferedWriter = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()));
+        this.connection = connection;
+        this.loop = loop;
         output = new DataOutputStream(client.getOutputStream());
-        input = new DataInputStream(client.getInputStream());
+        parser = new HttpRequestParser(client.getInputStream(), so.config.http.maxHeadSize, so.config.http.maxHeaders);
+        input = new DataInputStream(parser.getInputStream());
+    }
+
+    /**
+     * Get a reader for the body of the request, and whatever follows it on the connection.<br />
+     * The reader is made the first time it is asked for, on top of the input stream,
+     * so it never steals bytes the request parser has buffered.
+     * @return the reader.
+     */
+    public final BufferedReader getBufferedReader() {
+        if (bufferedReader == null)
+            bufferedReader = new BufferedReader(new InputStreamReader(input));
+        return bufferedReader;
+    }
+
+    /**
+     * Get a writer for the connection, made the first time it is asked for.
+     * @return the writer.
+     */
+    public final BufferedWriter getBufferedWriter() {
+        if (bufferedWriter == null)
+            bufferedWriter = new BufferedWriter(new OutputStreamWriter(output));
+        return bufferedWriter;
+    }
+
+    /**
+     * Check if the connection should stay open after the current response.
+     * @return true if the connection is persistent, false otherwise.
+     */
+    public final boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public final void setKeepAlive(final boolean keepAlive) {
+        this.keepAlive = keepAlive;
     }
 
     @Override
     public final void run() {
         try {
-            byte[] chain = new byte[] { 0, 0, 0, 0 };
-            boolean keepReading = true, EOFException = false;
-            while (keepReading) {
-                try {
-                    chain[3] = chain[2];
-                    chain[2] = chain[1];
-                    chain[1] = chain[0];
-                    chain[0] = input.readByte();
-                    outputString.append((char) chain[0]);
-                    if ((char) chain[3] == '\r' && (char) chain[2] == '\n' && (char) chain[1] == '\r'
-                            && (char) chain[0] == '\n') {
-                        keepReading = false;
-                    }
-                } catch (final EOFException ex) {
-                    keepReading = false;
-                    EOFException = true;
-                    // ex.printStackTrace();
+            if (connection != null) {
+                content = connection.pull();
+                requests = connection.getRequests();
+                this.keepAlive = this.wantsKeepAlive();
+                connection.countRequest();
+                this.resolve();
+            } else {
+                while (this.read()) {
+                    this.resolve();
+                    if (upgraded || !keepAlive || client.isClosed())
+                        break;
+                    client.setSoTimeout(so.config.http.keepAlive.timeout);
+                    // an idle persistent connection holds no admission slot, read() takes one for the next request
+                    if (so.admission != null)
+                        so.admission.pause();
                 }
             }
-            if (outputString.length() == 0) {
+            this.finish();
+        } catch (final InvalidHttpRequestException ex) {
+            try {
+                output.write((HttpHeaders.response(ex.getStatus())
+                        .set("Content-Length", "0")
+                        .set("Connection", "close")
+                        .toString() + "\r\n").getBytes(so.config.charset));
+                output.flush();
                 client.close();
-            } else {
-                final HttpHeaders clientHeader = HttpHeaders.requestFromString(outputString.toString().trim());
-                // outputString = new StringBuilder();
-                final ArrayList<byte[]> inputList = new ArrayList<>();
-                int length = 0;
-                if (!EOFException) {
-                    int chunkSize = 0;
-                    if (clientHeader.isDefined("Content-Length")) {
-                        chunkSize = Integer.parseInt(clientHeader.get("Content-Length"));
-                    }
-
-                    if (chunkSize > 0) {
-                        chain = new byte[chunkSize];
-                        input.readFully(chain);
-                        inputList.add(chain);
-                        length += chain.length;
-                        // outputString.append(new String(chain,charset));
-                    } else {
-                        int offset = 0;
-                        chain = new byte[so.config.http.mtu];
-                        try {
-                            if (input.available() > 0)
-                                while (input.read(chain) > 0) {
-                                    if (offset < so.config.http.mtu) {
-                                        offset++;
-                                    } else {
-                                        // outputString.append(new String(chain,charset));
-                                        inputList.add(chain);
-                                        length += chain.length;
-                                        offset = 0;
-                                        chain = new byte[so.config.http.mtu];
-                                    }
-                                }
-                        } catch (SocketTimeoutException | EOFException e) {
-                            // outputString.append(new String(chain,charset));
-                            length += chain.length;
-                            inputList.add(chain);
-                        }
-                    }
-                }
-                final byte[] inputBytes = new byte[length];
-                int pos = 0;
-                for (final byte[] bytes : inputList) {
-                    for (int i = 0; i < bytes.length; i++, pos++) {
-                        inputBytes[pos] = bytes[i];
-                    }
-                }
-                this.content = new HttpContent(clientHeader, inputBytes);
-                String uri = content.headers.getResource();
-                if (uri == null) {
-                    output.write(SharedObject.HTTP_RESPONSE_NOT_FOUND.toString().getBytes(so.config.charset));
-                    System.out.println("Invalid resource requsted: " + content.headers.toString());
-                    output.close();
-                    input.close();
-                    client.close();
-                    return;
-                }
-                try {
-                    uri = URLDecoder.decode(uri, so.config.charset);
-                } catch (final IllegalArgumentException ex) {
-                    return;
-                }
-                final String[] uriParts = uri.split("\\?|\\&", 2);
-
-                if(uriParts[0].equals("/")){
-                    this.location = so.config.entryPoint.split("/");
-                }else{
-                    this.location = uriParts[0].split("/");
-                }
-                this.onRequest();
+            } catch (final IOException ex1) {
+                LOGGER.log(Level.WARNING, null, ex1);
             }
-
+            if (connection != null)
+                connection.release();
         } catch (final IOException ex) {
+            if (connection != null)
+                connection.release();
             try {
                 client.close();
             } catch (final IOException ex1) {
                 LOGGER.log(Level.SEVERE, null, ex);
             }
+        } catch (final RuntimeException ex) {
+            // a bug must not leak the buffer of the connection or its socket
+            LOGGER.log(Level.SEVERE, null, ex);
+            if (connection != null)
+                connection.release();
+            try {
+                if (!upgraded)
+                    client.close();
+            } catch (final IOException ex1) {
+                LOGGER.log(Level.WARNING, null, ex1);
+            }
         }
     }
 
-    public final void onRequest() throws UnsupportedEncodingException {
-        if (content.headers != null && content.headers.get("Connection") != null) {
-            matcher = UPGRADE_PATTERN.matcher(content.headers.get("Connection"));
-            if (matcher.find()) {
-                matcher = WEB_SOCKET_PATTERN.matcher(content.headers.get("Upgrade"));
-                // Upgrade connection
-                upgrade();
-            } else {
-                http();
-                try {
-                    this.client.close();
-                } catch (IOException ex) {
-                    LOGGER.log(Level.SEVERE, null, ex);
-                }
+    /**
+     * Read the next request from the socket.<br />
+     * Bytes following the request stay buffered in the input stream, which is what makes pipelining work.
+     * @return true if a request has been read, false if the client closed the connection or went idle.
+     * @throws IOException
+     */
+    private boolean read() throws IOException, InvalidHttpRequestException {
+        content = null;
+        final HttpHeaders clientHeader;
+        try {
+            clientHeader = parser.readHead();
+        } catch (final SocketTimeoutException ex) {
+            // an idle persistent connection simply times out
+            if (parser.isPending())
+                throw ex;
+            return false;
+        }
+        if (clientHeader == null)
+            return false;
+        // a shed request has been answered and its connection closed
+        if (so.admission != null && !so.admission.resume(client, so.admission.priority(clientHeader.getResource())))
+            return false;
+
+        this.content = new HttpContent(clientHeader, new byte[0]);
+        this.keepAlive = this.wantsKeepAlive();
+        // the body is checked against the limit of its route before it is read,
+        // without Content-Length or Transfer-Encoding a request has no body
+        final long limit = so.getMaxBodySize(clientHeader);
+        final HttpBodyInputStream body = HttpBodyInputStream.from(clientHeader, input, limit);
+        if (body != null && HttpBodyInputStream.expectsContinue(clientHeader)) {
+            output.write(HttpBodyInputStream.CONTINUE);
+            output.flush();
+        }
+        if (so.config.http.streamBody)
+            this.content = new HttpContent(clientHeader, body);
+        else if (body != null) {
+            try {
+                this.content = new HttpContent(clientHeader, body.readBody());
+            } catch (final HttpPayloadTooLargeException ex) {
+                throw new InvalidHttpRequestException(STATUS_PAYLOAD_TOO_LARGE, ex.getMessage());
             }
         }
+        requests++;
+        return true;
     }
 
-    private void http() throws UnsupportedEncodingException {
+    /**
+     * Check if the client asked for a persistent connection and the server is willing to keep it.
+     * HTTP/1.1 connections are persistent unless the client says otherwise, 
+     * HTTP/1.0 connections must ask for it explicitly.
+     * @return true if the connection can be kept open after this request.
+     */
+    private boolean wantsKeepAlive() {
+        if (!so.config.http.keepAlive.enabled || requests + 1 >= so.config.http.keepAlive.max)
+            return false;
+        final String connectionHeader = content.headers.get("Connection");
+        if ("HTTP/1.1".equals(content.headers.getVersion()))
+            return connectionHeader == null || !hasToken(connectionHeader, "close");
+        return connectionHeader != null && hasToken(connectionHeader, "keep-alive");
+    }
+
+    private static boolean hasToken(final String header, final String token) {
+        for (final String item : header.split(",")) {
+            if (item.trim().equalsIgnoreCase(token))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take the bytes that follow the request on the connection and have already been buffered.<br />
+     * Upgraded connections must take them before the reader finishes,
+     * since the buffer of a selector loop connection goes back to the pool.
+     * @return the buffered bytes, possibly none.
+     */
+    public final byte[] takeBuffered() {
+        return connection != null ? connection.takeBuffered() : parser.takeBuffered();
+    }
+
+    /**
+     * Close the connection, or hand it back to its selector loop if it is persistent.
+     * Upgraded connections are left open, only their buffer goes back to the pool.
+     * @throws IOException
+     */
+    private void finish() throws IOException {
+        if (keepAlive && !upgraded && connection != null && !client.isClosed()) {
+            connection.getChannel().configureBlocking(false);
+            loop.register(connection);
+            return;
+        }
+        if (connection != null)
+            connection.release();
+        if (!upgraded)
+            client.close();
+    }
+
+    private void resolve() throws IOException {
+        String uri = content.headers.getResource();
+        if (uri == null) {
+            keepAlive = false;
+            output.write(SharedObject.HTTP_RESPONSE_NOT_FOUND.toString().getBytes(so.config.charset));
+            System.out.println("Invalid resource requsted: " + content.headers.toString());
+            output.close();
+            input.close();
+            client.close();
+            return;
+        }
+        try {
+            uri = URLDecoder.decode(uri, so.config.charset);
+        } catch (final IllegalArgumentException ex) {
+            keepAlive = false;
+            return;
+        }
+        final String[] uriParts = uri.split("\\?|\\&", 2);
+
+        if(uriParts[0].equals("/")){
+            this.location = so.config.entryPoint.split("/");
+        }else{
+            this.location = uriParts[0].split("/");
+        }
+        this.onRequest();
+    }
+
+    public final void onRequest() throws IOException {
+        final String connectionHeader = content.headers.get("Connection");
+        final String upgradeHeader = content.headers.get("Upgrade");
+        // "Connection: Upgrade" without an Upgrade header is served as a plain http request
+        if (connectionHeader != null && upgradeHeader != null && UPGRADE_PATTERN.matcher(connectionHeader).find()) {
+            matcher = WEB_SOCKET_PATTERN.matcher(upgradeHeader);
+            // Upgrade connection
+            upgrade(upgradeHeader);
+        } else {
+            http();
+        }
+    }
+
+    private void http() throws IOException {
         try {
             client.setSoTimeout(so.config.timeout);
             HttpEvent.serve(this,so);
+            // whatever the handler left unread must go before the next request can be read
+            if (keepAlive && !content.finish(so.config.http.mtu))
+                keepAlive = false;
         } catch (SocketException ex) {
-            LOGGER.log(Level.SEVERE, null, ex);
+            // the client went away, the connection cannot serve another request
+            keepAlive = false;
+            LOGGER.log(Level.FINE, null, ex);
         }
     }
     
-    private void upgrade(){
+    private void upgrade(final String upgradeHeader) throws IOException {
+        keepAlive = false;
         if (matcher.find()) {
+            // the connection is left open only once a WebSocket has taken it over, finish() closes it otherwise
             try{
-                WebSocketEvent.serve(this,so);
+                upgraded = WebSocketEvent.serve(this,so);
+                if (!upgraded)
+                    output.write((SharedObject.HTTP_RESPONSE_NOT_FOUND.getHttpHeaders().toString() + "\r\n").getBytes(so.config.charset));
             }catch(Exception e){
                 LOGGER.log(Level.SEVERE, null, e);
             }
         } else {
-            matcher = HTTP2_PATTERN.matcher(content.headers.get("Upgrade"));
+            matcher = HTTP2_PATTERN.matcher(upgradeHeader);
             // Http 2.x connection
             if (matcher.find()) {
                 System.out.println("Http 2.0 connection detected. Not yet implemented.");
@@ -3,14 +3,10 @@ package com.github.tncrazvan.arcano.http;
 import static com.github.tncrazvan.arcano.tool.encoding.JsonTools.jsonStringify;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 import com.github.tncrazvan.arcano.tool.action.VoidAction;
-import com.github.tncrazvan.arcano.tool.http.Status;
 import com.github.tncrazvan.arcano.tool.system.ServerFile;
 import com.google.gson.JsonArray;
 
@@ -80,76 +76,47 @@ public class HttpResponse {
      * This response may contain different types of objects such as Strings ints,<br />
      * JsonArrays, JsonObjects, custom Objects and so on.<br />
      * This method resolves that result into something that the http standard can understand,
-     * For example custom objects are converted into JsonObjects and File objects in particular
-     * are converted into raw byte arrays.
+     * For example custom objects are converted into JsonObjects, File objects in particular
+     * are left as they are and marked as raw, their contents are never loaded into memory.
      * @return 
      */
     public final HttpResponse resolve() {
-        try {
-            if (type == JsonArray.class) {
-                if (headers != null && !headers.isDefined("Content-Type")) {
-                    headers.set("Content-Type", "application/json");
-                }
-                final String tmp = ((JsonArray) content).toString();
-                this.content = tmp;
-            } else if (type == File.class || type == ServerFile.class) {
-                final ServerFile file = (ServerFile) content;
-                
-                if(file.getRanges().size() > 1){
-                    if(headers != null){
-                        headers.setStatus(Status.STATUS_PARTIAL_CONTENT);
-                        headers.set("Content-Type","multipart/byteranges; boundary="+file.getMultipartBoundary());
-                    }
-                    this.content = file.readAsMultipart(headers);
-                }else if(file.getRanges().size() > 0){
-                    if(headers != null){
-                        headers.setStatus(Status.STATUS_PARTIAL_CONTENT);
-                        if(!headers.isDefined("Content-Type")){
-                            headers.set("Content-Type", file.getContentType());
-                        }
-                        headers.set("Content-Range", file.getContentRange());
-                    }
-                    int start = file.getRanges().get(0)[0];
-                    int end = file.getRanges().get(0)[1];
-                    if(end < 0)
-                        end = (int)file.length()-start;
-                    int length = end-start+1;
-                    this.content = file.read(start, length);
-                }else{
-                    if(headers != null && !headers.isDefined("Content-Type")){
-                        headers.set("Content-Type", file.getContentType());
-                    }
-                    this.content = file.read();
-                }
-                
-                raw = true;
-            } else if (type == String.class || type == Integer.class || type == Float.class || type == Double.class
-                    || type == Boolean.class || type == Byte.class || type == Character.class || type == Short.class
-                    || type == Long.class) {
-                this.content = String.valueOf(content);
-                if (headers != null && !headers.isDefined("Content-Type")) {
-                    headers.set("Content-Type", "text/plain");
-                }
-            } else if (type == byte[].class) {
-                if (headers != null && !headers.isDefined("Content-Type")) {
-                    headers.set("Content-Type", "text/plain");
-                }
-                raw = true;
-            } else {
-                if(type.isArray()){
-                    this.content = jsonStringify((Object[])content);
-                }else if(this.content instanceof ArrayList){
-                    this.content = jsonStringify(((ArrayList<Object>)content).toArray());
-                }else{
-                    this.content = jsonStringify(content);
-                }
+        if (type == JsonArray.class) {
+            if (headers != null && !headers.isDefined("Content-Type")) {
+                headers.set("Content-Type", "application/json");
+            }
+            final String tmp = ((JsonArray) content).toString();
+            this.content = tmp;
+        } else if (type == File.class || type == ServerFile.class) {
+            final ServerFile file = type == ServerFile.class ? (ServerFile) content : new ServerFile((File) content);
+            
+            if(headers != null && !headers.isDefined("Content-Type")){
+                headers.set("Content-Type", file.getContentType());
+            }
+            // the file is not read here, HttpEvent sends it (or its ranges) straight from the file system
+            this.content = file;
+            
+            raw = true;
+        } else if (type == String.class || type == Integer.class || type == Float.class || type == Double.class
+                || type == Boolean.class || type == Byte.class || type == Character.class || type == Short.class
+                || type == Long.class) {
+            this.content = String.valueOf(content);
+            if (headers != null && !headers.isDefined("Content-Type")) {
+                headers.set("Content-Type", "text/plain");
+            }
+        } else if (type == byte[].class) {
+            if (headers != null && !headers.isDefined("Content-Type")) {
+                headers.set("Content-Type", "text/plain");
+            }
+            raw = true;
+        } else {
+            if(type.isArray()){
+                this.content = jsonStringify((Object[])content);
+            }else if(this.content instanceof ArrayList){
+                this.content = jsonStringify(((ArrayList<Object>)content).toArray());
+            }else{
+                this.content = jsonStringify(content);
             }
-        } catch (final UnsupportedEncodingException ex) {
-            this.content = ex.getMessage().getBytes();
-        } catch (final FileNotFoundException ex) {
-            this.content = ex.getMessage();
-        } catch (final IOException ex) {
-            this.content = ex.getMessage();
         }
         return this;
     }
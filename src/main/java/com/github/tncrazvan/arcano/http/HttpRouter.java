@@ -0,0 +1,290 @@
+package com.github.tncrazvan.arcano.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.tncrazvan.arcano.WebObject;
+
+/**
+ * Routes requests through a tree of path segments, one tree per http method.<br />
+ * Each segment of a route is either static ("user"), a parameter ("{id}"),
+ * a pattern mixing both ("file-{name}") or a wildcard ("*", last segment only, matches the rest of the path).<br />
+ * When more than one route could match, static segments win over patterns, patterns over parameters
+ * and parameters over wildcards, regardless of the order the routes were added in.<br />
+ * Routes are added while the server starts, after that the tree is only read, so it can be walked
+ * by any number of threads without locking.
+ * @author Razvan Tanase
+ */
+public class HttpRouter {
+    public static final String WILDCARD = "*";
+    private static final Pattern PARAMETER_PATTERN = Pattern.compile("\\{[A-z0-9]+\\}");
+
+    private static final class Node {
+        private HashMap<String, Node> statics = null;
+        private ArrayList<Node> patterns = null;
+        private Pattern pattern = null;
+        private Node parameter = null;
+        private Node wildcard = null;
+        private WebObject route = null;
+        private String path = null;
+        private final LongAdder matches = new LongAdder();
+    }
+
+    /**
+     * The result of a successful lookup.
+     */
+    public static final class Match {
+        private final WebObject route;
+        private final String[] values;
+        private final int length;
+
+        private Match(final WebObject route, final String[] values, final int length) {
+            this.route = route;
+            this.values = values;
+            this.length = length;
+        }
+
+        public final WebObject getRoute() {
+            return route;
+        }
+
+        /**
+         * Get the number of captured values.
+         * @return number of values.
+         */
+        public final int size() {
+            return length;
+        }
+
+        /**
+         * Get a captured value.
+         * @param index index of the value, captured values follow the order of the route's paramNames.
+         * @return the value.
+         */
+        public final String get(final int index) {
+            return values[index];
+        }
+
+        /**
+         * Get the captured values as the path parameters of the request.
+         * @return the parameters, keyed by the route's paramNames.
+         */
+        public final HttpPathParameters getParameters() {
+            if (length == 0)
+                return HttpPathParameters.EMPTY;
+            return new HttpPathParameters(route.getParamNames(), values, length);
+        }
+    }
+
+    private final HashMap<String, Node> roots = new HashMap<>();
+    private int maxValues = 0;
+
+    /**
+     * Add a route.<br />
+     * Adding the same path twice for the same method replaces the previous route.
+     * @param method http method of the route.
+     * @param path normalized path of the route.
+     * @param route the route.
+     */
+    public final void add(final String method, final String path, final WebObject route) {
+        Node node = roots.computeIfAbsent(method, key -> new Node());
+        final String[] segments = split(path);
+        int values = 0;
+        for (int i = 0; i < segments.length; i++) {
+            final String segment = segments[i];
+            if (segment.equals(WILDCARD) && i == segments.length - 1) {
+                if (node.wildcard == null)
+                    node.wildcard = new Node();
+                node = node.wildcard;
+                values++;
+            } else if (segment.length() > 2 && segment.charAt(0) == '{' && segment.indexOf('}') == segment.length() - 1) {
+                if (node.parameter == null)
+                    node.parameter = new Node();
+                node = node.parameter;
+                values++;
+            } else if (PARAMETER_PATTERN.matcher(segment).find()) {
+                node = pattern(node, segment);
+                values += node.pattern.matcher("").groupCount();
+            } else {
+                if (node.statics == null)
+                    node.statics = new HashMap<>();
+                node = node.statics.computeIfAbsent(segment, key -> new Node());
+            }
+        }
+        node.route = route;
+        node.path = path;
+        maxValues = Math.max(maxValues, values);
+    }
+
+    private static Node pattern(final Node parent, final String segment) {
+        final Matcher matcher = PARAMETER_PATTERN.matcher(segment);
+        final StringBuilder regex = new StringBuilder("^");
+        int last = 0;
+        while (matcher.find()) {
+            regex.append(Pattern.quote(segment.substring(last, matcher.start()))).append("([^/]+)");
+            last = matcher.end();
+        }
+        regex.append(Pattern.quote(segment.substring(last))).append("$");
+        final String compiled = regex.toString();
+        if (parent.patterns == null)
+            parent.patterns = new ArrayList<>();
+        for (final Node node : parent.patterns) {
+            if (node.pattern.pattern().equals(compiled))
+                return node;
+        }
+        final Node node = new Node();
+        node.pattern = Pattern.compile(compiled, Pattern.CASE_INSENSITIVE);
+        parent.patterns.add(node);
+        return node;
+    }
+
+    /**
+     * Find the route of a request.<br />
+     * Static segments are compared ignoring case, captured values keep the case they were requested with.
+     * @param method http method of the request.
+     * @param path path of the request, without query string.
+     * @return the match, or null if no route matches.
+     */
+    public final Match find(final String method, final String path) {
+        return find(method, path, true);
+    }
+
+    /**
+     * Find the route of a request without counting the match,
+     * for lookups that are not the request being served, such as checking the limits of its route.
+     * @param method http method of the request.
+     * @param path path of the request, without query string.
+     * @return the match, or null if no route matches.
+     */
+    public final Match peek(final String method, final String path) {
+        return find(method, path, false);
+    }
+
+    private Match find(final String method, final String path, final boolean count) {
+        final Node root = roots.get(method);
+        if (root == null)
+            return null;
+        final String[] segments = split(path);
+        final String[] values = new String[maxValues];
+        final int[] length = new int[1];
+        final Node node = find(root, segments, 0, values, length);
+        if (node == null)
+            return null;
+        if (count)
+            node.matches.increment();
+        return new Match(node.route, values, length[0]);
+    }
+
+    /**
+     * Walk the tree depth first, trying static children, then patterns, then the parameter and finally the wildcard.<br />
+     * Captured values are written into "values", "length[0]" is rolled back whenever a branch fails.
+     */
+    private static Node find(final Node node, final String[] segments, final int index, final String[] values, final int[] length) {
+        if (index == segments.length) {
+            if (node.route != null)
+                return node;
+            // a wildcard also matches an empty remainder
+            if (node.wildcard != null && node.wildcard.route != null) {
+                values[length[0]++] = "";
+                return node.wildcard;
+            }
+            return null;
+        }
+        final String segment = segments[index];
+        final int captured = length[0];
+        Node found;
+
+        if (node.statics != null) {
+            Node next = node.statics.get(segment);
+            if (next == null)
+                next = node.statics.get(segment.toLowerCase());
+            if (next != null && (found = find(next, segments, index + 1, values, length)) != null)
+                return found;
+        }
+
+        if (node.patterns != null) {
+            for (final Node next : node.patterns) {
+                final Matcher matcher = next.pattern.matcher(segment);
+                if (!matcher.matches())
+                    continue;
+                length[0] = captured;
+                for (int i = 1; i <= matcher.groupCount(); i++)
+                    values[length[0]++] = matcher.group(i);
+                if ((found = find(next, segments, index + 1, values, length)) != null)
+                    return found;
+            }
+        }
+
+        if (node.parameter != null) {
+            length[0] = captured;
+            values[length[0]++] = segment;
+            if ((found = find(node.parameter, segments, index + 1, values, length)) != null)
+                return found;
+        }
+
+        if (node.wildcard != null && node.wildcard.route != null) {
+            length[0] = captured;
+            values[length[0]++] = String.join("/", Arrays.copyOfRange(segments, index, segments.length));
+            return node.wildcard;
+        }
+
+        length[0] = captured;
+        return null;
+    }
+
+    /**
+     * Get the number of times each route has been matched.
+     * @return a map of "METHOD path" to number of matches, sorted by key.
+     */
+    public final Map<String, Long> getMatchCounts() {
+        final TreeMap<String, Long> counts = new TreeMap<>();
+        for (final Map.Entry<String, Node> root : roots.entrySet())
+            collect(root.getKey(), root.getValue(), counts);
+        return counts;
+    }
+
+    private static void collect(final String method, final Node node, final Map<String, Long> counts) {
+        if (node.route != null)
+            counts.put(method + " " + node.path, node.matches.sum());
+        if (node.statics != null)
+            for (final Node next : node.statics.values())
+                collect(method, next, counts);
+        if (node.patterns != null)
+            for (final Node next : node.patterns)
+                collect(method, next, counts);
+        if (node.parameter != null)
+            collect(method, node.parameter, counts);
+        if (node.wildcard != null)
+            collect(method, node.wildcard, counts);
+    }
+
+    /**
+     * Split a path into its segments, empty segments are skipped.
+     */
+    private static String[] split(final String path) {
+        int count = 0;
+        final int length = path.length();
+        for (int i = 0; i < length; i++) {
+            if (path.charAt(i) != '/' && (i == 0 || path.charAt(i - 1) == '/'))
+                count++;
+        }
+        final String[] segments = new String[count];
+        int start = -1, n = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || path.charAt(i) == '/') {
+                if (start >= 0)
+                    segments[n++] = path.substring(start, i);
+                start = -1;
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.tncrazvan.arcano.http;
+
+import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+import com.github.tncrazvan.arcano.SharedObject;
+
+/**
+ * Reads requests from many non-blocking connections using a single thread.<br />
+ * A connection is handed to the thread pool only after its whole request has been buffered,
+ * so slow or idle clients never hold a pool thread.
+ * @author Razvan Tanase
+ */
+public class HttpSelectorLoop implements Runnable {
+    private final SharedObject so;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<HttpChannelConnection> pending = new ConcurrentLinkedQueue<>();
+    private final ArrayList<SelectionKey> ready = new ArrayList<>();
+    private long lastSweep = System.currentTimeMillis();
+
+    public HttpSelectorLoop(final SharedObject so) throws IOException {
+        this.so = so;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Add a connection to this loop.
+     * The connection will start being read on the next iteration of the loop.
+     * @param channel a non-blocking client channel.
+     */
+    public final void register(final SocketChannel channel) {
+        register(new HttpChannelConnection(channel, so.config.http.maxHeadSize, so.config.http.maxHeaders, so.config.http.streamBody, so::getMaxBodySize));
+    }
+
+    /**
+     * Add a connection to this loop, including any bytes it has already buffered.<br />
+     * This is how persistent connections come back to the loop after a response has been sent.
+     * @param connection a connection whose channel is in non-blocking mode.
+     */
+    public final void register(final HttpChannelConnection connection) {
+        pending.add(connection);
+        selector.wakeup();
+    }
+
+    @Override
+    public final void run() {
+        while (so.config.listen) {
+            try {
+                selector.select(1000);
+                registerPending();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable())
+                        read(key);
+                }
+                dispatch();
+                sweep();
+            } catch (final IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }
+        try {
+            for (final SelectionKey key : selector.keys())
+                close(key);
+            selector.close();
+        } catch (final IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void registerPending() {
+        HttpChannelConnection connection;
+        while ((connection = pending.poll()) != null) {
+            try {
+                final SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                try {
+                    // pipelined requests may already be waiting in the buffer
+                    connection.resume();
+                    if (connection.isComplete())
+                        ready.add(key);
+                } catch (final InvalidHttpRequestException ex) {
+                    reject(key, ex.getStatus());
+                }
+            } catch (final IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+                connection.release();
+                try {
+                    connection.getChannel().close();
+                } catch (final IOException ex1) {
+                    LOGGER.log(Level.WARNING, null, ex1);
+                }
+            }
+        }
+    }
+
+    private void read(final SelectionKey key) {
+        final HttpChannelConnection connection = (HttpChannelConnection) key.attachment();
+        try {
+            if (connection.read() < 0) {
+                close(key);
+                return;
+            }
+            if (connection.isComplete())
+                ready.add(key);
+        } catch (final InvalidHttpRequestException ex) {
+            reject(key, ex.getStatus());
+        } catch (final IOException ex) {
+            close(key);
+        }
+    }
+
+    /**
+     * Answer with an error status and close the connection.
+     * The response is tiny, so a single non-blocking write is enough.
+     */
+    private void reject(final SelectionKey key, final String status) {
+        try {
+            final byte[] response = (HttpHeaders.response(status)
+                    .set("Content-Length", "0")
+                    .set("Connection", "close")
+                    .toString() + "\r\n").getBytes(so.config.charset);
+            ((SocketChannel) key.channel()).write(ByteBuffer.wrap(response));
+        } catch (final IOException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+        }
+        close(key);
+    }
+
+    /**
+     * Hand every fully buffered request to the thread pool.<br />
+     * Channels must leave the selector before they can be switched to blocking mode,
+     * which is what the HttpRequestReader expects.
+     */
+    private void dispatch() throws IOException {
+        if (ready.isEmpty())
+            return;
+        for (final SelectionKey key : ready)
+            key.cancel();
+        selector.selectNow();
+        for (final SelectionKey key : ready) {
+            final HttpChannelConnection connection = (HttpChannelConnection) key.attachment();
+            final SocketChannel channel = connection.getChannel();
+            try {
+                channel.configureBlocking(true);
+                final String resource = connection.getHeaders().getResource();
+                HttpRequestReader reader = connection.getReader();
+                if (reader == null) {
+                    reader = new HttpRequestReader(so, connection, this);
+                    connection.setReader(reader);
+                }
+                // a shed request never reaches the reader, its buffer goes back to the pool here instead
+                so.submit(channel.socket(), resource, reader, connection::release);
+            } catch (final IOException | NoSuchAlgorithmException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+                close(key);
+            }
+        }
+        ready.clear();
+    }
+
+    /**
+     * Close connections that have been idle for longer than the configured timeout.<br />
+     * Persistent connections waiting for their next request use the keep alive timeout instead.
+     */
+    private void sweep() {
+        final long now = System.currentTimeMillis();
+        if (now - lastSweep < 1000)
+            return;
+        lastSweep = now;
+        if (so.admission != null)
+            so.admission.sweep();
+        for (final SelectionKey key : selector.keys()) {
+            final HttpChannelConnection connection = (HttpChannelConnection) key.attachment();
+            if (connection == null)
+                continue;
+            final int timeout = connection.getRequests() > 0 ? so.config.http.keepAlive.timeout : so.config.timeout;
+            if (now - connection.getLastActivity() > timeout)
+                close(key);
+        }
+    }
+
+    private void close(final SelectionKey key) {
+        key.cancel();
+        final HttpChannelConnection connection = (HttpChannelConnection) key.attachment();
+        if (connection != null)
+            connection.release();
+        try {
+            key.channel().close();
+        } catch (final IOException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+        }
+    }
+}
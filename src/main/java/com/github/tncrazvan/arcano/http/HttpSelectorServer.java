@@ -0,0 +1,55 @@
+package com.github.tncrazvan.arcano.http;
+
+import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+
+import com.github.tncrazvan.arcano.SharedObject;
+
+/**
+ * Accepts connections on a ServerSocketChannel and spreads them
+ * across a number of HttpSelectorLoop objects.
+ * @author Razvan Tanase
+ */
+public class HttpSelectorServer {
+    private final SharedObject so;
+    private final HttpSelectorLoop[] loops;
+
+    public HttpSelectorServer(final SharedObject so) throws IOException {
+        this.so = so;
+        this.loops = new HttpSelectorLoop[so.config.io.selectors];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new HttpSelectorLoop(so);
+    }
+
+    /**
+     * Start the selector loops and accept connections until the server stops listening.
+     * @throws IOException
+     */
+    public final void listen() throws IOException {
+        for (int i = 0; i < loops.length; i++)
+            new Thread(loops[i], "HttpSelectorLoop-" + i).start();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(so.config.bindAddress, so.config.port));
+            System.out.println("Server started (using " + loops.length + " selector loops).");
+            int next = 0;
+            while (so.config.listen) {
+                try {
+                    final SocketChannel channel = server.accept();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                } catch (final IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+}
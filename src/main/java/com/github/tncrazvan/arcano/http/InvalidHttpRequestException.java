@@ -0,0 +1,27 @@
+package com.github.tncrazvan.arcano.http;
+
+/**
+ * Thrown when a request cannot be parsed or exceeds the configured limits.
+ * @author Razvan Tanase
+ */
+public class InvalidHttpRequestException extends Exception{
+    private static final long serialVersionUID = -4093481285913012741L;
+    private final String status;
+
+    /**
+     * @param status the status the server should answer with.
+     * @param message a description of the problem.
+     */
+    public InvalidHttpRequestException(final String status, final String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * Get the status the server should answer with.
+     * @return the http status.
+     */
+    public final String getStatus() {
+        return status;
+    }
+}
@@ -44,7 +44,7 @@ public class ShellScript {
             argsArray.add(arg);
         }
         final JsonObject queryObject = new JsonObject();
-        event.request.queryStrings.forEach((key, value) -> {
+        event.request.getQueryStrings().forEach((key, value) -> {
             queryObject.addProperty(key, value);
         });
         
@@ -0,0 +1,520 @@
+package com.github.tncrazvan.arcano.http;
+
+import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
+import static com.github.tncrazvan.arcano.tool.http.ContentType.resolveContentType;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+import com.github.tncrazvan.arcano.SharedObject;
+import com.github.tncrazvan.arcano.tool.compression.CompressionCodec;
+import com.github.tncrazvan.arcano.tool.compression.CompressionCodecs;
+
+/**
+ * Keeps small static files in memory, along with their compressed variants.<br />
+ * Variants are read from precompressed siblings of the file when there are any ("app.js.br", "app.js.gz", ...),
+ * otherwise they are compressed with the configured codecs.<br />
+ * Entries are evicted in least recently used order once the configured size is exceeded.<br />
+ * Files under webRoot are watched with a WatchService and dropped as soon as they change,
+ * so a hit never touches the disk. Files outside webRoot (or every file, when watching is disabled)
+ * are checked against their last modified time on every hit.
+ * @author Razvan Tanase
+ */
+public class StaticFileCache implements Runnable {
+    /**
+     * Format used by Last-Modified and If-Modified-Since.
+     */
+    public static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    /**
+     * A cached file.
+     */
+    public static class Entry {
+        private final Path path;
+        private final long lastModified;
+        private final String etag;
+        private final String contentType;
+        private final byte[] identity;
+        private final String[] encodings;
+        private final byte[][] variants;
+        private final Path[] siblings;
+        private final long[] siblingsModified;
+
+        private Entry(final Path path, final long lastModified, final String contentType, final byte[] identity, final String[] encodings, final byte[][] variants, final Path[] siblings, final long[] siblingsModified) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.etag = StaticFileCache.etag(identity.length, lastModified);
+            this.contentType = contentType;
+            this.identity = identity;
+            this.encodings = encodings;
+            this.variants = variants;
+            this.siblings = siblings;
+            this.siblingsModified = siblingsModified;
+        }
+
+        public final long getLastModified() {
+            return lastModified;
+        }
+
+        public final String getEtag() {
+            return etag;
+        }
+
+        public final String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Check if this file has compressed variants.
+         * @return true if at least one compressed variant exists, false otherwise.
+         */
+        public final boolean hasVariants() {
+            return encodings.length > 0;
+        }
+
+        /**
+         * Get the contents of the file.
+         * @param encoding the content coding, null for the uncompressed contents.
+         * @return the contents, or null if there is no such variant.
+         */
+        public final byte[] get(final String encoding) {
+            if (encoding == null)
+                return identity;
+            for (int i = 0; i < encodings.length; i++)
+                if (encodings[i].equalsIgnoreCase(encoding))
+                    return variants[i];
+            return null;
+        }
+
+        /**
+         * Pick the variant to send to a client.
+         * @param acceptEncoding the Accept-Encoding header of the request, can be null.
+         * @return the content coding of the variant, or null if the uncompressed contents should be sent.
+         */
+        public final String negotiate(final String acceptEncoding) {
+            return HttpCompression.negotiate(acceptEncoding, encodings);
+        }
+
+        private long size() {
+            long size = identity.length;
+            for (final byte[] variant : variants)
+                size += variant.length;
+            return size;
+        }
+    }
+
+    private final SharedObject so;
+    private final Path root;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    // moves on every invalidation, a file read while it moved may be stale and is not cached
+    private long generation = 0;
+    private WatchService watcher = null;
+
+    public StaticFileCache(final SharedObject so) {
+        this.so = so;
+        this.root = Paths.get(so.config.webRoot).toAbsolutePath().normalize();
+        if (so.config.staticCache.watch) {
+            try {
+                watcher = root.getFileSystem().newWatchService();
+                register(root);
+                final Thread thread = new Thread(this, "StaticFileCache");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (final IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+                watcher = null;
+            }
+        }
+    }
+
+    /**
+     * Get a file from the cache, loading it if needed.
+     * @param file the file to get.
+     * @return the cached file, or null if the file does not exist, is not a regular file or is too large to be cached.
+     * @throws IOException if the file cannot be read.
+     */
+    public final Entry get(final File file) throws IOException {
+        final Path path = file.toPath().toAbsolutePath().normalize();
+        final boolean watched = watcher != null && path.startsWith(root);
+        final long loading;
+        synchronized (entries) {
+            final Entry entry = entries.get(path);
+            if (entry != null && (watched || isFresh(entry))) {
+                hits++;
+                return entry;
+            }
+            if (entry != null)
+                remove(path);
+            misses++;
+            loading = generation;
+        }
+
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (final NoSuchFileException ex) {
+            return null;
+        }
+        if (!attributes.isRegularFile() || attributes.size() > so.config.staticCache.maxFileSize || attributes.size() > so.config.staticCache.maxSize)
+            return null;
+        final byte[] identity = Files.readAllBytes(path);
+        if (identity.length != attributes.size())
+            // the file is being written, try again on the next request
+            return null;
+        final String contentType = resolveContentType(path.getFileName().toString());
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        final boolean compressible = identity.length >= so.config.compress.minSize && HttpCompression.isCompressible(contentType, so.config.compress.types);
+        final ArrayList<String> encodings = new ArrayList<>();
+        final ArrayList<byte[]> variants = new ArrayList<>();
+        final ArrayList<Path> siblings = new ArrayList<>();
+        final ArrayList<Long> siblingsModified = new ArrayList<>();
+        for (final String encoding : so.config.compression) {
+            final CompressionCodec codec = CompressionCodecs.get(encoding);
+            if (codec == null)
+                continue;
+            byte[] variant = null;
+            if (so.config.compress.precompressed) {
+                final Path sibling = sibling(path, codec);
+                final long siblingModified = readSibling(sibling, lastModified, identity.length);
+                if (siblingModified >= 0) {
+                    variant = Files.readAllBytes(sibling);
+                    siblings.add(sibling);
+                    siblingsModified.add(siblingModified);
+                }
+            }
+            if (variant == null && compressible && codec.isAvailable())
+                variant = smaller(codec.compress(identity, so.config.compress.level), identity);
+            if (variant != null) {
+                encodings.add(encoding);
+                variants.add(variant);
+            }
+        }
+        final long[] modified = new long[siblingsModified.size()];
+        for (int i = 0; i < modified.length; i++)
+            modified[i] = siblingsModified.get(i);
+        final Entry entry = new Entry(path, lastModified, contentType, identity,
+                encodings.toArray(new String[0]), variants.toArray(new byte[0][]), siblings.toArray(new Path[0]), modified);
+        synchronized (entries) {
+            // a change was seen while the file was read, this request gets what was read but the next one reads it again
+            if (generation != loading)
+                return entry;
+            final Entry previous = entries.put(path, entry);
+            if (previous != null)
+                size -= previous.size();
+            size += entry.size();
+            final Iterator<Entry> eldest = entries.values().iterator();
+            while (size > so.config.staticCache.maxSize && eldest.hasNext()) {
+                size -= eldest.next().size();
+                eldest.remove();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Get the number of requests that have been served from memory.
+     * @return number of hits.
+     */
+    public final long getHits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    /**
+     * Get the number of requests that had to look at the file system.
+     * @return number of misses.
+     */
+    public final long getMisses() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    /**
+     * Get the number of bytes held by the cache, compressed variants included.
+     * @return size of the cache.
+     */
+    public final long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * Drop every cached file.
+     */
+    public final void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+            generation++;
+        }
+    }
+
+    /**
+     * Drop a file, or every file inside a directory.
+     * @param path the file or directory.
+     */
+    public final void invalidate(final Path path) {
+        final Path target = path.toAbsolutePath().normalize();
+        synchronized (entries) {
+            // the file may be being read by get(), it is not in the map yet
+            generation++;
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                if (entry.path.startsWith(target)) {
+                    size -= entry.size();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void remove(final Path path) {
+        final Entry entry = entries.remove(path);
+        if (entry != null)
+            size -= entry.size();
+    }
+
+    private static boolean isFresh(final Entry entry) {
+        final File file = entry.path.toFile();
+        if (file.lastModified() != entry.lastModified || file.length() != entry.identity.length)
+            return false;
+        for (int i = 0; i < entry.siblings.length; i++)
+            if (entry.siblings[i].toFile().lastModified() != entry.siblingsModified[i])
+                return false;
+        return true;
+    }
+
+    private static Path sibling(final Path path, final CompressionCodec codec) {
+        return path.resolveSibling(path.getFileName().toString() + codec.getExtension());
+    }
+
+    /**
+     * Check if a precompressed sibling can be served in place of its file.<br />
+     * Siblings older than their file are stale, siblings that are not smaller than their file are useless.
+     * @return the last modified time of the sibling, or -1 if it must be ignored.
+     */
+    private static long readSibling(final Path sibling, final long lastModified, final long length) throws IOException {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(sibling, BasicFileAttributes.class);
+        } catch (final NoSuchFileException ex) {
+            return -1;
+        }
+        final long siblingModified = attributes.lastModifiedTime().toMillis();
+        if (!attributes.isRegularFile() || siblingModified < lastModified || attributes.size() >= length)
+            return -1;
+        return siblingModified;
+    }
+
+    /**
+     * Find the precompressed siblings of a file that can be served in place of it,
+     * for example "app.js.br" for "app.js".<br />
+     * This is how files that are not cached are served compressed.
+     * @param file the file.
+     * @param encodings content codings, in order of preference.
+     * @return content codings that have a sibling, in the same order.
+     * @throws IOException if the file system cannot be read.
+     */
+    public static final String[] siblings(final File file, final String[] encodings) throws IOException {
+        final Path path = file.toPath();
+        final long lastModified = file.lastModified(), length = file.length();
+        ArrayList<String> found = null;
+        for (final String encoding : encodings) {
+            final CompressionCodec codec = CompressionCodecs.get(encoding);
+            if (codec == null || readSibling(sibling(path, codec), lastModified, length) < 0)
+                continue;
+            if (found == null)
+                found = new ArrayList<>();
+            found.add(encoding);
+        }
+        return found == null ? new String[0] : found.toArray(new String[0]);
+    }
+
+    /**
+     * Get the precompressed sibling of a file.
+     * @param file the file.
+     * @param encoding content coding of the sibling.
+     * @return the sibling, which may not exist.
+     */
+    public static final File sibling(final File file, final String encoding) {
+        return sibling(file.toPath(), CompressionCodecs.get(encoding)).toFile();
+    }
+
+    private static byte[] smaller(final byte[] compressed, final byte[] identity) {
+        return compressed != null && compressed.length < identity.length ? compressed : null;
+    }
+
+    /**
+     * Drop the file a precompressed sibling belongs to, when the sibling changes.
+     */
+    private void invalidateSibling(final Path child) {
+        final String name = child.getFileName().toString();
+        for (final String encoding : so.config.compression) {
+            final CompressionCodec codec = CompressionCodecs.get(encoding);
+            if (codec != null && name.length() > codec.getExtension().length() && name.endsWith(codec.getExtension()))
+                invalidate(child.resolveSibling(name.substring(0, name.length() - codec.getExtension().length())));
+        }
+    }
+
+    /**
+     * Register a directory and all of its subdirectories with the watch service.
+     */
+    private void register(final Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            final Iterator<Path> iterator = paths.filter(Files::isDirectory).iterator();
+            while (iterator.hasNext())
+                iterator.next().register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        }
+    }
+
+    /**
+     * Drop cached files as soon as they change on disk.
+     */
+    @Override
+    public final void run() {
+        try {
+            while (true) {
+                final WatchKey key = watcher.take();
+                final Path directory = (Path) key.watchable();
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        clear();
+                        continue;
+                    }
+                    final Path child = directory.resolve((Path) event.context());
+                    invalidate(child);
+                    invalidateSibling(child);
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+                        try {
+                            register(child);
+                        } catch (final IOException ex) {
+                            LOGGER.log(Level.WARNING, null, ex);
+                        }
+                    }
+                }
+                key.reset();
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException ex) {
+            clear();
+        }
+    }
+
+    /**
+     * Make an entity tag out of the length and last modified time of a file.
+     * @param length length of the file.
+     * @param lastModified last modified time of the file in milliseconds.
+     * @return the entity tag, quotes included.
+     */
+    public static final String etag(final long length, final long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Get the entity tag of a compressed variant, which must differ from the one of the uncompressed contents.
+     * @param etag the entity tag of the uncompressed contents.
+     * @param encoding the content coding of the variant, null for the uncompressed contents.
+     * @return the entity tag of the variant.
+     */
+    public static final String etag(final String etag, final String encoding) {
+        if (encoding == null)
+            return etag;
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * Check if a conditional request can be answered with 304 Not Modified.<br />
+     * If-None-Match takes precedence over If-Modified-Since.
+     * @param headers headers of the request.
+     * @param etag entity tag of the representation that would be sent.
+     * @param lastModified last modified time of the file in milliseconds.
+     * @return true if the client already has the representation, false otherwise.
+     */
+    public static final boolean isNotModified(final HttpHeaders headers, final String etag, final long lastModified) {
+        final String ifNoneMatch = headers.get("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/"))
+                    tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag))
+                    return true;
+            }
+            return false;
+        }
+        final String ifModifiedSince = headers.get("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                final long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                // http dates have a resolution of one second
+                return lastModified / 1000 <= since / 1000;
+            } catch (final DateTimeParseException ex) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if the ranges of a request can be sent, given its "If-Range" header.<br />
+     * An entity tag must match the file exactly (weak tags never match), a date must be the exact
+     * last modified time of the file. When "If-Range" does not match, the whole file is sent instead.
+     * @param ifRange the "If-Range" header, can be null.
+     * @param etag entity tag of the uncompressed contents of the file.
+     * @param lastModified last modified time of the file in milliseconds.
+     * @return true if the ranges can be sent, false if the whole file must be sent.
+     */
+    public static final boolean isRangeValid(String ifRange, final String etag, final long lastModified) {
+        if (ifRange == null)
+            return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/"))
+            return false;
+        if (ifRange.startsWith("\""))
+            return ifRange.equals(etag);
+        try {
+            final long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return lastModified / 1000 == date / 1000;
+        } catch (final DateTimeParseException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Format a time as an http date.
+     * @param time time in milliseconds.
+     * @return the http date.
+     */
+    public static final String httpDate(final long time) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(time));
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.tncrazvan.arcano.tool.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * The "br" content coding.<br />
+ * Brotli needs a native encoder, which is looked up at runtime from brotli4j
+ * (com.aayushatharva.brotli4j). When brotli4j is not on the class path, or its native library
+ * cannot be loaded, this codec is not available and only files precompressed with Brotli
+ * (for example "app.js.br") are served with it.
+ * @author Razvan Tanase
+ */
+public class BrotliCodec implements CompressionCodec {
+    public static final String ENCODING = "br";
+    private static final Constructor<?> PARAMETERS;
+    private static final Method SET_QUALITY;
+    private static final Constructor<?> OUTPUT_STREAM;
+    static {
+        Constructor<?> parameters = null, stream = null;
+        Method quality = null;
+        try {
+            final Class<?> loader = Class.forName("com.aayushatharva.brotli4j.Brotli4jLoader");
+            if ((Boolean) loader.getMethod("isAvailable").invoke(null)) {
+                final Class<?> type = Class.forName("com.aayushatharva.brotli4j.encoder.Encoder$Parameters");
+                parameters = type.getConstructor();
+                quality = type.getMethod("setQuality", int.class);
+                stream = Class.forName("com.aayushatharva.brotli4j.encoder.BrotliOutputStream")
+                        .getConstructor(OutputStream.class, type, int.class);
+            }
+        } catch (final ReflectiveOperationException | LinkageError ex) {
+            parameters = null;
+            stream = null;
+        }
+        PARAMETERS = parameters;
+        SET_QUALITY = quality;
+        OUTPUT_STREAM = stream;
+    }
+
+    @Override
+    public String getEncoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public String getExtension() {
+        return ".br";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return OUTPUT_STREAM != null;
+    }
+
+    /**
+     * Brotli qualities go from 0 to 11, levels from 1 to 9 are used as they are,
+     * which keeps dynamic responses in the range where Brotli is still fast.
+     */
+    @Override
+    public OutputStream newOutputStream(final OutputStream out, final int level, final int size) throws IOException {
+        if (OUTPUT_STREAM == null)
+            throw new IOException("Brotli is not available, add brotli4j to the class path.");
+        try {
+            final Object parameters = PARAMETERS.newInstance();
+            SET_QUALITY.invoke(parameters, level);
+            return (OutputStream) OUTPUT_STREAM.newInstance(out, parameters, size);
+        } catch (final InvocationTargetException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        } catch (final ReflectiveOperationException ex) {
+            throw new IOException(ex);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.github.tncrazvan.arcano.tool.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.github.tncrazvan.arcano.tool.system.BufferPool;
+
+/**
+ * Compresses data with "gzip" or "deflate" using a Deflater from the DeflaterPool.<br />
+ * Flushing the stream flushes the compressor too, so whatever has been written so far
+ * reaches the client, which is what streamed responses need.<br />
+ * Closing the stream finishes the compressed data, closes the underlying stream
+ * and gives the Deflater back to the pool.
+ * @author Razvan Tanase
+ */
+public class CompressedOutputStream extends DeflaterOutputStream {
+    public static final String GZIP = "gzip", DEFLATE = "deflate";
+    private static final byte[] GZIP_HEADER = {
+        (byte) 0x1f, (byte) 0x8b, // magic number
+        8,                        // compression method (deflate)
+        0,                        // flags
+        0, 0, 0, 0,               // modification time
+        0,                        // extra flags
+        (byte) 0xff               // operating system (unknown)
+    };
+    private final boolean gzip;
+    private final int level;
+    private final CRC32 crc;
+    private boolean released = false;
+
+    /**
+     * @param out the stream to write compressed data to.
+     * @param encoding "gzip" or "deflate".
+     * @param level compression level, from 1 (fastest) to 9 (smallest), -1 for the default level.
+     * @param size size of the output buffer.
+     * @throws IOException if the gzip header cannot be written.
+     */
+    public CompressedOutputStream(final OutputStream out, final String encoding, final int level, final int size) throws IOException {
+        super(out, DeflaterPool.borrow(level, GZIP.equals(encoding)), size, true);
+        this.gzip = GZIP.equals(encoding);
+        this.level = level;
+        if (gzip) {
+            crc = new CRC32();
+            out.write(GZIP_HEADER);
+        } else {
+            crc = null;
+        }
+    }
+
+    /**
+     * Check if a content coding is supported by this stream.
+     * @param encoding the content coding.
+     * @return true for "gzip" and "deflate", false otherwise.
+     */
+    public static boolean supports(final String encoding) {
+        return GZIP.equals(encoding) || DEFLATE.equals(encoding);
+    }
+
+    /**
+     * Compress a whole payload.<br />
+     * The payload is deflated straight into a buffer leased from the BufferPool, large enough for the worst case,
+     * and copied out once into an array of the exact size.
+     * @param data the payload.
+     * @param encoding "gzip" or "deflate".
+     * @param level compression level.
+     * @return the compressed payload.
+     * @throws IOException if the encoding is not supported.
+     */
+    public static byte[] compress(final byte[] data, final String encoding, final int level) throws IOException {
+        if (!supports(encoding))
+            throw new IOException("Unsupported content coding: " + encoding);
+        final boolean gzip = GZIP.equals(encoding);
+        final Deflater deflater = DeflaterPool.borrow(level, gzip);
+        // deflate never grows data by more than a few bytes every 16KB, plus the gzip header and trailer
+        BufferPool.Lease lease = BufferPool.lease(data.length + (data.length >> 10) + 64);
+        boolean clean = false;
+        try {
+            if (gzip)
+                lease.buffer().put(GZIP_HEADER);
+            deflater.setInput(data);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (!lease.buffer().hasRemaining())
+                    lease = BufferPool.grow(lease);
+                deflater.deflate(lease.buffer());
+            }
+            if (gzip) {
+                if (lease.buffer().remaining() < 8)
+                    lease = BufferPool.grow(lease);
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                final long value = crc.getValue(), length = data.length;
+                lease.buffer().put(new byte[] {
+                    (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                    (byte) length, (byte) (length >> 8), (byte) (length >> 16), (byte) (length >> 24)
+                });
+            }
+            final ByteBuffer buffer = lease.buffer();
+            buffer.flip();
+            final byte[] compressed = new byte[buffer.remaining()];
+            buffer.get(compressed);
+            clean = true;
+            return compressed;
+        } finally {
+            lease.release();
+            if (clean)
+                DeflaterPool.release(deflater, level, gzip);
+            else
+                deflater.end();
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        super.write(b, off, len);
+        if (crc != null)
+            crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (def.finished())
+            return;
+        super.finish();
+        if (gzip) {
+            final long value = crc.getValue(), length = def.getBytesRead();
+            out.write(new byte[] {
+                (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                (byte) length, (byte) (length >> 8), (byte) (length >> 16), (byte) (length >> 24)
+            });
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean clean = false;
+        try {
+            super.close();
+            clean = true;
+        } finally {
+            if (!released) {
+                released = true;
+                // a deflater that failed half way is not worth reusing
+                if (clean)
+                    DeflaterPool.release(def, level, gzip);
+                else
+                    def.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.tncrazvan.arcano.tool.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A content coding the server can compress responses with ("gzip", "br", "zstd", ...).<br />
+ * Codecs are looked up by content coding through CompressionCodecs.
+ * More codecs can be plugged in by listing their class names in
+ * "META-INF/services/com.github.tncrazvan.arcano.tool.compression.CompressionCodec",
+ * a plugged in codec replaces the built in codec of the same content coding.
+ * @author Razvan Tanase
+ */
+public interface CompressionCodec {
+
+    /**
+     * Get the content coding of this codec, as found in Accept-Encoding and Content-Encoding.
+     * @return the content coding, for example "br".
+     */
+    public String getEncoding();
+
+    /**
+     * Get the file name extension of files precompressed with this codec.<br />
+     * "app.js" precompressed with "br" is expected to be found at "app.js.br".
+     * @return the extension, dot included.
+     */
+    public String getExtension();
+
+    /**
+     * Check if this codec can compress data at runtime.<br />
+     * Codecs that depend on a native library may not be able to,
+     * files precompressed with them can still be served.
+     * @return true if the codec can compress data, false otherwise.
+     */
+    public default boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Make a stream that compresses everything written to it.<br />
+     * Flushing the stream must push whatever has been written so far to the underlying stream,
+     * closing it must finish the compressed data and close the underlying stream.
+     * @param out the stream to write compressed data to.
+     * @param level compression level, from 1 (fastest) to 9 (smallest).
+     * @param size size of the output buffer.
+     * @return the compressing stream.
+     * @throws IOException if the stream cannot be created.
+     */
+    public OutputStream newOutputStream(OutputStream out, int level, int size) throws IOException;
+
+    /**
+     * Compress a whole payload.
+     * @param data the payload.
+     * @param level compression level, from 1 (fastest) to 9 (smallest).
+     * @return the compressed payload.
+     * @throws IOException if the payload cannot be compressed.
+     */
+    public default byte[] compress(final byte[] data, final int level) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+        try (OutputStream stream = newOutputStream(output, level, Math.max(512, Math.min(data.length, 65536)))) {
+            stream.write(data);
+        }
+        return output.toByteArray();
+    }
+}
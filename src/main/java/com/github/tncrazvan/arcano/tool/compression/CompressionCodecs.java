@@ -0,0 +1,66 @@
+package com.github.tncrazvan.arcano.tool.compression;
+
+import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
+
+import java.util.ArrayList;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Registry of the compression codecs, by content coding.<br />
+ * "gzip", "deflate", "br" and "zstd" are built in, codecs found through the ServiceLoader
+ * are registered after them and replace them.
+ * @author Razvan Tanase
+ */
+public final class CompressionCodecs {
+    private static final ConcurrentHashMap<String, CompressionCodec> CODECS = new ConcurrentHashMap<>();
+    static {
+        register(new DeflateCodec(CompressedOutputStream.GZIP));
+        register(new DeflateCodec(CompressedOutputStream.DEFLATE));
+        register(new BrotliCodec());
+        register(new ZstdCodec());
+        try {
+            for (final CompressionCodec codec : ServiceLoader.load(CompressionCodec.class))
+                register(codec);
+        } catch (final ServiceConfigurationError ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+        }
+    }
+
+    private CompressionCodecs() {
+    }
+
+    /**
+     * Register a codec, replacing the codec of the same content coding if there is one.
+     * @param codec the codec.
+     */
+    public static void register(final CompressionCodec codec) {
+        CODECS.put(codec.getEncoding().toLowerCase(), codec);
+    }
+
+    /**
+     * Get the codec of a content coding.
+     * @param encoding the content coding, case insensitive.
+     * @return the codec, or null if there is no such codec.
+     */
+    public static CompressionCodec get(final String encoding) {
+        return encoding == null ? null : CODECS.get(encoding.toLowerCase());
+    }
+
+    /**
+     * Keep only the content codings that can be compressed at runtime.
+     * @param encodings content codings, in order of preference.
+     * @return the available content codings, in the same order.
+     */
+    public static String[] available(final String[] encodings) {
+        final ArrayList<String> available = new ArrayList<>(encodings.length);
+        for (final String encoding : encodings) {
+            final CompressionCodec codec = get(encoding);
+            if (codec != null && codec.isAvailable())
+                available.add(encoding);
+        }
+        return available.toArray(new String[0]);
+    }
+}
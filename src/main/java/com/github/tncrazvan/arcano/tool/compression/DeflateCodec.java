@@ -0,0 +1,43 @@
+package com.github.tncrazvan.arcano.tool.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The "gzip" and "deflate" content codings, backed by CompressedOutputStream and the DeflaterPool.
+ * @author Razvan Tanase
+ */
+public class DeflateCodec implements CompressionCodec {
+    private final String encoding;
+    private final String extension;
+
+    /**
+     * @param encoding "gzip" or "deflate".
+     */
+    public DeflateCodec(final String encoding) {
+        if (!CompressedOutputStream.supports(encoding))
+            throw new IllegalArgumentException("Unsupported content coding: " + encoding);
+        this.encoding = encoding;
+        this.extension = CompressedOutputStream.GZIP.equals(encoding) ? ".gz" : ".zz";
+    }
+
+    @Override
+    public String getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public String getExtension() {
+        return extension;
+    }
+
+    @Override
+    public OutputStream newOutputStream(final OutputStream out, final int level, final int size) throws IOException {
+        return new CompressedOutputStream(out, encoding, level, size);
+    }
+
+    @Override
+    public byte[] compress(final byte[] data, final int level) throws IOException {
+        return CompressedOutputStream.compress(data, encoding, level);
+    }
+}
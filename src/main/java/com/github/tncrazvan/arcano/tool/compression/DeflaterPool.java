@@ -0,0 +1,68 @@
+package com.github.tncrazvan.arcano.tool.compression;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps Deflater objects around so that their native memory is allocated once and reused,
+ * instead of being allocated and freed for every compressed response.<br />
+ * There is one pool for each compression level and format (zlib or raw deflate).
+ * @author Razvan Tanase
+ */
+public final class DeflaterPool {
+    private static final int MAX_POOLED = 64;
+    // levels -1 (default) to 9, each with a zlib and a raw (nowrap) pool
+    private static final int LEVELS = 11;
+    private static final Pool[] POOLS = new Pool[LEVELS * 2];
+    static {
+        for (int i = 0; i < POOLS.length; i++)
+            POOLS[i] = new Pool();
+    }
+
+    private static final class Pool {
+        private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+    }
+
+    private DeflaterPool() {
+    }
+
+    private static Pool pool(final int level, final boolean nowrap) {
+        final int index = Math.max(-1, Math.min(9, level)) + 1;
+        return POOLS[index * 2 + (nowrap ? 1 : 0)];
+    }
+
+    /**
+     * Take a Deflater from the pool, or make a new one if the pool is empty.
+     * @param level compression level, from 1 (fastest) to 9 (smallest), -1 for the default level.
+     * @param nowrap true for raw deflate data (as used by gzip), false for zlib data.
+     * @return a Deflater, ready to be used.
+     */
+    public static Deflater borrow(final int level, final boolean nowrap) {
+        final Pool pool = pool(level, nowrap);
+        final Deflater deflater = pool.deflaters.poll();
+        if (deflater == null)
+            return new Deflater(level, nowrap);
+        pool.size.decrementAndGet();
+        return deflater;
+    }
+
+    /**
+     * Give a Deflater back to the pool.<br />
+     * The Deflater is reset, or ended if the pool is full.
+     * @param deflater the Deflater, it must not be used after this call.
+     * @param level compression level the Deflater was borrowed with.
+     * @param nowrap format the Deflater was borrowed with.
+     */
+    public static void release(final Deflater deflater, final int level, final boolean nowrap) {
+        final Pool pool = pool(level, nowrap);
+        if (pool.size.incrementAndGet() > MAX_POOLED) {
+            pool.size.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        pool.deflaters.offer(deflater);
+    }
+}
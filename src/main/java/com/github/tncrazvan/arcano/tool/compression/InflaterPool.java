@@ -0,0 +1,55 @@
+package com.github.tncrazvan.arcano.tool.compression;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps Inflater objects around so that their native memory is allocated once and reused,
+ * the counterpart of DeflaterPool.<br />
+ * There is one pool for each format (zlib or raw deflate).
+ * @author Razvan Tanase
+ */
+public final class InflaterPool {
+    private static final int MAX_POOLED = 64;
+    private static final Pool[] POOLS = { new Pool(), new Pool() };
+
+    private static final class Pool {
+        private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+    }
+
+    private InflaterPool() {
+    }
+
+    /**
+     * Take an Inflater from the pool, or make a new one if the pool is empty.
+     * @param nowrap true for raw deflate data, false for zlib data.
+     * @return an Inflater, ready to be used.
+     */
+    public static Inflater borrow(final boolean nowrap) {
+        final Pool pool = POOLS[nowrap ? 1 : 0];
+        final Inflater inflater = pool.inflaters.poll();
+        if (inflater == null)
+            return new Inflater(nowrap);
+        pool.size.decrementAndGet();
+        return inflater;
+    }
+
+    /**
+     * Give an Inflater back to the pool.<br />
+     * The Inflater is reset, or ended if the pool is full.
+     * @param inflater the Inflater, it must not be used after this call.
+     * @param nowrap format the Inflater was borrowed with.
+     */
+    public static void release(final Inflater inflater, final boolean nowrap) {
+        final Pool pool = POOLS[nowrap ? 1 : 0];
+        if (pool.size.incrementAndGet() > MAX_POOLED) {
+            pool.size.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        inflater.reset();
+        pool.inflaters.offer(inflater);
+    }
+}
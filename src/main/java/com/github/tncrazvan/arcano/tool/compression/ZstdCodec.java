@@ -0,0 +1,65 @@
+package com.github.tncrazvan.arcano.tool.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The "zstd" content coding.<br />
+ * Zstandard needs a native encoder, which is looked up at runtime from zstd-jni
+ * (com.github.luben.zstd). When zstd-jni is not on the class path, or its native library
+ * cannot be loaded, this codec is not available and only files precompressed with Zstandard
+ * (for example "app.js.zst") are served with it.
+ * @author Razvan Tanase
+ */
+public class ZstdCodec implements CompressionCodec {
+    public static final String ENCODING = "zstd";
+    private static final Constructor<?> OUTPUT_STREAM;
+    static {
+        Constructor<?> stream = null;
+        try {
+            final Class<?> nativeLibrary = Class.forName("com.github.luben.zstd.util.Native");
+            nativeLibrary.getMethod("load").invoke(null);
+            if ((Boolean) nativeLibrary.getMethod("isLoaded").invoke(null))
+                stream = Class.forName("com.github.luben.zstd.ZstdOutputStream").getConstructor(OutputStream.class, int.class);
+        } catch (final ReflectiveOperationException | LinkageError ex) {
+            stream = null;
+        }
+        OUTPUT_STREAM = stream;
+    }
+
+    @Override
+    public String getEncoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public String getExtension() {
+        return ".zst";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return OUTPUT_STREAM != null;
+    }
+
+    /**
+     * Zstandard levels go from 1 to 22, levels from 1 to 9 are used as they are.
+     * The encoder keeps its own buffer, so the size is ignored.
+     */
+    @Override
+    public OutputStream newOutputStream(final OutputStream out, final int level, final int size) throws IOException {
+        if (OUTPUT_STREAM == null)
+            throw new IOException("Zstandard is not available, add zstd-jni to the class path.");
+        try {
+            return (OutputStream) OUTPUT_STREAM.newInstance(out, level);
+        } catch (final InvocationTargetException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        } catch (final ReflectiveOperationException ex) {
+            throw new IOException(ex);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.github.tncrazvan.arcano.tool.system;
+
+import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Keeps direct ByteBuffers around so that the buffers used to read requests from non-blocking connections
+ * and to compress payloads are allocated once and reused, instead of being allocated for every request.<br />
+ * Buffers come in size classes, from MIN_SIZE to MAX_SIZE bytes, each class doubling the previous one.
+ * Direct memory is allocated in slabs of MAX_SIZE bytes which are sliced into buffers of a single class,
+ * slabs are never freed and their total size is bounded by the "maxSize" setting of the "bufferPool" configuration.
+ * Larger requests, and requests made once the pool is full, are served with heap buffers
+ * that are simply left to the garbage collector.<br />
+ * When leak detection is enabled every lease remembers where it was made,
+ * and leases that are garbage collected without having been released are logged.
+ * @author Razvan Tanase
+ */
+public final class BufferPool {
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 1024 * 1024;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+    private static final SizeClass[] SIZE_CLASSES = new SizeClass[CLASSES];
+    static {
+        for (int i = 0; i < CLASSES; i++)
+            SIZE_CLASSES[i] = new SizeClass(MIN_SIZE << i);
+    }
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final AtomicLong ALLOCATED = new AtomicLong();
+    private static final AtomicInteger LEASED = new AtomicInteger();
+    private static volatile long maxSize = 64L * 1024 * 1024;
+    private static volatile boolean leakDetection = false;
+
+    private static final class SizeClass {
+        private final int size;
+        // last in, first out, the buffer released last is the one most likely to still be in the CPU caches
+        private final ConcurrentLinkedDeque<Lease> free = new ConcurrentLinkedDeque<>();
+
+        private SizeClass(final int size) {
+            this.size = size;
+        }
+
+        /**
+         * Slice a new slab into buffers of this class.
+         * @return one of the buffers, the others are added to the free list,
+         * or null if the pool has reached its maximum size.
+         */
+        private Lease slice() {
+            if (ALLOCATED.addAndGet(MAX_SIZE) > maxSize) {
+                ALLOCATED.addAndGet(-MAX_SIZE);
+                return null;
+            }
+            final ByteBuffer slab = ByteBuffer.allocateDirect(MAX_SIZE);
+            Lease first = null;
+            for (int offset = 0; offset < MAX_SIZE; offset += size) {
+                slab.limit(offset + size).position(offset);
+                final Lease lease = new Lease(slab.slice(), this);
+                if (first == null)
+                    first = lease;
+                else
+                    free.push(lease);
+            }
+            return first;
+        }
+    }
+
+    /**
+     * A buffer taken from the pool.<br />
+     * The lease must be released exactly once, after which neither the lease nor its buffer can be used.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final ByteBuffer buffer;
+        private final SizeClass owner;
+        private boolean leased = false;
+        private Leak leak = null;
+        private Cleaner.Cleanable cleanable = null;
+
+        private Lease(final ByteBuffer buffer, final SizeClass owner) {
+            this.buffer = buffer;
+            this.owner = owner;
+        }
+
+        /**
+         * Get the leased buffer.
+         * @return the buffer, cleared when it was leased.
+         */
+        public final ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * Get the capacity of the leased buffer, which can be larger than the requested size.
+         * @return capacity in bytes.
+         */
+        public final int capacity() {
+            return buffer.capacity();
+        }
+
+        /**
+         * Check if the buffer belongs to the pool, buffers that do not are heap buffers.
+         * @return true if the buffer is a pooled direct buffer.
+         */
+        public final boolean isPooled() {
+            return owner != null;
+        }
+
+        /**
+         * Give the buffer back to the pool.
+         * @throws IllegalStateException if the lease has already been released.
+         */
+        public final void release() {
+            if (!leased)
+                throw new IllegalStateException("Buffer has already been released.");
+            leased = false;
+            LEASED.decrementAndGet();
+            if (cleanable != null) {
+                leak.released = true;
+                cleanable.clean();
+                cleanable = null;
+                leak = null;
+            }
+            if (owner != null)
+                owner.free.push(this);
+        }
+
+        @Override
+        public final void close() {
+            release();
+        }
+    }
+
+    /**
+     * Reports a lease that became unreachable before being released.
+     * It must not reference the lease, or the lease would never become unreachable.
+     */
+    private static final class Leak implements Runnable {
+        private final Throwable site;
+        private final int capacity;
+        private volatile boolean released = false;
+
+        private Leak(final int capacity) {
+            this.capacity = capacity;
+            this.site = new Throwable("Buffer of " + capacity + " bytes leased here.");
+        }
+
+        @Override
+        public void run() {
+            if (released)
+                return;
+            LEASED.decrementAndGet();
+            LOGGER.log(Level.WARNING, "A buffer of " + capacity + " bytes was never released to the BufferPool.", site);
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * Configure the pool, this is done once when the server starts.
+     * @param maxSize maximum number of bytes of direct memory the pool can allocate.
+     * @param leakDetection true to log the leases that are never released.
+     */
+    public static void configure(final long maxSize, final boolean leakDetection) {
+        BufferPool.maxSize = maxSize;
+        BufferPool.leakDetection = leakDetection;
+    }
+
+    /**
+     * Lease a buffer of at least the given size.
+     * @param size minimum capacity of the buffer.
+     * @return the lease, its buffer is cleared.
+     */
+    public static Lease lease(final int size) {
+        Lease lease = null;
+        if (size <= MAX_SIZE) {
+            final SizeClass sizeClass = SIZE_CLASSES[index(size)];
+            lease = sizeClass.free.poll();
+            if (lease == null)
+                lease = sizeClass.slice();
+        }
+        if (lease == null)
+            lease = new Lease(ByteBuffer.allocate(size), null);
+        lease.leased = true;
+        lease.buffer.clear();
+        LEASED.incrementAndGet();
+        if (leakDetection) {
+            lease.leak = new Leak(lease.capacity());
+            lease.cleanable = CLEANER.register(lease, lease.leak);
+        }
+        return lease;
+    }
+
+    /**
+     * Lease a buffer twice as large as a leased one, for data that turned out not to fit in it.
+     * @param lease the lease, its buffer holds the data written so far and it is released by this call.
+     * @return the larger lease, its buffer holds the same data and is ready to be written after it.
+     */
+    public static Lease grow(final Lease lease) {
+        final Lease larger = lease(lease.capacity() * 2);
+        lease.buffer().flip();
+        larger.buffer().put(lease.buffer());
+        lease.release();
+        return larger;
+    }
+
+    private static int index(final int size) {
+        if (size <= MIN_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * Get the number of bytes of direct memory the pool has allocated so far.
+     * @return allocated bytes.
+     */
+    public static long getAllocated() {
+        return ALLOCATED.get();
+    }
+
+    /**
+     * Get the number of buffers that are currently leased.
+     * @return number of leased buffers.
+     */
+    public static int getLeased() {
+        return LEASED.get();
+    }
+}
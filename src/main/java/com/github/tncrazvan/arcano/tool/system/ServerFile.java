@@ -5,6 +5,7 @@
  */
 package com.github.tncrazvan.arcano.tool.system;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -13,12 +14,15 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Map;
 
 import com.github.tncrazvan.arcano.http.HttpHeaders;
+import com.github.tncrazvan.arcano.http.HttpRanges;
 import com.github.tncrazvan.arcano.tool.http.MultipartFormData;
 import static com.github.tncrazvan.arcano.tool.http.ContentType.resolveContentType;
 /**
@@ -26,9 +30,9 @@ import static com.github.tncrazvan.arcano.tool.http.ContentType.resolveContentTy
  * @author Razvan Tanase
  */
 public class ServerFile extends File{
-    private final ArrayList<int[]> ranges = new ArrayList<>();
+    private final ArrayList<long[]> ranges = new ArrayList<>();
     private String rangeUnit = "";
-    private int totalRangesLength = 0;
+    private long totalRangesLength = 0;
     private static final long serialVersionUID = 4567989494529454756L;
     private final  String contentType = resolveContentType(this.getName());
     private final String boundary = MultipartFormData.generateMultipartBoundary();
@@ -62,7 +66,7 @@ public class ServerFile extends File{
         return this.boundary;
     }
 
-    public final int getTotalRangesLength(){
+    public final long getTotalRangesLength(){
         return totalRangesLength;
     }
 
@@ -81,38 +85,39 @@ public class ServerFile extends File{
     public final String getContentRange(){
         if(this.ranges.size() == 0)
             return null;
-        int[] range = this.ranges.get(0);
-        return this.getRangeUnit()+" "+range[0]+"-"+(range[1]<0?"":range[1])+"/"+this.length();
+        long[] range = this.ranges.get(0);
+        return (this.getRangeUnit().isEmpty()?"bytes":this.getRangeUnit())+" "+range[0]+"-"+range[1]+"/"+this.length();
     }
 
+    /**
+     * Set the ranges of this file from a "Range" header.<br />
+     * Overlapping ranges are merged, ranges outside of the file are dropped.
+     * If the header cannot be parsed, or none of its ranges overlaps the file, the file is left without ranges.
+     * @param header the "Range" header.
+     */
     public final void resolveRangesFromHeader(String header) throws FileNotFoundException, IOException {
         this.clearRanges();
-        String[] headerPieces = header.split("=", 2);
-        this.rangeUnit = headerPieces[0];
-        String[] ranges = headerPieces[1].split(",");
-        for(String range : ranges){
-            boolean ending = range.startsWith("-");
-            if(ending){
-                this.addRange(0, Integer.parseInt(range.substring(1)));
-            }else{
-                String[] pieces = range.split("-");
-                int start = Integer.parseInt(pieces[0]);
-                if(pieces.length == 1 && !ending){
-                    this.addRange(start, -1);
-                }else if(pieces.length == 2)
-                    this.addRange(start, Integer.parseInt(pieces[1]));
-            }
-        }
+        final HttpRanges parsed = HttpRanges.parse(header, this.length());
+        if(parsed == null)
+            return;
+        this.rangeUnit = "bytes";
+        for(int i = 0; i < parsed.size(); i++)
+            this.addRange(parsed.getStart(i), parsed.getEnd(i));
     }
 
-    public final void addRange(int start,int end){
-        int range[] = new int[2];
+    /**
+     * Add a range to this file.
+     * @param start first byte of the range.
+     * @param end last byte of the range (inclusive), a negative value stands for the end of the file.
+     */
+    public final void addRange(long start,long end){
+        long range[] = new long[2];
         range[0] = start;
         if(end < 0)
-            end = (int) this.length()-1;
+            end = this.length()-1;
         range[1] = end;
         ranges.add(range);
-        totalRangesLength += end-start;
+        totalRangesLength += end-start+1;
     }
 
     public final void clearRanges(){
@@ -120,15 +125,23 @@ public class ServerFile extends File{
         totalRangesLength=0;
     }
 
-    public final ArrayList<int[]> getRanges(){
+    public final ArrayList<long[]> getRanges(){
         return this.ranges;
     }
 
+    /**
+     * Read all contents of this file into memory.<br />
+     * Files served to http clients do not need this, they are sent straight from the file system.
+     * @return contents of the file.
+     * @throws IOException
+     */
     public final byte[] read() throws FileNotFoundException, IOException {
+        if(this.length() > Integer.MAX_VALUE - 8)
+            throw new IOException("File "+this.getName()+" is too large to be read into memory.");
         return read(0,(int) this.length());
     }
     
-    public final byte[] read(int offset, int length) throws FileNotFoundException, IOException {
+    public final byte[] read(long offset, int length) throws FileNotFoundException, IOException {
         byte[] result;
         try (FileInputStream fis = new FileInputStream(this)) {
             fis.getChannel().position(offset);
@@ -137,38 +150,48 @@ public class ServerFile extends File{
         return result;
     }
 
+    /**
+     * Read the ranges of this file into memory.<br />
+     * A single range is returned as it is, multiple ranges are returned as a "multipart/byteranges" body.
+     * Files served to http clients do not need this, their ranges are streamed straight from the file system.
+     * @param headers headers to set "Content-Type" (multiple ranges) or "Content-Range" (single range) to, can be null.
+     * @return the ranges.
+     * @throws IOException if the file cannot be read, or the ranges are too large to fit in memory.
+     */
     public final byte[] readAsMultipart(HttpHeaders headers) throws IOException {
-        int countRanges = this.ranges.size();
-        ByteBuffer buffer = ByteBuffer.allocate(0);
-
-        try (FileInputStream fis = new FileInputStream(this)) {
-            if(countRanges > 1){
-                //+4 because of the initial "--" string and newline "\r\n"
-                int boundaryNotFinalLength = this.boundary.length()+4;
-    
-                //boundaryNotFinalLength + 1 => +4 because of the initial and final "--" strings (note that there's now new line)
-                int boundaryFinalLength = boundaryNotFinalLength;
-                
-                buffer = ByteBuffer.allocate(this.getTotalRangesLength()+boundaryFinalLength+boundaryNotFinalLength+countRanges);
-                String contentRange = this.getContentRange();
-                for(int[] range : this.ranges){
-                    fis.getChannel().position(range[0]);
-                    buffer.put(("--"+this.boundary+"\r\n").getBytes());
-                    if(headers != null){
-                        if(!headers.isDefined("Content-Type"))
-                            headers.set("Content-Type",contentType);
-                        headers.set("Content-Range",contentRange);   
-                    }
-                    buffer.put(headers.toString().getBytes());
-                    buffer.put(fis.readNBytes(range[0]-range[1]));
-                }
-                buffer.put(("--"+this.boundary+"--").getBytes());
-            }else{
-                int[] range = this.ranges.get(0);
-                fis.getChannel().position(range[0]);
-
-                buffer.put(fis.readNBytes(range[0]-range[1]));
+        try (FileChannel channel = FileChannel.open(this.toPath(), StandardOpenOption.READ)) {
+            final HttpRanges parsed = HttpRanges.of(this.ranges, channel.size());
+            if(!parsed.isSatisfiable())
+                throw new IOException("None of the ranges of "+this.getName()+" overlaps the file.");
+            if(parsed.size() == 1){
+                if(headers != null)
+                    headers.set("Content-Range", parsed.getContentRange(0));
+                return read(channel, parsed.getStart(0), parsed.getLength(0));
             }
+            final long total = parsed.getMultipartLength(this.boundary, this.contentType);
+            if(total > Integer.MAX_VALUE - 8)
+                throw new IOException("Ranges of "+this.getName()+" are too large to be read into memory.");
+            if(headers != null)
+                headers.set("Content-Type","multipart/byteranges; boundary="+this.boundary);
+            final ByteBuffer buffer = ByteBuffer.allocate((int) total);
+            for(int i = 0; i < parsed.size(); i++){
+                buffer.put(parsed.getPartHead(i, this.boundary, this.contentType));
+                buffer.put(read(channel, parsed.getStart(i), parsed.getLength(i)));
+            }
+            buffer.put(HttpRanges.getMultipartTail(this.boundary));
+            return buffer.array();
+        }
+    }
+
+    private byte[] read(final FileChannel channel, long position, final long length) throws IOException {
+        if(length > Integer.MAX_VALUE - 8)
+            throw new IOException("Range of "+this.getName()+" is too large to be read into memory.");
+        final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while(buffer.hasRemaining()){
+            final int read = channel.read(buffer, position);
+            if(read < 0)
+                throw new EOFException("File "+this.getName()+" ended before the range could be read.");
+            position += read;
         }
         return buffer.array();
     }
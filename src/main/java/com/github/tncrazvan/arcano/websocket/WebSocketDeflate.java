@@ -0,0 +1,234 @@
+package com.github.tncrazvan.arcano.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.tncrazvan.arcano.Configuration;
+import com.github.tncrazvan.arcano.tool.compression.DeflaterPool;
+import com.github.tncrazvan.arcano.tool.compression.InflaterPool;
+import com.github.tncrazvan.arcano.tool.system.BufferPool;
+
+/**
+ * The "permessage-deflate" extension of a connection, see RFC 7692.<br />
+ * Messages are compressed with raw deflate and a sync flush, without the empty block that ends the flush.
+ * The Deflater and the Inflater come from their pools the first time they are needed;
+ * when a side does not keep its context between messages its object goes back to the pool after every message,
+ * so idle connections hold no native memory for that side.<br />
+ * java.util.zip always uses a 32KB window, offers that ask the server for a smaller window are declined,
+ * the window of the client does not matter to the Inflater.
+ * @author Razvan Tanase
+ */
+public class WebSocketDeflate {
+    public static final String EXTENSION = "permessage-deflate";
+    private static final byte[] TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+    private final int level;
+    private final int minSize;
+    private final boolean serverNoContextTakeover;
+    private final boolean clientNoContextTakeover;
+    private final Object deflateLock = new Object(), inflateLock = new Object();
+    private Deflater deflater = null;
+    private Inflater inflater = null;
+
+    private WebSocketDeflate(final Configuration.WebSocket.Deflate config, final boolean serverNoContextTakeover, final boolean clientNoContextTakeover) {
+        this.level = config.level;
+        this.minSize = config.minSize;
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+    }
+
+    /**
+     * Pick the first offer of the client that can be accepted.
+     * @param header the "Sec-WebSocket-Extensions" header of the handshake request, can be null.
+     * @param config the "deflate" settings of the "webSocket" configuration.
+     * @return the extension, or null if the client made no acceptable offer.
+     */
+    public static WebSocketDeflate negotiate(final String header, final Configuration.WebSocket.Deflate config) {
+        if (header == null)
+            return null;
+        for (final String offer : header.split(",")) {
+            final String[] parts = offer.split(";");
+            if (!parts[0].trim().equalsIgnoreCase(EXTENSION))
+                continue;
+            boolean acceptable = true, serverNoContextTakeover = config.serverNoContextTakeover, clientNoContextTakeover = false;
+            final boolean[] seen = new boolean[4];
+            for (int i = 1; i < parts.length && acceptable; i++) {
+                final int equals = parts[i].indexOf('=');
+                final String name = (equals < 0 ? parts[i] : parts[i].substring(0, equals)).trim().toLowerCase();
+                final String value = equals < 0 ? null : parts[i].substring(equals + 1).trim().replace("\"", "");
+                switch (name) {
+                    case "server_no_context_takeover":
+                        acceptable = value == null && !seen[0];
+                        seen[0] = true;
+                        serverNoContextTakeover = true;
+                        break;
+                    case "client_no_context_takeover":
+                        acceptable = value == null && !seen[1];
+                        seen[1] = true;
+                        clientNoContextTakeover = true;
+                        break;
+                    case "server_max_window_bits":
+                        acceptable = windowBits(value) == 15 && !seen[2];
+                        seen[2] = true;
+                        break;
+                    case "client_max_window_bits":
+                        acceptable = (value == null || windowBits(value) > 0) && !seen[3];
+                        seen[3] = true;
+                        break;
+                    default:
+                        acceptable = false;
+                }
+            }
+            if (acceptable)
+                return new WebSocketDeflate(config, serverNoContextTakeover, clientNoContextTakeover);
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of bits, from 8 to 15, or -1 if the value is not valid.
+     */
+    private static int windowBits(final String value) {
+        if (value == null || value.length() > 2)
+            return -1;
+        try {
+            final int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= 15 ? bits : -1;
+        } catch (final NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the value of the "Sec-WebSocket-Extensions" header of the handshake response.
+     * @return the accepted extension and its parameters.
+     */
+    public final String getResponseHeader() {
+        return EXTENSION
+                + (serverNoContextTakeover ? "; server_no_context_takeover" : "")
+                + (clientNoContextTakeover ? "; client_no_context_takeover" : "");
+    }
+
+    /**
+     * Check if a message is large enough to be compressed.
+     * @param length size of the message.
+     * @return true if the message should be compressed.
+     */
+    public final boolean accepts(final int length) {
+        return length >= minSize;
+    }
+
+    /**
+     * Compress a message.<br />
+     * Messages must be compressed in the order they are sent, since each one can refer to the previous ones.
+     * @param data the message.
+     * @return the compressed message.
+     */
+    public final byte[] compress(final byte[] data) {
+        synchronized (deflateLock) {
+            if (deflater == null)
+                deflater = DeflaterPool.borrow(level, true);
+            BufferPool.Lease lease = BufferPool.lease(data.length + (data.length >> 10) + 64);
+            boolean clean = false;
+            try {
+                deflater.setInput(data);
+                // the output is complete once a call leaves room in the buffer
+                deflater.deflate(lease.buffer(), Deflater.SYNC_FLUSH);
+                while (!lease.buffer().hasRemaining()) {
+                    lease = BufferPool.grow(lease);
+                    deflater.deflate(lease.buffer(), Deflater.SYNC_FLUSH);
+                }
+                final ByteBuffer buffer = lease.buffer();
+                buffer.flip();
+                // the flush ends with an empty block, 00 00 FF FF, which the client adds back
+                final byte[] compressed = new byte[buffer.remaining() - TAIL.length];
+                buffer.get(compressed);
+                clean = true;
+                return compressed;
+            } finally {
+                lease.release();
+                if (!clean) {
+                    deflater.end();
+                    deflater = null;
+                } else if (serverNoContextTakeover) {
+                    DeflaterPool.release(deflater, level, true);
+                    deflater = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decompress a message.
+     * @param data the compressed message.
+     * @param limit maximum size of the decompressed message.
+     * @return the message.
+     * @throws WebSocketFrameException if the data cannot be inflated or inflates beyond the limit.
+     */
+    public final byte[] decompress(final byte[] data, final long limit) throws WebSocketFrameException {
+        final int max = (int) Math.min(limit, Integer.MAX_VALUE - 8);
+        synchronized (inflateLock) {
+            if (inflater == null)
+                inflater = InflaterPool.borrow(true);
+            boolean clean = false;
+            try {
+                byte[] output = new byte[(int) Math.min(Math.max(data.length * 4L, 1024), max + 1L)];
+                int length = 0;
+                for (final byte[] input : new byte[][] { data, TAIL }) {
+                    inflater.setInput(input);
+                    // inflate until the input is used up and nothing more comes out
+                    while (true) {
+                        if (length == output.length) {
+                            if (length > max)
+                                throw new WebSocketFrameException(WebSocketFrameException.MESSAGE_TOO_BIG, "Message inflates beyond " + max + " bytes.");
+                            output = Arrays.copyOf(output, (int) Math.min(output.length * 2L, max + 1L));
+                        }
+                        final int inflated = inflater.inflate(output, length, output.length - length);
+                        length += inflated;
+                        if (inflated > 0)
+                            continue;
+                        if (inflater.needsDictionary())
+                            throw new WebSocketFrameException(WebSocketFrameException.INVALID_PAYLOAD, "Compressed message needs a dictionary.");
+                        if (inflater.needsInput() || inflater.finished())
+                            break;
+                    }
+                }
+                if (length > max)
+                    throw new WebSocketFrameException(WebSocketFrameException.MESSAGE_TOO_BIG, "Message inflates beyond " + max + " bytes.");
+                // a final block ends the stream, the next message starts a new one
+                if (inflater.finished())
+                    inflater.reset();
+                clean = true;
+                return length == output.length ? output : Arrays.copyOf(output, length);
+            } catch (final DataFormatException ex) {
+                throw new WebSocketFrameException(WebSocketFrameException.INVALID_PAYLOAD, ex.getMessage());
+            } finally {
+                if (!clean) {
+                    inflater.end();
+                    inflater = null;
+                } else if (clientNoContextTakeover) {
+                    InflaterPool.release(inflater, true);
+                    inflater = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Give the Deflater and the Inflater back to their pools, once the connection is closed.
+     */
+    public final void release() {
+        synchronized (deflateLock) {
+            if (deflater != null)
+                DeflaterPool.release(deflater, level, true);
+            deflater = null;
+        }
+        synchronized (inflateLock) {
+            if (inflater != null)
+                InflaterPool.release(inflater, true);
+            inflater = null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.tncrazvan.arcano.websocket;
+
+import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import com.github.tncrazvan.arcano.SharedObject;
+
+/**
+ * Reads and writes the frames of the WebSocket connections once their handshake is done.<br />
+ * Connections are spread across a number of WebSocketSelectorLoop objects, one for each core by default,
+ * which put the channels in non-blocking mode and only read them when the client sends something.
+ * Secure connections have no channel, each of them is read by a thread of its own instead,
+ * and their frames are written with blocking writes by the threads that push them.
+ * @author Razvan Tanase
+ */
+public class WebSocketEngine {
+    private final SharedObject so;
+    private final WebSocketSelectorLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public WebSocketEngine(final SharedObject so) throws IOException {
+        this.so = so;
+        this.loops = new WebSocketSelectorLoop[so.config.webSocket.loops];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new WebSocketSelectorLoop(so);
+    }
+
+    /**
+     * Start the selector loops.
+     */
+    public final void start() {
+        for (int i = 0; i < loops.length; i++)
+            new Thread(loops[i], "WebSocketSelectorLoop-" + i).start();
+    }
+
+    /**
+     * Start reading a connection whose handshake has just been sent.
+     * @param manager the connection.
+     * @param buffered bytes the client sent after the handshake request, they are decoded before anything else.
+     * @throws IOException if the channel cannot be switched to non-blocking mode.
+     */
+    public final void register(final WebSocketEventManager manager, final byte[] buffered) throws IOException {
+        final SocketChannel channel = manager.getChannel();
+        if (channel == null) {
+            block(manager, buffered);
+            return;
+        }
+        channel.configureBlocking(false);
+        final WebSocketSelectorLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        // the loop writes whatever is queued from now on, starting with what onOpen() pushed
+        manager.setLoop(loop);
+        loop.register(manager, buffered);
+    }
+
+    /**
+     * Read a connection that has no channel with a thread of its own.
+     * Reads time out every second so that the connection can be checked like the selector loops do.
+     */
+    private void block(final WebSocketEventManager manager, final byte[] buffered) throws IOException {
+        manager.getClientSocket().setSoTimeout(1000);
+        manager.setBlocking();
+        new Thread(() -> {
+            try {
+                if (buffered.length > 0)
+                    manager.unmask(buffered, 0, buffered.length);
+                final InputStream input = manager.getRead();
+                final byte[] bytes = new byte[so.config.webSocket.mtu];
+                while (manager.isOpen()) {
+                    final int read;
+                    try {
+                        read = input.read(bytes);
+                    } catch (final SocketTimeoutException ex) {
+                        if (!manager.checkLiveness(System.currentTimeMillis()))
+                            break;
+                        continue;
+                    }
+                    if (read < 0)
+                        break;
+                    try {
+                        manager.unmask(bytes, 0, read);
+                    } catch (final RuntimeException ex) {
+                        // as on the selector loops, a handler that throws closes its own connection
+                        LOGGER.log(Level.SEVERE, null, ex);
+                        manager.fail(WebSocketEventManager.CLOSE_INTERNAL_ERROR);
+                    }
+                }
+            } catch (final IOException ex) {
+                // the connection is closed below
+            }
+            manager.abort();
+        }, "WebSocketReader-" + manager.getUuid()).start();
+    }
+}
@@ -1,5 +1,7 @@
 package com.github.tncrazvan.arcano.websocket;
 
+import static com.github.tncrazvan.arcano.tool.Strings.normalizePathSlashes;
+
 import java.io.UnsupportedEncodingException;
 import java.util.logging.Level;
 
@@ -26,8 +28,6 @@ public class WebSocketEvent extends WebSocketEventManager{
         this.args = reader.args;
 
         this.response.setHttpHeaders(HttpHeaders.response());
-        this.request.resolveId();
-        this.request.findLanguages();
     
         this.activateWebObject(wo);
     }
@@ -38,24 +38,35 @@ public class WebSocketEvent extends WebSocketEventManager{
 
     public void activateWebObject(WebObject wo){
         action = wo.getWebSocketEventAction();
+        this.setPerMessageDeflate(wo.isPerMessageDeflate());
         this.execute();
     }
 
-    public static final void serve(HttpRequestReader reader, SharedObject so) throws UnsupportedEncodingException {
-        if(reader.location.length == 0 || "".equals(reader.location[0]))
+    /**
+     * Serve a WebSocket handshake with the route of the requested path, or with the "@404" route.
+     * @param reader the handshake request.
+     * @param so the shared object.
+     * @return false if no route can serve the request, the caller must then answer and close the connection.
+     * @throws UnsupportedEncodingException
+     */
+    public static final boolean serve(HttpRequestReader reader, SharedObject so) throws UnsupportedEncodingException {
+        // the root path was resolved to the entry point, but WebSocket routes are looked up by the path that was asked for
+        final String resource = reader.content.headers.getResource();
+        if(resource != null && (resource.equals("/") || resource.startsWith("/?") || resource.startsWith("/&")))
             reader.location = new String[]{"/"};
             
-        String key = String.join("/",reader.location);
+        // routes are registered the same way, see SharedObject.addWebSocketEventListener
+        String key = normalizePathSlashes(String.join("/",reader.location));
         WebObject wo = so.WEB_SOCKET_ROUTES.get(key);
         if(wo == null){
             wo = so.WEB_SOCKET_ROUTES.get("@404");
             if(wo == null){
-                return;
+                return false;
             }
-            return;
         }
         
         new WebSocketEvent(reader,so,wo);
+        return true;
     }
 
     @Override
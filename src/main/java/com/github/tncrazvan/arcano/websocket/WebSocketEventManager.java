@@ -5,14 +5,24 @@ import static com.github.tncrazvan.arcano.tool.encoding.Hashing.getSha1Bytes;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import javax.xml.bind.DatatypeConverter;
 
+import com.github.tncrazvan.arcano.Configuration;
 import com.github.tncrazvan.arcano.EventManager;
 import com.github.tncrazvan.arcano.SharedObject;
 import com.github.tncrazvan.arcano.http.HttpRequestReader;
@@ -24,34 +34,164 @@ import com.github.tncrazvan.arcano.tool.http.Status;
  * @author Razvan Tanase
  */
 public abstract class WebSocketEventManager extends EventManager{
-    private boolean connected = true;
+    /**
+     * Close status codes, see RFC 6455 section 7.4.
+     */
+    public static final int CLOSE_NORMAL = 1000, CLOSE_GOING_AWAY = 1001, CLOSE_NO_STATUS = 1005, CLOSE_ABNORMAL = 1006,
+            CLOSE_INTERNAL_ERROR = 1011;
+    private static final int OPCODE_CONTINUATION = 0x0, OPCODE_TEXT = 0x1, OPCODE_BINARY = 0x2,
+            OPCODE_CLOSE = 0x8, OPCODE_PING = 0x9, OPCODE_PONG = 0xA, FIN = 0x80, RSV1 = 0x40;
+    private static final byte[] EMPTY = new byte[0];
+    // follows the frames of a message after which the connection is closed
+    private static final ByteBuffer CLOSE_AFTER = ByteBuffer.allocate(0);
+    // true until the socket is closed
+    private final AtomicBoolean connected = new AtomicBoolean(true);
+    // true once a close frame has been sent, no other frame can follow it
+    private final AtomicBoolean closing = new AtomicBoolean(false);
+    private volatile long closingSince = 0;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile long pingSince = 0;
+    private volatile int closeCode = CLOSE_ABNORMAL;
+    private volatile String closeReason = "";
     private WebSocketCommit message;
+    // fragments of the message being received
+    private byte[] fragments = null;
+    private int fragmentsLength = 0;
+    private boolean fragmentsBinary = false;
+    private boolean fragmentsCompressed = false;
+    private boolean perMessageDeflate = false;
+    private WebSocketDeflate deflate = null;
     private final String uuid = Strings.uuid();
     private InputStream read = null;
+    private final WebSocketFrameDecoder decoder;
+    // set once a frame could not be decoded, nothing the client sends is read after that
+    private boolean failed = false;
+    private final WebSocketOutboundQueue outbound;
+    // frames taken from the outbound queue and not completely written yet, only the writing thread uses them
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile WebSocketSelectorLoop loop = null;
+    private volatile boolean blocking = false;
     //private final HttpHeaders responseHeaders;
     public WebSocketEventManager(HttpRequestReader reader, SharedObject so) throws UnsupportedEncodingException {
         super(reader,so);
+        decoder = new WebSocketFrameDecoder(so.config.webSocket.maxMessageSize);
+        outbound = new WebSocketOutboundQueue(so.config.webSocket.outbound.capacity, so.config.webSocket.outbound.highWatermark, so.config.webSocket.outbound.lowWatermark);
     }
     
     public final InputStream getRead(){
-        try {
-            if(read == null)
-                read = request.reader.client.getInputStream();
-            return read;
-        } catch (IOException ex) {
-            LOGGER.log(Level.SEVERE, null, ex);
-            return null;
-        }
+        // the reader's input is buffered and may already hold the first frames
+        if(read == null)
+            read = request.reader.input;
+        return read;
     }
     
+    /**
+     * Get the channel of the connection.
+     * @return the channel, or null if the connection has none (secure connections).
+     */
+    final SocketChannel getChannel(){
+        return request.reader.client.getChannel();
+    }
+
+    /**
+     * Have the frames written by a selector loop, which is what the WebSocketEngine does
+     * when it puts the channel in non-blocking mode.
+     */
+    final void setLoop(final WebSocketSelectorLoop loop){
+        this.loop = loop;
+    }
+
+    /**
+     * Have the frames written with blocking writes by whichever thread pushes them,
+     * for connections that have no channel.
+     */
+    final void setBlocking(){
+        blocking = true;
+        schedule();
+    }
+
+    /**
+     * Check if the client keeps up with the messages sent to it.<br />
+     * This turns false once the messages waiting to be written exceed the "highWatermark" of the "outbound" configuration,
+     * and true again once they drop to its "lowWatermark". Pushing while it is false applies the "policy" of the configuration.
+     * @return true if the client keeps up.
+     */
+    public final boolean isWritable(){
+        return outbound.isWritable();
+    }
+
+    /**
+     * Get the number of bytes waiting to be written to the client.
+     * @return the size of the queued messages, before compression.
+     */
+    public final long getQueuedBytes(){
+        return outbound.getBytes();
+    }
+
+    /**
+     * Get the number of messages that were dropped because the client did not keep up.
+     * @return the number of dropped messages.
+     */
+    public final long getDroppedMessages(){
+        return dropped.get();
+    }
+
+    /**
+     * Check if messages can still be sent to the client.
+     * @return false once the closing handshake has started or the connection is closed.
+     */
     public boolean isConnected(){
-        return connected;
+        return connected.get() && !closing.get();
+    }
+
+    /**
+     * Check if the socket is still open, which it is during the closing handshake.
+     * @return true until the connection is closed.
+     */
+    final boolean isOpen(){
+        return connected.get();
+    }
+
+    /**
+     * Get the status code the connection was closed with, meant to be used by onClose().
+     * @return the code sent by whichever side started the closing handshake,
+     * CLOSE_NO_STATUS if the close frame had none, CLOSE_ABNORMAL if the connection was dropped without one.
+     */
+    public final int getCloseCode(){
+        return closeCode;
+    }
+
+    /**
+     * Get the reason the connection was closed for, meant to be used by onClose().
+     * @return the reason, possibly empty.
+     */
+    public final String getCloseReason(){
+        return closeReason;
     }
     
     public final String getUuid(){
         return uuid;
     }
 
+    /**
+     * Offer the "permessage-deflate" extension to the client, this must be done before the handshake.
+     * @param perMessageDeflate true to compress messages if the client supports it.
+     */
+    protected final void setPerMessageDeflate(final boolean perMessageDeflate){
+        this.perMessageDeflate = perMessageDeflate;
+    }
+
+    /**
+     * Check if the messages of this connection are compressed.
+     * @return true if the "permessage-deflate" extension has been negotiated.
+     */
+    public final boolean isPerMessageDeflate(){
+        return deflate != null;
+    }
+
     public final void execute() {
         try {
             
@@ -76,12 +216,22 @@ public abstract class WebSocketEventManager extends EventManager{
             response.headers.set("Connection", "Upgrade");
             response.headers.set("Upgrade", "websocket");
             response.headers.set("Sec-WebSocket-Accept", acceptKey);
+            if (perMessageDeflate) {
+                deflate = WebSocketDeflate.negotiate(request.reader.content.headers.get("Sec-WebSocket-Extensions"), so.config.webSocket.deflate);
+                if (deflate != null)
+                    response.headers.set("Sec-WebSocket-Extensions", deflate.getResponseHeader());
+            }
             request.reader.output.write((response.headers.toString()+ "\r\n").getBytes());
             request.reader.output.flush();
             onOpen();
+            // onOpen() may have started the closing handshake, which still needs the connection to be read
+            if(!connected.get())
+                return;
             so.webSocketEventManager.put(uuid, this);
+            // frames the client sent right after the handshake may already be buffered
+            so.webSocketEngine.register(this, request.reader.takeBuffered());
         } catch (final IOException ex) {
-            close();
+            abort();
         } catch (final NoSuchAlgorithmException ex) {
             LOGGER.log(Level.SEVERE, null, ex);
         }
@@ -105,131 +255,250 @@ public abstract class WebSocketEventManager extends EventManager{
      * ... | +---------------------------------------------------------------+
      */
 
-    private final int FIRST_BYTE = 0, SECOND_BYTE = 1, LENGTH2 = 2, LENGTH8 = 3, MASK = 4, PAYLOAD = 5, DONE = 6;
-    private int lengthKey = 0, reading = FIRST_BYTE, lengthIndex = 0, maskIndex = 0, payloadIndex = 0,
-            payloadLength = 0;
-    // private boolean fin,rsv1,rsv2,rsv3;
-    private byte opcode;
-    private byte[] payload = null, mask = null, length = null;
+    private final WebSocketFrameDecoder.Listener listener = this::onFrame;
 
-    public void unmask(final byte[] bytes) throws IOException{
-        for(int i = 0;i<bytes.length;i++){
-            unmask(bytes[i]);
-            if(!connected) return;
-        }
-    }
-    // private final String base = "";
-    public void unmask(final byte b) throws UnsupportedEncodingException, IOException {
-        // System.out.println("=================================");
-        switch (reading) {
-            case FIRST_BYTE:
-                // fin = ((b & 0x80) != 0);
-                // rsv1 = ((b & 0x40) != 0);
-                // rsv2 = ((b & 0x20) != 0);
-                // rsv3 = ((b & 0x10) != 0);
-                opcode = (byte) (b & 0x0F);
-                if (opcode == 0x8) { // fin
-                    close();
-                }
-                mask = new byte[4];
-                reading = SECOND_BYTE;
-            break;
-            case SECOND_BYTE:
-                lengthKey = b & 127;
-                if (lengthKey <= 125) {
-                    length = new byte[1];
-                    length[0] = (byte) lengthKey;
-                    payloadLength = lengthKey & 0xff;
-                    reading = MASK;
-                } else if (lengthKey == 126) {
-                    reading = LENGTH2;
-                    length = new byte[2];
-                } else if (lengthKey == 127) {
-                    reading = LENGTH8;
-                    length = new byte[8];
+    private boolean onFrame(final boolean fin, final int rsv, final int opcode, final byte[] payload) throws IOException {
+        lastActivity = System.currentTimeMillis();
+        pingSince = 0;
+        // RSV1 marks the first frame of a compressed message
+        final boolean compressed = rsv == RSV1 && deflate != null && (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY);
+        if (rsv != 0 && !compressed)
+            throw new WebSocketFrameException(WebSocketFrameException.PROTOCOL_ERROR, "Reserved bits are set but no extension uses them.");
+        switch (opcode) {
+            case OPCODE_CLOSE:
+            case OPCODE_PING:
+            case OPCODE_PONG:
+                // control frames can come between the fragments of a message
+                if (!fin || payload.length > 125)
+                    throw new WebSocketFrameException(WebSocketFrameException.PROTOCOL_ERROR, "Control frames cannot be fragmented or exceed 125 bytes.");
+                if (opcode == OPCODE_CLOSE) {
+                    onCloseFrame(payload);
+                    return false;
                 }
-            break;
-            case LENGTH2:
-                length[lengthIndex] = b;
-                lengthIndex++;
-                if (lengthIndex == 2) {
-                    payloadLength = ((length[0] & 0xff) << 8) | (length[1] & 0xff);
-                    reading = MASK;
+                if (opcode == OPCODE_PING && !closing.get())
+                    send(new WebSocketOutboundQueue.Message(OPCODE_PONG, payload, false));
+                return connected.get();
+            case OPCODE_TEXT:
+            case OPCODE_BINARY:
+                if (fragments != null)
+                    throw new WebSocketFrameException(WebSocketFrameException.PROTOCOL_ERROR, "A new message started before the previous one ended.");
+                if (fin) {
+                    deliver(payload, opcode == OPCODE_BINARY, compressed);
+                    return connected.get();
                 }
-            break;
-            case LENGTH8:
-                length[lengthIndex] = b;
-                lengthIndex++;
-                if (lengthIndex == 8) {
-                    payloadLength = length[0] & 0xff;
-                    for (int i = 1; i < length.length; i++) {
-                        payloadLength = ((payloadLength) << 8) | (length[i] & 0xff);
-                    }
-                    reading = MASK;
-                }
-                break;
-            case MASK:
-                mask[maskIndex] = b;
-                maskIndex++;
-                if (maskIndex == 4) {
-                    reading = PAYLOAD;
-                    // int l = (int)ByteBuffer.wrap(length).getLong();
-                    payload = new byte[payloadLength];
-                }
-            break;
-            case PAYLOAD:
-                if (payload.length == 0) {
-                    this.message = new WebSocketCommit();
-                    this.message.data = payload;
-                    onMessage(this.message);
-                    break;
-                }
-                try {
-                    payload[payloadIndex] = (byte) (b ^ mask[payloadIndex % 4]);
-                } catch (final Exception e) {
-                    e.printStackTrace(System.out);
-                }
-                payloadIndex++;
-                if (payloadIndex == payload.length) {
-                    reading = DONE;
-
-                    this.message = new WebSocketCommit();
-                    this.message.data = payload;
-                    onMessage(this.message);
-                    lengthKey = 0;
-                    reading = FIRST_BYTE;
-                    lengthIndex = 0;
-                    maskIndex = 0;
-                    payloadIndex = 0;
-                    payload = null;
-                    mask = null;
-                    length = null;
+                fragments = payload;
+                fragmentsLength = payload.length;
+                fragmentsBinary = opcode == OPCODE_BINARY;
+                fragmentsCompressed = compressed;
+                return true;
+            case OPCODE_CONTINUATION:
+                if (fragments == null)
+                    throw new WebSocketFrameException(WebSocketFrameException.PROTOCOL_ERROR, "Continuation frame without a message to continue.");
+                if (fragmentsLength + (long) payload.length > so.config.webSocket.maxMessageSize)
+                    throw new WebSocketFrameException(WebSocketFrameException.MESSAGE_TOO_BIG, "Message exceeds " + so.config.webSocket.maxMessageSize + " bytes.");
+                if (fragmentsLength + payload.length > fragments.length) {
+                    final long limit = Math.min(so.config.webSocket.maxMessageSize, Integer.MAX_VALUE - 8);
+                    fragments = Arrays.copyOf(fragments, Math.max(fragmentsLength + payload.length, (int) Math.min(fragments.length * 2L, limit)));
                 }
-            break;
+                System.arraycopy(payload, 0, fragments, fragmentsLength, payload.length);
+                fragmentsLength += payload.length;
+                if (!fin)
+                    return true;
+                final byte[] data = fragmentsLength == fragments.length ? fragments : Arrays.copyOf(fragments, fragmentsLength);
+                fragments = null;
+                deliver(data, fragmentsBinary, fragmentsCompressed);
+                return connected.get();
+            default:
+                throw new WebSocketFrameException(WebSocketFrameException.PROTOCOL_ERROR, "Unknown opcode " + opcode + ".");
+        }
+    }
+
+    private void deliver(final byte[] data, final boolean binary, final boolean compressed) throws WebSocketFrameException {
+        // messages that arrive after our close frame are dropped
+        if (closing.get())
+            return;
+        message = new WebSocketCommit(compressed ? deflate.decompress(data, so.config.webSocket.maxMessageSize) : data, null, binary);
+        onMessage(message);
+    }
+
+    /**
+     * Answer the close frame of the client, unless it is the answer to ours, and close the connection.
+     */
+    private void onCloseFrame(final byte[] payload) throws IOException {
+        if (payload.length == 1)
+            throw new WebSocketFrameException(WebSocketFrameException.PROTOCOL_ERROR, "Close frame with a truncated status code.");
+        int code = CLOSE_NO_STATUS;
+        String reason = "";
+        if (payload.length >= 2) {
+            code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+            if (!isValidCloseCode(code))
+                throw new WebSocketFrameException(WebSocketFrameException.PROTOCOL_ERROR, "Invalid close status code " + code + ".");
+            try {
+                reason = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(payload, 2, payload.length - 2))
+                    .toString();
+            } catch (final CharacterCodingException ex) {
+                throw new WebSocketFrameException(WebSocketFrameException.INVALID_PAYLOAD, "Close reason is not valid UTF-8.");
+            }
+        }
+        if (closing.compareAndSet(false, true)) {
+            closingSince = System.currentTimeMillis();
+            closeCode = code;
+            closeReason = reason;
+            // the connection is closed once the answer is written
+            send(new WebSocketOutboundQueue.Message(OPCODE_CLOSE, Arrays.copyOf(payload, Math.min(payload.length, 2)), true));
+            return;
+        }
+        abort();
+    }
+
+    private static boolean isValidCloseCode(final int code) {
+        return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1014) || (code >= 3000 && code <= 4999);
+    }
+
+    public void unmask(final byte[] bytes) throws IOException{
+        unmask(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decode the frames the client sent.
+     * @param bytes the bytes read from the connection.
+     * @param offset index of the first byte.
+     * @param length number of bytes.
+     * A frame that is invalid closes the connection with the matching status code.
+     * @throws IOException
+     */
+    public void unmask(final byte[] bytes, final int offset, final int length) throws IOException{
+        if(!connected.get() || failed)
+            return;
+        try {
+            decoder.decode(bytes, offset, length, listener);
+        } catch (final WebSocketFrameException ex) {
+            fail(ex.getCode());
         }
     }
 
     /**
-     * Close the WebSocket connection.
+     * Close the connection because of an error: the close frame is sent and the socket is closed right after it,
+     * without waiting for the client to answer, nothing the client sends is read anymore.
+     * @param code the status code.
+     */
+    final void fail(final int code) {
+        failed = true;
+        if (!connected.get() || !closing.compareAndSet(false, true)) {
+            abort();
+            return;
+        }
+        closingSince = System.currentTimeMillis();
+        closeCode = code;
+        closeReason = "";
+        send(new WebSocketOutboundQueue.Message(OPCODE_CLOSE, new byte[] { (byte) (code >> 8), (byte) code }, true));
+    }
+
+    public void unmask(final byte b) throws IOException {
+        unmask(new byte[]{ b }, 0, 1);
+    }
+
+    /**
+     * Send a ping, the client answers with a pong.<br />
+     * Idle connections are pinged automatically every "pingInterval" milliseconds.
+     */
+    public void ping() {
+        if (!isConnected())
+            return;
+        pingSince = System.currentTimeMillis();
+        send(new WebSocketOutboundQueue.Message(OPCODE_PING, EMPTY, false));
+    }
+
+    /**
+     * Check the connection, this is done about once a second by whoever reads it.<br />
+     * An idle connection is pinged, and it is given up on if the pong does not arrive in time,
+     * a connection that started the closing handshake is given up on if the client does not answer it in time.
+     * @param now current time in milliseconds.
+     * @return false if the connection should be dropped.
+     */
+    final boolean checkLiveness(final long now) {
+        if (!connected.get())
+            return false;
+        if (closing.get())
+            return now - closingSince < so.config.timeout;
+        if (pingSince > 0)
+            return now - pingSince < so.config.webSocket.pingTimeout;
+        if (so.config.webSocket.pingInterval > 0 && now - lastActivity >= so.config.webSocket.pingInterval)
+            ping();
+        return true;
+    }
+
+    /**
+     * Start the closing handshake with a normal closure.
      */
     public void close() {
+        close(CLOSE_NORMAL, "");
+    }
+
+    /**
+     * Start the closing handshake.<br />
+     * No message can be sent after this, the connection is closed once the client answers,
+     * or after "timeout" milliseconds if it does not.
+     * @param code the status code, for example CLOSE_NORMAL or CLOSE_GOING_AWAY.
+     * @param reason the reason, cut to the characters that fit in 123 bytes once encoded in UTF-8.
+     */
+    public void close(final int code, final String reason) {
+        if (!connected.get() || !closing.compareAndSet(false, true))
+            return;
+        closingSince = System.currentTimeMillis();
+        closeCode = code;
+        final byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, 123);
+        // never cut a character in half, the client would fail the connection with 1007
+        while (length < text.length && (text[length] & 0xC0) == 0x80)
+            length--;
+        closeReason = length == text.length ? reason : new String(text, 0, length, StandardCharsets.UTF_8);
+        final byte[] payload = new byte[2 + length];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, length);
+        send(new WebSocketOutboundQueue.Message(OPCODE_CLOSE, payload, false));
+    }
+
+    /**
+     * Close the socket without a closing handshake, or once the handshake is done.
+     * Only the first call closes the connection and runs onClose().
+     */
+    final void abort() {
+        if(!connected.compareAndSet(true, false))
+            return;
+        closing.set(true);
+        so.webSocketEventManager.remove(uuid);
+        if (deflate != null)
+            deflate.release();
         try {
-            connected = false;
             request.reader.client.close();
-            onClose();
         } catch (final IOException ex) {
-            LOGGER.log(Level.SEVERE, null, ex);
+            LOGGER.log(Level.WARNING, null, ex);
         }
+        onClose();
     }
 
     private final LinkedList<WebSocketCommit> commits = new LinkedList<>();
     
+    /**
+     * Commits go straight to the outbound queue of the connection, so this list is always empty.
+     * @deprecated commits are queued by the connection, see isWritable() and getQueuedBytes().
+     */
+    @Deprecated
     public LinkedList<WebSocketCommit> getCommits(){
         return commits;
     }
     
+    /**
+     * Push a commit to the client, or to its WebSocketGroup.
+     * @param commit the commit.
+     */
     public void commit(WebSocketCommit commit){
-        commits.add(commit);
+        push(commit);
     };
     
     /**
@@ -262,58 +531,246 @@ public abstract class WebSocketEventManager extends EventManager{
      *               content of the message should be trated as binary or not. If
      *               this value is true, the server will set the binary flag to 0x82
      *               otherwise it will be set to 0x81. Note that this won't encode
-     *               or convert your data in any way.
+     *               or convert your data in any way.<br />
+     *               The message is queued and written later, the array must not be changed after this call.
      */
     public void push(final byte[] data, final boolean binary) {
-        int offset = 0;
-        final int maxLength = so.config.webSocket.mtu - 1;
-        if (data.length > maxLength) {
-            while (offset < data.length) {
-                if (offset + maxLength > data.length) {
-                    encodeAndPushBytes(Arrays.copyOfRange(data, offset, data.length), binary);
-                    offset = data.length;
-                } else {
-                    encodeAndPushBytes(Arrays.copyOfRange(data, offset, offset + maxLength), binary);
-                    offset += maxLength;
-                }
+        if (!isConnected())
+            return;
+        send(new WebSocketOutboundQueue.Message(binary ? OPCODE_BINARY : OPCODE_TEXT, data, false));
+    }
+
+    /**
+     * Queue a message for the thread that writes the connection.<br />
+     * Data messages that would take the queue past its high watermark are handled by the "policy" of the "outbound"
+     * configuration: "dropNewest" drops them, "dropOldest" queues them and the writing thread drops the oldest
+     * waiting messages, "disconnect" closes the connection. Control frames are always queued.
+     */
+    private void send(final WebSocketOutboundQueue.Message message) {
+        final boolean control = message.opcode >= OPCODE_CLOSE;
+        final String policy = so.config.webSocket.outbound.policy;
+        final long highWatermark = so.config.webSocket.outbound.highWatermark;
+        if (!control && overflows(message, highWatermark)) {
+            // a handler pushing from the selector loop keeps it from writing, let it write what the socket takes first
+            final WebSocketSelectorLoop loop = this.loop;
+            if (loop != null && loop.isLoopThread())
+                loop.flushNow(this);
+        }
+        if (!control && overflows(message, highWatermark)) {
+            outbound.setUnwritable();
+            if (Configuration.WebSocket.Outbound.POLICY_DROP_NEWEST.equals(policy)
+                    // the oldest messages are dropped by the writing thread, the queue must not outgrow it meanwhile
+                    || overflows(message, 2 * highWatermark)) {
+                dropped.incrementAndGet();
+                return;
             }
-        } else {
-            encodeAndPushBytes(data, binary);
+            if (Configuration.WebSocket.Outbound.POLICY_DISCONNECT.equals(policy)) {
+                disconnect();
+                return;
+            }
+        }
+        if (!outbound.offer(message)) {
+            // a full queue cannot make room for the newest message, since only the writing thread takes from it
+            if (message.opcode == OPCODE_CLOSE || Configuration.WebSocket.Outbound.POLICY_DISCONNECT.equals(policy))
+                disconnect();
+            else
+                dropped.incrementAndGet();
+            return;
         }
+        schedule();
     }
 
-    private void encodeAndPushBytes(final byte[] messageBytes, final boolean binary) {
-        try {
-            request.reader.output.flush();
-        } catch (final IOException ex) {
-            LOGGER.log(Level.SEVERE, null, ex);
+    /**
+     * Check if a message would take the queue past a limit, an empty queue takes any message however large.
+     */
+    private boolean overflows(final WebSocketOutboundQueue.Message message, final long limit) {
+        return !outbound.isEmpty() && outbound.getBytes() + message.data.length > limit;
+    }
+
+    /**
+     * Drop a client that does not keep up, there is no room left for a close frame.
+     */
+    private void disconnect() {
+        closeReason = "The client does not keep up.";
+        abort();
+    }
+
+    /**
+     * Get the queued frames written.
+     */
+    private void schedule() {
+        final WebSocketSelectorLoop loop = this.loop;
+        if (loop != null) {
+            // one request is enough for any number of messages
+            if (scheduled.compareAndSet(false, true))
+                loop.flush(this);
+        } else if (blocking) {
+            drain();
         }
-        try {
-            // We need to set only FIN and Opcode.
-            request.reader.output.write(binary ? 0x82 : 0x81);
-
-            // Prepare the payload length.
-            if (messageBytes.length <= 125) {
-                request.reader.output.write(messageBytes.length);
-            } else { // We assume it is 16 but length. Not more than that.
-                request.reader.output.write(0x7E);
-                final int b1 = (messageBytes.length >> 8) & 0xff;
-                final int b2 = messageBytes.length & 0xff;
-                request.reader.output.write(b1);
-                request.reader.output.write(b2);
+        // otherwise the connection is flushed once it is registered
+    }
+
+    /**
+     * Let the next message request another flush, the selector loop calls this before flushing.
+     */
+    final void unschedule() {
+        scheduled.set(false);
+    }
+
+    /**
+     * Write queued frames to the channel without blocking, only the selector loop of the connection calls this.<br />
+     * Frames are written in batches with gathering writes, straight from the arrays of the messages.
+     * @param channel the channel of the connection.
+     * @param gather scratch array of the loop, its length is the size of a batch.
+     * @return true if everything has been written, false if the socket cannot take more for now.
+     * @throws IOException
+     */
+    final boolean flush(final SocketChannel channel, final ByteBuffer[] gather) throws IOException {
+        while (connected.get()) {
+            trim();
+            fill(gather.length);
+            if (frames.isEmpty())
+                return true;
+            int count = 0;
+            for (final ByteBuffer frame : frames) {
+                if (count == gather.length)
+                    break;
+                gather[count++] = frame;
             }
+            channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            if (!retire())
+                return false;
+        }
+        return true;
+    }
 
-            // Write the data.
-            request.reader.output.write(messageBytes);
+    /**
+     * Write queued frames with blocking writes, for connections that have no selector loop.<br />
+     * Whichever thread gets here first writes everything, including what other threads queue meanwhile.
+     */
+    private void drain() {
+        while (!outbound.isEmpty() && draining.compareAndSet(false, true)) {
             try {
-                request.reader.output.flush();
+                final OutputStream output = request.reader.output;
+                ByteBuffer frame;
+                while (connected.get()) {
+                    trim();
+                    fill(1);
+                    if ((frame = frames.poll()) == null)
+                        break;
+                    if (frame == CLOSE_AFTER) {
+                        output.flush();
+                        abort();
+                    } else {
+                        output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    }
+                }
+                if (connected.get())
+                    output.flush();
             } catch (final IOException ex) {
-                LOGGER.log(Level.SEVERE, null, ex);
+                abort();
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    /**
+     * Drop the oldest data messages while the queue is past its high watermark, with the "dropOldest" policy.
+     * Control frames are kept, and so is the message being written.
+     */
+    private void trim() {
+        if (!Configuration.WebSocket.Outbound.POLICY_DROP_OLDEST.equals(so.config.webSocket.outbound.policy))
+            return;
+        while (outbound.isOverHighWatermark() && outbound.size() > 1) {
+            final WebSocketOutboundQueue.Message message = outbound.poll();
+            if (message == null)
+                return;
+            if (message.opcode >= OPCODE_CLOSE)
+                encode(message);
+            else
+                dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Turn queued messages into frames until there are enough for a batch.
+     * Messages are left in the queue otherwise, where they count towards the watermarks.
+     */
+    private void fill(final int batch) {
+        WebSocketOutboundQueue.Message message;
+        while (frames.size() < batch && (message = outbound.poll()) != null)
+            encode(message);
+    }
+
+    /**
+     * Drop the frames that have been written.
+     * @return false if a frame is only partly written.
+     */
+    private boolean retire() {
+        ByteBuffer frame;
+        while ((frame = frames.peek()) != null && !frame.hasRemaining()) {
+            frames.poll();
+            if (frame == CLOSE_AFTER) {
+                abort();
+                return true;
             }
-        } catch (final IOException ex) {
-            close();
         }
+        return frame == null;
+    }
 
+    /**
+     * Compress a message if needed and split it in frames of at most "mtu" bytes.<br />
+     * Messages are compressed here, by the single thread that writes the connection,
+     * so they are compressed in the order they are sent and dropped messages never reach the Deflater.
+     */
+    private void encode(final WebSocketOutboundQueue.Message message) {
+        int opcode = message.opcode;
+        byte[] payload = message.data;
+        if (opcode < OPCODE_CLOSE && deflate != null && deflate.accepts(payload.length)) {
+            payload = deflate.compress(payload);
+            opcode |= RSV1;
+        }
+        final int fragment = so.config.webSocket.mtu;
+        int offset = 0;
+        do {
+            final int size = Math.min(fragment, payload.length - offset);
+            final boolean last = offset + size == payload.length;
+            frames.add(head((last ? FIN : 0) | opcode, size));
+            // fragments are written straight from the array, no copy is made
+            if (size > 0)
+                frames.add(ByteBuffer.wrap(payload, offset, size));
+            opcode = OPCODE_CONTINUATION;
+            offset += size;
+        } while (offset < payload.length);
+        if (message.closeAfter)
+            frames.add(CLOSE_AFTER);
+    }
+
+    /**
+     * Make the head of a frame, servers never mask their frames.
+     * @param first the first byte of the frame, FIN bit and opcode.
+     * @param size size of the payload.
+     */
+    private static ByteBuffer head(final int first, final int size) {
+        final byte[] head;
+        if (size <= 125) {
+            head = new byte[2];
+            head[1] = (byte) size;
+        } else if (size <= 0xFFFF) {
+            head = new byte[4];
+            head[1] = 126;
+            head[2] = (byte) (size >> 8);
+            head[3] = (byte) size;
+        } else {
+            head = new byte[10];
+            head[1] = 127;
+            for (int i = 0; i < 8; i++)
+                head[2 + i] = (byte) ((long) size >>> (56 - 8 * i));
+        }
+        head[0] = (byte) first;
+        return ByteBuffer.wrap(head);
     }
 
     /**
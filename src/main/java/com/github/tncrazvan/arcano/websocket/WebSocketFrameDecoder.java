@@ -0,0 +1,158 @@
+package com.github.tncrazvan.arcano.websocket;
+
+import static com.github.tncrazvan.arcano.websocket.WebSocketFrameException.MESSAGE_TOO_BIG;
+import static com.github.tncrazvan.arcano.websocket.WebSocketFrameException.PROTOCOL_ERROR;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes the frames a client sends, from whatever chunks of bytes the connection delivers.<br />
+ * The head of a frame (at most 14 bytes) is gathered in a scratch array that is reused for every frame
+ * and parsed in one step once it is complete, the payload is then copied out of the incoming chunks
+ * and unmasked eight bytes at a time, so the only allocation is the array that holds the payload.
+ * Frames that are not masked, or whose payload is larger than the limit, are rejected
+ * with a WebSocketFrameException before their payload is read.
+ * @author Razvan Tanase
+ */
+public class WebSocketFrameDecoder {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final byte[] EMPTY = new byte[0];
+    private static final int MAX_HEAD = 14;
+
+    /**
+     * Receives the frames, in the order they were sent.
+     */
+    public interface Listener {
+        /**
+         * @param fin true if this is the last frame of its message.
+         * @param rsv the three reserved bits, as the high bits of the first byte of the frame (0x70 mask).
+         * @param opcode the opcode of the frame.
+         * @param payload the unmasked payload, owned by the listener.
+         * @return true to keep decoding, false to drop whatever follows (the connection is being closed).
+         * @throws IOException
+         */
+        boolean onFrame(boolean fin, int rsv, int opcode, byte[] payload) throws IOException;
+    }
+
+    private final long maxPayload;
+    private final byte[] head = new byte[MAX_HEAD];
+    private int headLength = 0;
+    private int headSize = 2;
+    private boolean fin;
+    private int rsv;
+    private int opcode;
+    private int mask;
+    private byte[] payload = null;
+    private int payloadIndex = 0;
+
+    /**
+     * @param maxPayload maximum size of the payload of a frame, in bytes.
+     */
+    public WebSocketFrameDecoder(final long maxPayload) {
+        this.maxPayload = Math.min(maxPayload, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Decode a chunk of bytes, frames may start and end anywhere in it.
+     * @param bytes the bytes.
+     * @param offset index of the first byte.
+     * @param length number of bytes.
+     * @param listener receives every frame that is completed by this chunk.
+     * @throws IOException if a frame is invalid or the listener fails.
+     */
+    public final void decode(final byte[] bytes, int offset, final int length, final Listener listener) throws IOException {
+        final int end = offset + length;
+        while (offset < end) {
+            if (payload == null) {
+                final int n = Math.min(headSize - headLength, end - offset);
+                System.arraycopy(bytes, offset, head, headLength, n);
+                headLength += n;
+                offset += n;
+                if (headLength == 2)
+                    headSize = headSize();
+                if (headLength < headSize)
+                    continue;
+                parseHead();
+                if (payload.length > 0)
+                    continue;
+            } else {
+                final int n = Math.min(payload.length - payloadIndex, end - offset);
+                unmask(bytes, offset, payload, payloadIndex, n, mask, payloadIndex);
+                payloadIndex += n;
+                offset += n;
+                if (payloadIndex < payload.length)
+                    continue;
+            }
+            final byte[] frame = payload;
+            payload = null;
+            if (!listener.onFrame(fin, rsv, opcode, frame))
+                return;
+        }
+    }
+
+    /**
+     * Get the size of the head from its first two bytes.
+     */
+    private int headSize() throws WebSocketFrameException {
+        if ((head[1] & 0x80) == 0)
+            throw new WebSocketFrameException(PROTOCOL_ERROR, "Client frames must be masked.");
+        switch (head[1] & 0x7F) {
+            case 126:
+                return 2 + 2 + 4;
+            case 127:
+                return 2 + 8 + 4;
+            default:
+                return 2 + 4;
+        }
+    }
+
+    private void parseHead() throws WebSocketFrameException {
+        fin = (head[0] & 0x80) != 0;
+        rsv = head[0] & 0x70;
+        opcode = head[0] & 0x0F;
+        long length = head[1] & 0x7F;
+        int cursor = 2;
+        if (length == 126) {
+            length = ((head[2] & 0xFF) << 8) | (head[3] & 0xFF);
+            cursor = 4;
+        } else if (length == 127) {
+            length = 0;
+            for (; cursor < 10; cursor++)
+                length = (length << 8) | (head[cursor] & 0xFF);
+            if (length < 0)
+                throw new WebSocketFrameException(PROTOCOL_ERROR, "Frame length has the most significant bit set.");
+        }
+        if (length > maxPayload)
+            throw new WebSocketFrameException(MESSAGE_TOO_BIG, "Frame of " + length + " bytes exceeds " + maxPayload + " bytes.");
+        mask = ((head[cursor] & 0xFF) << 24) | ((head[cursor + 1] & 0xFF) << 16) | ((head[cursor + 2] & 0xFF) << 8) | (head[cursor + 3] & 0xFF);
+        payload = length == 0 ? EMPTY : new byte[(int) length];
+        payloadIndex = 0;
+        headLength = 0;
+        headSize = 2;
+    }
+
+    /**
+     * Copy bytes while xoring them with a mask, eight bytes at a time.
+     * @param source the masked bytes.
+     * @param from index of the first masked byte.
+     * @param destination receives the unmasked bytes, can be the source itself.
+     * @param to index of the first unmasked byte.
+     * @param length number of bytes.
+     * @param mask the masking key, first byte in the most significant bits.
+     * @param maskIndex position of the first byte within the payload, which picks the byte of the key it starts with.
+     */
+    public static void unmask(final byte[] source, final int from, final byte[] destination, final int to, final int length, final int mask, final int maskIndex) {
+        // the key, rotated so that its first byte is the one the first byte of the run is masked with
+        final int key = Integer.rotateLeft(mask, 8 * (maskIndex & 3));
+        final int reversed = Integer.reverseBytes(key);
+        final long lane = (reversed & 0xFFFFFFFFL) | ((long) reversed << 32);
+        int i = 0;
+        for (; i + 8 <= length; i += 8)
+            LONGS.set(destination, to + i, (long) LONGS.get(source, from + i) ^ lane);
+        for (; i < length; i++)
+            destination[to + i] = (byte) (source[from + i] ^ (key >>> (24 - 8 * (i & 3))));
+    }
+}
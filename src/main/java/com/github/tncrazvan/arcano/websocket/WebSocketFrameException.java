@@ -0,0 +1,41 @@
+package com.github.tncrazvan.arcano.websocket;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a frame breaks the protocol or exceeds the configured limits.
+ * @author Razvan Tanase
+ */
+public class WebSocketFrameException extends IOException {
+    private static final long serialVersionUID = -2870513906311244317L;
+    /**
+     * The frame breaks the protocol.
+     */
+    public static final int PROTOCOL_ERROR = 1002;
+    /**
+     * The payload of the message cannot be decoded.
+     */
+    public static final int INVALID_PAYLOAD = 1007;
+    /**
+     * The frame, or the message it belongs to, is too large.
+     */
+    public static final int MESSAGE_TOO_BIG = 1009;
+    private final int code;
+
+    /**
+     * @param code the status code the connection should be closed with.
+     * @param message a description of the problem.
+     */
+    public WebSocketFrameException(final int code, final String message) {
+        super(message);
+        this.code = code;
+    }
+
+    /**
+     * Get the status code the connection should be closed with.
+     * @return the close status code.
+     */
+    public final int getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.tncrazvan.arcano.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The messages waiting to be written to a WebSocket client.<br />
+ * A bounded ring buffer for many producers and one consumer, without locks:
+ * producers claim a slot by moving the tail with a CAS and publish the message through the sequence of the slot,
+ * the consumer, which is the only one moving the head, takes messages in the order their slots were claimed.
+ * The queue counts the bytes it holds, it stops being writable once they exceed the high watermark
+ * and becomes writable again once they drop to the low watermark.
+ * @author Razvan Tanase
+ */
+final class WebSocketOutboundQueue {
+    static final class Message {
+        final int opcode;
+        final byte[] data;
+        // the connection is closed once this message has been written
+        final boolean closeAfter;
+
+        Message(final int opcode, final byte[] data, final boolean closeAfter) {
+            this.opcode = opcode;
+            this.data = data;
+            this.closeAfter = closeAfter;
+        }
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Message> slots;
+    // the slot at index i is free for the producer that claims position s when its sequence is s,
+    // and holds the message of position s for the consumer when its sequence is s + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private final AtomicLong bytes = new AtomicLong();
+    private final long highWatermark;
+    private final long lowWatermark;
+    private volatile boolean writable = true;
+
+    /**
+     * @param capacity maximum number of messages, rounded up to a power of two.
+     * @param highWatermark number of bytes past which the queue is no longer writable.
+     * @param lowWatermark number of bytes at which the queue is writable again.
+     */
+    WebSocketOutboundQueue(final int capacity, final long highWatermark, final long lowWatermark) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++)
+            sequences.set(i, i);
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * Add a message, any thread can call this.
+     * @param message the message.
+     * @return false if every slot is taken.
+     */
+    final boolean offer(final Message message) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            final long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+            } else if (sequence < position) {
+                // the consumer has not taken the message a full lap behind yet
+                return false;
+            }
+            // otherwise another producer claimed this position first
+        }
+        slots.set(index, message);
+        bytes.addAndGet(message.data.length);
+        sequences.set(index, position + 1);
+        if (bytes.get() > highWatermark)
+            setUnwritable();
+        return true;
+    }
+
+    /**
+     * Stop being writable until the low watermark is reached,
+     * which is also what happens when a message is turned away for exceeding the high watermark.
+     */
+    final void setUnwritable() {
+        writable = false;
+        // the consumer may have drained the queue before the flag was cleared
+        if (bytes.get() <= lowWatermark)
+            writable = true;
+    }
+
+    /**
+     * Take the oldest message, only the consumer can call this.
+     * @return the message, or null if the queue is empty.
+     */
+    final Message poll() {
+        final long position = head;
+        final int index = (int) position & mask;
+        if (sequences.get(index) != position + 1)
+            return null;
+        final Message message = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, position + capacity);
+        head = position + 1;
+        if (bytes.addAndGet(-message.data.length) <= lowWatermark)
+            writable = true;
+        return message;
+    }
+
+    /**
+     * @return true if no message is waiting, or about to be published.
+     */
+    final boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /**
+     * @return the number of messages in the queue, an estimate while producers are adding to it.
+     */
+    final int size() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * @return the number of bytes in the queue.
+     */
+    final long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return true if the number of bytes in the queue exceeds the high watermark.
+     */
+    final boolean isOverHighWatermark() {
+        return bytes.get() > highWatermark;
+    }
+
+    /**
+     * @return false from the moment the high watermark is exceeded until the low watermark is reached.
+     */
+    final boolean isWritable() {
+        return writable;
+    }
+}
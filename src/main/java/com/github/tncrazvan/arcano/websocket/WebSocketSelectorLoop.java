@@ -0,0 +1,218 @@
+package com.github.tncrazvan.arcano.websocket;
+
+import static com.github.tncrazvan.arcano.SharedObject.LOGGER;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+import com.github.tncrazvan.arcano.SharedObject;
+
+/**
+ * Reads and writes the frames of many WebSocket connections using a single thread.<br />
+ * A connection is only looked at when the selector reports bytes to read, or room to write once its socket was full,
+ * so idle connections cost nothing but their registration.
+ * The handlers of the connections of a loop run on the loop thread, one message at a time.
+ * Pushed messages wait in the outbound queue of their connection, which asks the loop to flush it,
+ * a client that does not keep up only makes its own queue grow.
+ * @author Razvan Tanase
+ */
+public class WebSocketSelectorLoop implements Runnable {
+    private final SharedObject so;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Registration> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<WebSocketEventManager> flushes = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+    private long lastSweep = System.currentTimeMillis();
+    private volatile Thread thread = null;
+
+    private static final class Registration {
+        private final WebSocketEventManager manager;
+        private final byte[] buffered;
+
+        private Registration(final WebSocketEventManager manager, final byte[] buffered) {
+            this.manager = manager;
+            this.buffered = buffered;
+        }
+    }
+
+    public WebSocketSelectorLoop(final SharedObject so) throws IOException {
+        this.so = so;
+        this.selector = Selector.open();
+        this.bytes = new byte[so.config.webSocket.mtu];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Add a connection to this loop.
+     * The connection will start being read on the next iteration of the loop.
+     * @param manager the connection, its channel must be in non-blocking mode.
+     * @param buffered bytes the client sent after the handshake, they are decoded before anything else.
+     */
+    public final void register(final WebSocketEventManager manager, final byte[] buffered) {
+        pending.add(new Registration(manager, buffered));
+        selector.wakeup();
+    }
+
+    /**
+     * Have the queued frames of a connection written on the next iteration of the loop.
+     * @param manager the connection.
+     */
+    public final void flush(final WebSocketEventManager manager) {
+        flushes.add(manager);
+        selector.wakeup();
+    }
+
+    /**
+     * @return true if the caller is the thread of this loop, a handler for example.
+     */
+    final boolean isLoopThread() {
+        return thread == Thread.currentThread();
+    }
+
+    /**
+     * Write the queued frames of a connection right away, only the thread of this loop can call this.
+     * @param manager the connection.
+     */
+    final void flushNow(final WebSocketEventManager manager) {
+        final SelectionKey key = manager.getChannel().keyFor(selector);
+        if (key != null && key.isValid())
+            write(key);
+    }
+
+    @Override
+    public final void run() {
+        thread = Thread.currentThread();
+        while (so.config.listen) {
+            try {
+                selector.select(1000);
+                registerPending();
+                flushPending();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isWritable())
+                        write(key);
+                    if (key.isValid() && key.isReadable())
+                        read(key);
+                }
+                sweep();
+            } catch (final IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }
+        try {
+            for (final SelectionKey key : selector.keys()) {
+                ((WebSocketEventManager) key.attachment()).close(WebSocketEventManager.CLOSE_GOING_AWAY, "");
+                // one attempt at writing the close frame, the socket is closed anyway
+                write(key);
+                close(key);
+            }
+            selector.close();
+        } catch (final IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void registerPending() {
+        Registration registration;
+        while ((registration = pending.poll()) != null) {
+            final WebSocketEventManager manager = registration.manager;
+            try {
+                final SelectionKey key = manager.getChannel().register(selector, SelectionKey.OP_READ, manager);
+                if (registration.buffered.length > 0)
+                    decode(key, registration.buffered, registration.buffered.length);
+                // messages pushed by onOpen()
+                if (key.isValid())
+                    write(key);
+            } catch (final IOException ex) {
+                manager.abort();
+            }
+        }
+    }
+
+    private void flushPending() {
+        WebSocketEventManager manager;
+        while ((manager = flushes.poll()) != null) {
+            manager.unschedule();
+            final SelectionKey key = manager.getChannel().keyFor(selector);
+            // connections that are not registered yet are flushed once they are
+            if (key != null && key.isValid())
+                write(key);
+        }
+    }
+
+    /**
+     * Write what the connection has queued, and wait for room in the socket if it does not all fit.
+     */
+    private void write(final SelectionKey key) {
+        final WebSocketEventManager manager = (WebSocketEventManager) key.attachment();
+        try {
+            final boolean done = manager.flush(manager.getChannel(), gather);
+            if (key.isValid())
+                key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (final IOException ex) {
+            close(key);
+        } catch (final CancelledKeyException ex) {
+            // the connection was closed by another thread
+        }
+    }
+
+    private void read(final SelectionKey key) {
+        final WebSocketEventManager manager = (WebSocketEventManager) key.attachment();
+        try {
+            buffer.clear();
+            final int read = manager.getChannel().read(buffer);
+            if (read < 0) {
+                close(key);
+                return;
+            }
+            decode(key, bytes, read);
+        } catch (final IOException ex) {
+            close(key);
+        }
+    }
+
+    /**
+     * Hand bytes to the connection, a handler that throws closes its own connection and nothing else.
+     */
+    private void decode(final SelectionKey key, final byte[] bytes, final int length) throws IOException {
+        final WebSocketEventManager manager = (WebSocketEventManager) key.attachment();
+        try {
+            manager.unmask(bytes, 0, length);
+        } catch (final RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            manager.fail(WebSocketEventManager.CLOSE_INTERNAL_ERROR);
+            return;
+        }
+        if (!manager.isOpen())
+            key.cancel();
+    }
+
+    /**
+     * Ping idle connections and drop the ones that stopped answering.
+     */
+    private void sweep() {
+        final long now = System.currentTimeMillis();
+        if (now - lastSweep < 1000)
+            return;
+        lastSweep = now;
+        for (final SelectionKey key : selector.keys())
+            if (key.isValid() && !((WebSocketEventManager) key.attachment()).checkLiveness(now))
+                close(key);
+    }
+
+    private void close(final SelectionKey key) {
+        key.cancel();
+        ((WebSocketEventManager) key.attachment()).abort();
+    }
+}